@@ -0,0 +1,93 @@
+package ca.ubc.cs.beta.models.fastrf.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.cs.beta.models.fastrf.utils.CsvToDataConverter;
+import ca.ubc.cs.beta.models.fastrf.utils.RfData;
+
+/**
+ * Parsing the Workload data from a csv file with one row per run, with categorical values written as strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvParsingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CsvFile {
+        @Param({"1", "4"})
+        public int numThreads;
+
+        File file;
+        int[] thetaColIdxs, xColIdxs, catColIdxs;
+        int yColIdx;
+
+        @Setup
+        public void setUp(Workload w) throws IOException {
+            file = File.createTempFile("benchmark", ".csv");
+            thetaColIdxs = new int[w.dimTheta];
+            xColIdxs = new int[w.dimX];
+            int numCat = 0;
+            for (int size : w.catDomainSizes) if (size > 0) numCat++;
+            catColIdxs = new int[numCat];
+            for (int j = 0, c = 0; j < w.dims; j++) {
+                if (j < w.dimTheta) thetaColIdxs[j] = j;
+                else xColIdxs[j - w.dimTheta] = j;
+                if (w.catDomainSizes[j] > 0) catColIdxs[c++] = j;
+            }
+            yColIdx = w.dims;
+
+            FileWriter out = new FileWriter(file);
+            try {
+                StringBuilder line = new StringBuilder();
+                for (int j = 0; j < w.dims; j++) {
+                    line.append(j < w.dimTheta ? "parameter" + j : "feature" + j).append(',');
+                }
+                out.write(line.append("performance\n").toString());
+                for (int i = 0; i < w.N; i++) {
+                    line.setLength(0);
+                    double[] theta = w.allTheta[w.theta_inst_idxs[i][0]], x = w.allX[w.theta_inst_idxs[i][1]];
+                    for (int j = 0; j < w.dims; j++) {
+                        double value = (j < w.dimTheta ? theta[j] : x[j - w.dimTheta]);
+                        if (w.catDomainSizes[j] > 0) line.append("value").append((int) value);
+                        else line.append(value);
+                        line.append(',');
+                    }
+                    out.write(line.append(w.y[i]).append('\n').toString());
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public RfData readDataFromCsvFile(CsvFile f) throws IOException {
+        String filename = f.file.getAbsolutePath();
+        CsvToDataConverter converter = new CsvToDataConverter(filename, f.thetaColIdxs, f.xColIdxs, f.yColIdx, f.catColIdxs, f.numThreads);
+        return converter.readDataFromCsvFile(filename, f.numThreads);
+    }
+}
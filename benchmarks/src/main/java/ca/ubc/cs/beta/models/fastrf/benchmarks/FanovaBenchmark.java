@@ -0,0 +1,114 @@
+package ca.ubc.cs.beta.models.fastrf.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.ubc.cs.beta.models.fastrf.MarginalCurve;
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+
+/**
+ * The fANOVA routines of Regtree on a forest learned on the configurations and responses of the Workload data:
+ * precomputing the leaf info, the total variance, and the marginal performance of single parameters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanovaBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Model {
+        RandomForest forest;
+        boolean[] isCat;
+        HashSet<Integer>[] allCatValues;
+        double[] contLB, contUB;
+
+        @Setup
+        @SuppressWarnings("unchecked")
+        public void setUp(Workload w) {
+            //=== fANOVA decomposes the performance over configurations, so the forest is learned without instance features.
+            double[][] noFeatures = new double[1][0];
+            int[][] theta_idxs = new int[w.N][2];
+            for (int i = 0; i < w.N; i++) theta_idxs[i][0] = w.theta_inst_idxs[i][0];
+            RegtreeBuildParams params = w.buildParams();
+            params.catDomainSizes = Arrays.copyOf(w.catDomainSizes, w.dimTheta);
+            forest = RandomForest.preprocessForest(RandomForest.learnModel(w.numTrees, w.allTheta, noFeatures, theta_idxs, w.y, params), noFeatures);
+            isCat = new boolean[w.dimTheta];
+            allCatValues = new HashSet[w.dimTheta];
+            contLB = new double[w.dimTheta];
+            contUB = new double[w.dimTheta];
+            for (int j = 0; j < w.dimTheta; j++) {
+                isCat[j] = w.catDomainSizes[j] > 0;
+                if (isCat[j]) {
+                    allCatValues[j] = new HashSet<Integer>();
+                    for (int v = 0; v < w.catDomainSizes[j]; v++) allCatValues[j].add(v);
+                } else {
+                    contUB[j] = 1;
+                }
+            }
+            precomputeLeafInfo(this);
+        }
+    }
+
+    private static void precomputeLeafInfo(Model m) {
+        for (Regtree tree : m.forest.Trees) {
+            tree.precomputeLeafInfo(m.isCat, m.allCatValues, m.contLB, m.contUB);
+        }
+    }
+
+    @Benchmark
+    public void precomputeLeafInfo(Model m, Blackhole bh) {
+        precomputeLeafInfo(m);
+        bh.consume(m.forest);
+    }
+
+    @Benchmark
+    public double computeProperTotalVariance(Model m) {
+        double sum = 0;
+        for (Regtree tree : m.forest.Trees) {
+            sum += tree.computeProperTotalVariance();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void marginalPerformanceCurves(Model m, Workload w, Blackhole bh) {
+        for (Regtree tree : m.forest.Trees) {
+            for (int dim = 0; dim < w.dimTheta; dim++) {
+                MarginalCurve curve = tree.marginalPerformanceCurve(dim);
+                bh.consume(curve);
+            }
+        }
+    }
+
+    @Benchmark
+    public double marginalPerformance(Model m, Workload w) {
+        double sum = 0;
+        int[] dims = new int[1];
+        double[] values = new double[1];
+        for (Regtree tree : m.forest.Trees) {
+            for (int dim = 0; dim < w.dimTheta; dim++) {
+                dims[0] = dim;
+                values[0] = (m.isCat[dim] ? 0 : 0.5);
+                sum += tree.marginalPerformance(dims, values);
+            }
+        }
+        return sum;
+    }
+}
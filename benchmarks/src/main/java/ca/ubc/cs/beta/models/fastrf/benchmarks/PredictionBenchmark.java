@@ -0,0 +1,61 @@
+package ca.ubc.cs.beta.models.fastrf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+
+/**
+ * Predictions of a forest learned on the Workload data: apply on the design matrix of up to 10000 runs,
+ * marginal predictions for all configurations, and preprocessing the forest for the instances.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictionBenchmark {
+    public static final int NUM_PREDICTIONS = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Model {
+        RandomForest forest;
+        RandomForest preprocessed;
+        int[] treeIdxs;
+        double[][] X;
+
+        @Setup
+        public void setUp(Workload w) {
+            forest = RandomForest.learnModel(w.numTrees, w.allTheta, w.allX, w.theta_inst_idxs, w.y, w.buildParams());
+            preprocessed = RandomForest.preprocessForest(forest, w.allX);
+            treeIdxs = new int[w.numTrees];
+            for (int i = 0; i < treeIdxs.length; i++) treeIdxs[i] = i;
+            X = w.designMatrix(NUM_PREDICTIONS);
+        }
+    }
+
+    @Benchmark
+    public double[][] apply(Model m) {
+        return RandomForest.apply(m.forest, m.X);
+    }
+
+    @Benchmark
+    public double[][] applyMarginal(Model m, Workload w) {
+        return RandomForest.applyMarginal(m.preprocessed, m.treeIdxs, w.allTheta);
+    }
+
+    @Benchmark
+    public RandomForest preprocessForest(Model m, Workload w) {
+        return RandomForest.preprocessForest(m.forest, w.allX);
+    }
+}
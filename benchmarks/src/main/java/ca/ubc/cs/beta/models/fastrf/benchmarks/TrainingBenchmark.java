@@ -0,0 +1,36 @@
+package ca.ubc.cs.beta.models.fastrf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeFit;
+
+/**
+ * Fitting a single tree and learning a forest on the Workload data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Benchmark
+    public Regtree fit(Workload w) {
+        return RegtreeFit.fit(w.allTheta, w.allX, w.theta_inst_idxs, w.y, w.buildParams());
+    }
+
+    @Benchmark
+    public RandomForest learnModel(Workload w) {
+        return RandomForest.learnModel(w.numTrees, w.allTheta, w.allX, w.theta_inst_idxs, w.y, w.buildParams());
+    }
+}
@@ -0,0 +1,82 @@
+package ca.ubc.cs.beta.models.fastrf.benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+import ca.ubc.cs.beta.models.fastrf.utils.RfData;
+import ca.ubc.cs.beta.models.fastrf.utils.SyntheticDataGenerator;
+
+/**
+ * Training data shared by the benchmarks, from SyntheticDataGenerator: N runs of N/20 configurations with dimTheta parameters
+ * on 20 instances with dimX features, where dimX is a fifth of dims. A share catShare of the parameters and of the features is
+ * categorical with domain size CAT_DOMAIN_SIZE. The data only depends on the parameters, so results are comparable across runs.
+ */
+@State(Scope.Benchmark)
+public class Workload {
+    public static final int NUM_INSTANCES = 20;
+    public static final int CAT_DOMAIN_SIZE = 5;
+
+    @Param({"1000", "10000", "100000"})
+    public int N;
+
+    @Param({"10", "50"})
+    public int dims;
+
+    @Param({"0", "0.5"})
+    public double catShare;
+
+    @Param({"10", "100"})
+    public int numTrees;
+
+    public int dimTheta, dimX;
+    public double[][] allTheta;
+    public double[][] allX;
+    public int[][] theta_inst_idxs;
+    public double[] y;
+    public int[] catDomainSizes;
+
+    @Setup
+    public void setUp() {
+        dimX = Math.max(1, dims/5);
+        dimTheta = dims - dimX;
+        int[] thetaCatDomainSizes = new int[dimTheta], xCatDomainSizes = new int[dimX];
+        for (int i = 0; i < Math.round(catShare*dimTheta); i++) thetaCatDomainSizes[i] = CAT_DOMAIN_SIZE;
+        for (int i = 0; i < Math.round(catShare*dimX); i++) xCatDomainSizes[i] = CAT_DOMAIN_SIZE;
+
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(N, Math.max(1, N/NUM_INSTANCES), NUM_INSTANCES, thetaCatDomainSizes, xCatDomainSizes, 1234);
+        RfData data = generator.generate();
+        allTheta = data.getTheta();
+        allX = data.getX();
+        theta_inst_idxs = data.getTheta_inst_idxs();
+        y = data.getY();
+        catDomainSizes = data.getCatDomainSizes();
+    }
+
+    /**
+     * @returns fresh build params with a fixed seed, so every fit sees the same random choices.
+     */
+    public RegtreeBuildParams buildParams() {
+        RegtreeBuildParams params = new RegtreeBuildParams(true, 10, catDomainSizes);
+        params.random = new Random(42);
+        return params;
+    }
+
+    /**
+     * @returns the design matrix of the first n runs.
+     */
+    public double[][] designMatrix(int n) {
+        double[][] Z = new double[Math.min(n, N)][];
+        for (int i = 0; i < Z.length; i++) {
+            double[] theta = allTheta[theta_inst_idxs[i][0]], x = allX[theta_inst_idxs[i][1]];
+            Z[i] = new double[dims];
+            System.arraycopy(theta, 0, Z[i], 0, dimTheta);
+            System.arraycopy(x, 0, Z[i], dimTheta, dimX);
+        }
+        return Z;
+    }
+}
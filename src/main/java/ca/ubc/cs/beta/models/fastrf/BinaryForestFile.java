@@ -0,0 +1,467 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact, versioned binary file format for random forests, as a replacement for Java serialization.
+ *
+ * All values are little-endian. The file starts with a header holding the forest-level settings that
+ * prediction depends on, followed by an index of absolute tree offsets (numTrees+1 longs, the last one
+ * being the end of the file). Each tree is stored as one section of flat primitive arrays:
+ *
+ * <pre>
+ * int  numNodes, npred, logModel, flags, ncatsplit, numCatsplitValues, numResponses, reserved
+ * int  var[numNodes], left[numNodes], right[numNodes], parent[numNodes], nodesize[numNodes]
+ * int  responseOffsets[numNodes+1], catsplitOffsets[ncatsplit+1], catsplitValues[numCatsplitValues]
+ * (padding to 8 bytes)
+ * double cut[numNodes], nodepred[numNodes], nodevar[numNodes], responses[numResponses]
+ * double weights[numNodes], weightedpred[numNodes], weightedvar[numNodes]   (preprocessed trees only)
+ * </pre>
+ *
+ * responses holds the leaf responses (or the sum and sum of squares of each node, if responses are
+ * not stored in the leaves), with node i at [responseOffsets[i], responseOffsets[i+1]); this is the
+ * response arena of Regtree, so trees are read back in that layout.
+ * Derived data (the node numbers, the fANOVA leaf info and the classification info) is not stored.
+ * Of the build params, only the settings relevant for prediction and updates are stored.
+ *
+ * Buffer positions and limits are changed through java.nio.Buffer: from Java 9 on ByteBuffer overrides
+ * these methods with a covariant return type, which a Java 8 runtime does not have.
+ */
+public strictfp class BinaryForestFile {
+    public static final int MAGIC = 0x42465246; // "FRFB" in little-endian byte order
+    public static final int VERSION = 1;
+
+    static final int FOREST_FLAG_BROKEN_VARIANCE = 1;
+    static final int FOREST_FLAG_STORE_RESPONSES = 2;
+    static final int FOREST_FLAG_BOOTSTRAPPING = 4;
+
+    static final int TREE_FLAG_RESULTS_IN_LEAVES = 1;
+    static final int TREE_FLAG_PREPROCESSED = 2;
+
+    static final int TREE_HEADER_BYTES = 32;
+
+    /**
+     * Writes the forest to the given file, replacing it if it exists.
+     */
+    public static void write(RandomForest forest, File f) throws IOException {
+        ByteBuffer header = forestHeader(forest);
+        long[] offsets = new long[forest.numTrees+1];
+        offsets[0] = header.limit() + 8L*offsets.length;
+        for (int i=0; i < forest.numTrees; i++) {
+            offsets[i+1] = offsets[i] + treeSectionSize(forest.Trees[i]);
+        }
+        ByteBuffer index = ByteBuffer.allocate(8*offsets.length).order(ByteOrder.LITTLE_ENDIAN);
+        index.asLongBuffer().put(offsets);
+
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeFully(channel, header);
+            writeFully(channel, index);
+            ByteBuffer section = null;
+            for (int i=0; i < forest.numTrees; i++) {
+                int size = (int)(offsets[i+1] - offsets[i]);
+                if (section == null || section.capacity() < size) {
+                    section = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                ((Buffer) section).clear();
+                ((Buffer) section).limit(size);
+                writeTree(forest.Trees[i], section);
+                ((Buffer) section).flip();
+                writeFully(channel, section);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a forest written by write.
+     */
+    public static RandomForest read(File f) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            Header header = readHeader(channel);
+            RandomForest forest = new RandomForest(header.numTrees, header.buildParams);
+            ByteBuffer section = null;
+            for (int i=0; i < header.numTrees; i++) {
+                int size = header.treeSectionSize(i);
+                if (section == null || section.capacity() < size) {
+                    section = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                ((Buffer) section).clear();
+                ((Buffer) section).limit(size);
+                readFully(channel, section, header.treeOffsets[i]);
+                ((Buffer) section).flip();
+                forest.Trees[i] = readTree(section);
+            }
+            return forest;
+        } finally {
+            channel.close();
+        }
+    }
+
+    //======================================================================\\
+    //                         FOREST HEADER                                \\
+    //======================================================================\\
+
+    /**
+     * The forest-level part of a binary forest file: build params and the tree index.
+     */
+    static class Header {
+        int numTrees;
+        RegtreeBuildParams buildParams;
+        long[] treeOffsets;
+
+        int treeSectionSize(int tree) {
+            long size = treeOffsets[tree+1] - treeOffsets[tree];
+            if (size < TREE_HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Corrupt binary forest file: tree " + tree + " has a section of " + size + " bytes.");
+            }
+            return (int)size;
+        }
+    }
+
+    private static ByteBuffer forestHeader(RandomForest forest) {
+        RegtreeBuildParams params = forest.getBuildParams();
+        int[] catDomainSizes = params.catDomainSizes;
+        int numCat = (catDomainSizes == null ? 0 : catDomainSizes.length);
+        int size = align8(4*4 + 8 + 4*2 + 8 + 8 + 4 + 4*numCat);
+
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(forest.numTrees);
+        buf.putInt(forest.logModel);
+        buf.putDouble(forest.minVariance);
+        int flags = (params.brokenVarianceCalculation ? FOREST_FLAG_BROKEN_VARIANCE : 0)
+                  | (params.storeResponses ? FOREST_FLAG_STORE_RESPONSES : 0)
+                  | (params.doBootstrapping ? FOREST_FLAG_BOOTSTRAPPING : 0);
+        buf.putInt(flags);
+        buf.putInt(params.splitMin);
+        buf.putDouble(params.ratioFeatures);
+        buf.putLong(params.seed);
+        buf.putInt(catDomainSizes == null ? -1 : numCat);
+        for (int i=0; i < numCat; i++) {
+            buf.putInt(catDomainSizes[i]);
+        }
+        ((Buffer) buf).position(size);
+        ((Buffer) buf).flip();
+        return buf;
+    }
+
+    static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(4*4 + 8 + 4*2 + 8 + 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, fixed, 0);
+        ((Buffer) fixed).flip();
+        if (fixed.getInt() != MAGIC) {
+            throw new IOException("Not a binary forest file.");
+        }
+        int version = fixed.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary forest file version " + version + "; this reader supports version " + VERSION);
+        }
+        Header header = new Header();
+        header.numTrees = fixed.getInt();
+        int logModel = fixed.getInt();
+        double minVariance = fixed.getDouble();
+        int flags = fixed.getInt();
+        int splitMin = fixed.getInt();
+        double ratioFeatures = fixed.getDouble();
+        long seed = fixed.getLong();
+        int numCat = fixed.getInt();
+
+        int[] catDomainSizes = null;
+        long position = fixed.limit();
+        if (numCat >= 0) {
+            ByteBuffer cat = ByteBuffer.allocate(4*numCat).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, cat, position);
+            ((Buffer) cat).flip();
+            catDomainSizes = new int[numCat];
+            cat.asIntBuffer().get(catDomainSizes);
+            position += 4*numCat;
+        }
+        position = align8(position);
+
+        RegtreeBuildParams params = new RegtreeBuildParams((flags & FOREST_FLAG_BOOTSTRAPPING) != 0, splitMin, ratioFeatures, catDomainSizes);
+        params.logModel = logModel;
+        params.minVariance = minVariance;
+        params.storeResponses = (flags & FOREST_FLAG_STORE_RESPONSES) != 0;
+        params.brokenVarianceCalculation = (flags & FOREST_FLAG_BROKEN_VARIANCE) != 0;
+        params.seed = seed;
+        header.buildParams = params;
+
+        ByteBuffer index = ByteBuffer.allocate(8*(header.numTrees+1)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, index, position);
+        ((Buffer) index).flip();
+        header.treeOffsets = new long[header.numTrees+1];
+        index.asLongBuffer().get(header.treeOffsets);
+        return header;
+    }
+
+    //======================================================================\\
+    //                          TREE SECTIONS                               \\
+    //======================================================================\\
+
+    /**
+     * Byte offsets of the arrays of one tree section, relative to the start of the section.
+     */
+    static class TreeLayout {
+        int numNodes, npred, logModel, flags, ncatsplit, numCatsplitValues, numResponses;
+        int var, left, right, parent, nodesize, responseOffsets, catsplitOffsets, catsplitValues;
+        int cut, nodepred, nodevar, responses, weights, weightedpred, weightedvar, end;
+
+        /**
+         * Reads the layout from the tree header at the given (absolute) position of buf.
+         */
+        TreeLayout(ByteBuffer buf, int start) {
+            this(buf.getInt(start), buf.getInt(start+4), buf.getInt(start+8), buf.getInt(start+12),
+                 buf.getInt(start+16), buf.getInt(start+20), buf.getInt(start+24));
+        }
+
+        TreeLayout(int numNodes, int npred, int logModel, int flags, int ncatsplit, int numCatsplitValues, int numResponses) {
+            this.numNodes = numNodes;
+            this.npred = npred;
+            this.logModel = logModel;
+            this.flags = flags;
+            this.ncatsplit = ncatsplit;
+            this.numCatsplitValues = numCatsplitValues;
+            this.numResponses = numResponses;
+
+            int pos = TREE_HEADER_BYTES;
+            var = pos;             pos += 4*numNodes;
+            left = pos;            pos += 4*numNodes;
+            right = pos;           pos += 4*numNodes;
+            parent = pos;          pos += 4*numNodes;
+            nodesize = pos;        pos += 4*numNodes;
+            responseOffsets = pos; pos += 4*(numNodes+1);
+            catsplitOffsets = pos; pos += 4*(ncatsplit+1);
+            catsplitValues = pos;  pos += 4*numCatsplitValues;
+            pos = align8(pos);
+            cut = pos;             pos += 8*numNodes;
+            nodepred = pos;        pos += 8*numNodes;
+            nodevar = pos;         pos += 8*numNodes;
+            responses = pos;       pos += 8*numResponses;
+            if (isPreprocessed()) {
+                weights = pos;      pos += 8*numNodes;
+                weightedpred = pos; pos += 8*numNodes;
+                weightedvar = pos;  pos += 8*numNodes;
+            } else {
+                weights = weightedpred = weightedvar = -1;
+            }
+            end = pos;
+        }
+
+        boolean isPreprocessed() {
+            return (flags & TREE_FLAG_PREPROCESSED) != 0;
+        }
+
+        boolean resultsStoredInLeaves() {
+            return (flags & TREE_FLAG_RESULTS_IN_LEAVES) != 0;
+        }
+    }
+
+    private static TreeLayout layoutOf(Regtree tree) {
+        int numCatsplitValues = 0;
+        for (int[] cs : tree.catsplit) numCatsplitValues += cs.length;
+        int numResponses = 0;
+        for (int i=0; i < tree.numNodes; i++) {
+            numResponses += numStoredResponses(tree, i);
+        }
+        int flags = (tree.resultsStoredInLeaves ? TREE_FLAG_RESULTS_IN_LEAVES : 0)
+                  | (tree.preprocessed ? TREE_FLAG_PREPROCESSED : 0);
+        return new TreeLayout(tree.numNodes, tree.npred, tree.logModel, flags, tree.catsplit.length, numCatsplitValues, numResponses);
+    }
+
+    /**
+     * @returns the number of bytes the section of the given tree takes.
+     */
+    static int treeSectionSize(Regtree tree) {
+        return layoutOf(tree).end;
+    }
+
+    /**
+     * Writes the section of the given tree at the current position of buf, and advances the position past it.
+     * buf must be little-endian and have at least treeSectionSize(tree) bytes remaining.
+     */
+    static void writeTree(Regtree tree, ByteBuffer buf) {
+        TreeLayout l = layoutOf(tree);
+        int start = buf.position();
+        int n = tree.numNodes;
+
+        buf.putInt(start, l.numNodes);
+        buf.putInt(start+4, l.npred);
+        buf.putInt(start+8, l.logModel);
+        buf.putInt(start+12, l.flags);
+        buf.putInt(start+16, l.ncatsplit);
+        buf.putInt(start+20, l.numCatsplitValues);
+        buf.putInt(start+24, l.numResponses);
+        buf.putInt(start+28, 0);
+
+        int[] left = new int[n], right = new int[n];
+        for (int i=0; i < n; i++) {
+            left[i] = tree.children[i][0];
+            right[i] = tree.children[i][1];
+        }
+        putInts(buf, start + l.var, tree.var);
+        putInts(buf, start + l.left, left);
+        putInts(buf, start + l.right, right);
+        putInts(buf, start + l.parent, tree.parent);
+        putInts(buf, start + l.nodesize, tree.nodesize);
+
+        int[] offsets = new int[n+1];
+        for (int i=0; i < n; i++) {
+            offsets[i+1] = offsets[i] + numStoredResponses(tree, i);
+        }
+        putInts(buf, start + l.responseOffsets, offsets);
+
+        int[] catsplitOffsets = new int[l.ncatsplit+1];
+        for (int i=0; i < l.ncatsplit; i++) {
+            catsplitOffsets[i+1] = catsplitOffsets[i] + tree.catsplit[i].length;
+            putInts(buf, start + l.catsplitValues + 4*catsplitOffsets[i], tree.catsplit[i]);
+        }
+        putInts(buf, start + l.catsplitOffsets, catsplitOffsets);
+
+        putDoubles(buf, start + l.cut, tree.cut);
+        putDoubles(buf, start + l.nodepred, tree.nodepred);
+        putDoubles(buf, start + l.nodevar, tree.nodevar);
+        for (int i=0; i < n; i++) {
+            if (tree.resultsStoredInLeaves) {
+                putDoubles(buf, start + l.responses + 8*offsets[i], tree.getResponses(i));
+            } else {
+                putDoubles(buf, start + l.responses + 8*offsets[i], new double[]{tree.getResponseSum(i), tree.getResponseSumOfSq(i)});
+            }
+        }
+        if (tree.preprocessed) {
+            putDoubles(buf, start + l.weights, tree.weights);
+            putDoubles(buf, start + l.weightedpred, tree.weightedpred);
+            putDoubles(buf, start + l.weightedvar, tree.weightedvar);
+        }
+        ((Buffer) buf).position(start + l.end);
+    }
+
+    /**
+     * Reads the tree whose section starts at the current position of buf, and advances the position past it.
+     */
+    static Regtree readTree(ByteBuffer buf) {
+        int start = buf.position();
+        TreeLayout l = new TreeLayout(buf, start);
+        int n = l.numNodes;
+
+        Regtree tree = new Regtree(n, l.ncatsplit, l.resultsStoredInLeaves(), l.logModel);
+        tree.npred = l.npred;
+        for (int i=0; i < n; i++) tree.node[i] = i;
+        getInts(buf, start + l.var, tree.var);
+        getInts(buf, start + l.parent, tree.parent);
+        getInts(buf, start + l.nodesize, tree.nodesize);
+        int[] left = new int[n], right = new int[n];
+        getInts(buf, start + l.left, left);
+        getInts(buf, start + l.right, right);
+        for (int i=0; i < n; i++) {
+            tree.children[i][0] = left[i];
+            tree.children[i][1] = right[i];
+        }
+
+        int[] catsplitOffsets = new int[l.ncatsplit+1];
+        getInts(buf, start + l.catsplitOffsets, catsplitOffsets);
+        for (int i=0; i < l.ncatsplit; i++) {
+            tree.catsplit[i] = new int[catsplitOffsets[i+1] - catsplitOffsets[i]];
+            getInts(buf, start + l.catsplitValues + 4*catsplitOffsets[i], tree.catsplit[i]);
+        }
+
+        tree.nodepred = new double[n];
+        tree.nodevar = new double[n];
+        getDoubles(buf, start + l.cut, tree.cut);
+        getDoubles(buf, start + l.nodepred, tree.nodepred);
+        getDoubles(buf, start + l.nodevar, tree.nodevar);
+
+        int[] offsets = new int[n+1];
+        getInts(buf, start + l.responseOffsets, offsets);
+        double[] responses = new double[l.numResponses];
+        getDoubles(buf, start + l.responses, responses);
+        if (l.resultsStoredInLeaves()) {
+            tree.responseOffsets = offsets;
+            tree.responses = responses;
+        } else {
+            for (int i=0; i < n; i++) {
+                if (offsets[i+1] - offsets[i] != 2) {
+                    throw new IllegalStateException("Corrupt binary forest file: node " + i + " should store a sum and a sum of squares, but has " + (offsets[i+1] - offsets[i]) + " values.");
+                }
+                tree.ysum[i] = responses[offsets[i]];
+                tree.ysumOfSq[i] = responses[offsets[i]+1];
+            }
+        }
+
+        if (l.isPreprocessed()) {
+            tree.preprocessed = true;
+            tree.weights = new double[n];
+            tree.weightedpred = new double[n];
+            tree.weightedvar = new double[n];
+            getDoubles(buf, start + l.weights, tree.weights);
+            getDoubles(buf, start + l.weightedpred, tree.weightedpred);
+            getDoubles(buf, start + l.weightedvar, tree.weightedvar);
+        }
+        ((Buffer) buf).position(start + l.end);
+        return tree;
+    }
+
+    //======================================================================\\
+    //                        BEGIN HELPER FUNCTIONS                        \\
+    //======================================================================\\
+    private static int numStoredResponses(Regtree tree, int node) {
+        if (!tree.resultsStoredInLeaves) return 2; // sum, sum of squares
+        return tree.getNumResponses(node);
+    }
+
+    static int align8(int pos) {
+        return (pos + 7) & ~7;
+    }
+
+    static long align8(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static void putInts(ByteBuffer buf, int pos, int[] values) {
+        ByteBuffer dup = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) dup).position(pos);
+        dup.asIntBuffer().put(values);
+    }
+
+    private static void putDoubles(ByteBuffer buf, int pos, double[] values) {
+        ByteBuffer dup = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) dup).position(pos);
+        dup.asDoubleBuffer().put(values);
+    }
+
+    private static void getInts(ByteBuffer buf, int pos, int[] values) {
+        ByteBuffer dup = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) dup).position(pos);
+        dup.asIntBuffer().get(values);
+    }
+
+    private static void getDoubles(ByteBuffer buf, int pos, double[] values) {
+        ByteBuffer dup = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) dup).position(pos);
+        dup.asDoubleBuffer().get(values);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) throw new EOFException("Unexpected end of binary forest file.");
+            position += read;
+        }
+    }
+}
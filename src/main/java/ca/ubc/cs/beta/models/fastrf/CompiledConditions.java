@@ -0,0 +1,207 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * The conditions of RegtreeBuildParams (nameConditionsMapParentsArray, nameConditionsMapParentsValues and nameConditionsMapOp),
+ * compiled once per fit into flat arrays and opcodes, and evaluated against the NodeDomains of a node.
+ *
+ * A variable without an entry is always active; otherwise it is active if all conditions of at least one of its clauses hold.
+ * A condition on a categorical parent holds if every value compatible with the node satisfies it, so it is compiled into the
+ * set of values that satisfy it (bit v-1 for value v) and holds if the node's set of compatible values is a subset of it.
+ * A condition on a continuous parent is compared against the node's compatible range [lower, upper].
+ */
+strictfp final class CompiledConditions {
+    //=== Opcodes of the compiled conditions.
+    private static final int CAT_SUBSET = 0;
+    private static final int CONT_IN = 1; // EQ is IN with a single value
+    private static final int CONT_NEQ = 2;
+    private static final int CONT_LE = 3;
+    private static final int CONT_GR = 4;
+
+    private static final double EPS = Math.pow(10,-6);
+
+    /* Variables that appear as parents in a condition, in ascending order; NodeDomains needs to track their ranges. */
+    final int[] parents;
+
+    //=== The clauses of variable i are clauseStart[i]..clauseStart[i+1]-1 (none and unconditional[i] if it has no entry),
+    //=== the conditions of clause c are condStart[c]..condStart[c+1]-1, and the operands of condition k are
+    //=== operandStart[k]..operandEnd[k]-1 in masks (CAT_SUBSET) or in values (all other opcodes).
+    private final boolean[] unconditional;
+    private final int[] clauseStart;
+    private final int[] condStart;
+    private final int[] condOp;
+    private final int[] condParent;
+    private final int[] operandStart;
+    private final int[] operandEnd;
+    private final long[] masks;
+    private final double[] values;
+
+    /*
+     * @returns the compiled conditions of params, or null if there are none.
+     */
+    static CompiledConditions compile(RegtreeBuildParams params, int nvars) {
+        if (params.nameConditionsMapParentsArray == null || params.nameConditionsMapParentsArray.isEmpty()) return null;
+        return new CompiledConditions(params, nvars);
+    }
+
+    private CompiledConditions(RegtreeBuildParams params, int nvars) {
+        int[] catDomainSizes = params.catDomainSizes;
+        unconditional = new boolean[nvars];
+        clauseStart = new int[nvars+1];
+        int numClauses = 0, numConds = 0;
+        for (int idx=0; idx < nvars; idx++) {
+            int[][] parentsArray = params.nameConditionsMapParentsArray.get(idx);
+            unconditional[idx] = (parentsArray == null);
+            if (parentsArray != null) {
+                numClauses += parentsArray.length;
+                for (int[] clause : parentsArray) numConds += clause.length;
+            }
+        }
+        condStart = new int[numClauses+1];
+        condOp = new int[numConds];
+        condParent = new int[numConds];
+        operandStart = new int[numConds];
+        operandEnd = new int[numConds];
+        boolean[] isParent = new boolean[nvars];
+
+        //=== Compile the conditions, first counting the operands of each.
+        int[] opOf = new int[numConds];
+        double[][] valuesOf = new double[numConds][];
+        int numMaskWords = 0, numValues = 0;
+        for (int idx=0, c=0, k=0; idx < nvars; idx++) {
+            clauseStart[idx] = c;
+            if (unconditional[idx]) continue;
+            int[][] parentsArray = params.nameConditionsMapParentsArray.get(idx);
+            double[][][] parentsValues = params.nameConditionsMapParentsValues.get(idx);
+            int[][] ops = params.nameConditionsMapOp.get(idx);
+            if (parentsValues == null || ops == null) {
+                throw new IllegalArgumentException("Variable " + idx + " has conditional parents, but no values or operators for them.");
+            }
+            for (int i=0; i < parentsArray.length; i++, c++) {
+                condStart[c] = k;
+                for (int j=0; j < parentsArray[i].length; j++, k++) {
+                    int parent_idx = parentsArray[i][j];
+                    if (parent_idx < 0 || parent_idx >= nvars) {
+                        throw new IllegalArgumentException("Variable " + idx + " has parent " + parent_idx + ", but there are only " + nvars + " variables.");
+                    }
+                    double[] condValues = parentsValues[i][j];
+                    int op = ops[i][j];
+                    if (op < 0 || op > 4) {
+                        throw new IllegalArgumentException("Unknown operator " + op + " in a condition of variable " + idx);
+                    }
+                    isParent[parent_idx] = true;
+                    condParent[k] = parent_idx;
+                    opOf[k] = op;
+                    if (catDomainSizes[parent_idx] != 0) {
+                        condOp[k] = CAT_SUBSET;
+                        valuesOf[k] = condValues;
+                        numMaskWords += NodeDomains.words(catDomainSizes[parent_idx]);
+                    } else {
+                        condOp[k] = (op == 0 || op == 4 ? CONT_IN : op == 1 ? CONT_NEQ : op == 2 ? CONT_LE : CONT_GR);
+                        valuesOf[k] = (op == 4 ? condValues : new double[]{condValues[0]});
+                        numValues += valuesOf[k].length;
+                    }
+                }
+            }
+        }
+        condStart[numClauses] = numConds;
+        clauseStart[nvars] = numClauses;
+
+        masks = new long[numMaskWords];
+        values = new double[numValues];
+        for (int k=0, maskPos=0, valuePos=0; k < numConds; k++) {
+            if (condOp[k] == CAT_SUBSET) {
+                operandStart[k] = maskPos;
+                int domSize = catDomainSizes[condParent[k]];
+                for (int cv=1; cv <= domSize; cv++) {
+                    if (satisfies(cv, opOf[k], valuesOf[k])) {
+                        masks[maskPos + ((cv-1) >>> 6)] |= 1L << (cv-1);
+                    }
+                }
+                maskPos += NodeDomains.words(domSize);
+                operandEnd[k] = maskPos;
+            } else {
+                operandStart[k] = valuePos;
+                System.arraycopy(valuesOf[k], 0, values, valuePos, valuesOf[k].length);
+                valuePos += valuesOf[k].length;
+                operandEnd[k] = valuePos;
+            }
+        }
+
+        int numParents = 0;
+        for (int i=0; i < nvars; i++) {
+            if (isParent[i]) numParents++;
+        }
+        parents = new int[numParents];
+        for (int i=0, p=0; i < nvars; i++) {
+            if (isParent[i]) parents[p++] = i;
+        }
+    }
+
+    //=== Whether categorical value cv satisfies a condition, with the comparisons of the uncompiled conditions.
+    private static boolean satisfies(int cv, int op, double[] condValues) {
+        switch (op) {
+            case 0: return cv == condValues[0]; // EQ
+            case 1: return cv != condValues[0]; // NEQ
+            case 2: return cv < condValues[0];  // LE
+            case 3: return cv > condValues[0];  // GR
+            default: // IN
+                for (double ov : condValues) {
+                    if (cv == ov) return true;
+                }
+                return false;
+        }
+    }
+
+    /*
+     * Writes the variables that are active at the node with the given slot of domains to active, in ascending order.
+     * @returns the number of active variables.
+     */
+    int activeVars(int[] active, NodeDomains domains, int slot) {
+        int nvarsenabled = 0;
+        for (int idx=0; idx < unconditional.length; idx++) {
+            if (unconditional[idx]) {
+                active[nvarsenabled++] = idx;
+                continue;
+            }
+            for (int c=clauseStart[idx]; c < clauseStart[idx+1]; c++) {
+                if (holds(c, domains, slot)) {
+                    active[nvarsenabled++] = idx;
+                    break;
+                }
+            }
+        }
+        return nvarsenabled;
+    }
+
+    //=== Whether all conditions of clause c hold.
+    private boolean holds(int c, NodeDomains domains, int slot) {
+        for (int k=condStart[c]; k < condStart[c+1]; k++) {
+            int var = condParent[k];
+            int from = operandStart[k];
+            switch (condOp[k]) {
+                case CAT_SUBSET:
+                    if (!domains.isSubset(slot, var, masks, from)) return false;
+                    break;
+                case CONT_IN: {
+                    double lo = domains.lowerBound(slot, var), hi = domains.upperBound(slot, var);
+                    boolean oneFits = false;
+                    for (int v=from; v < operandEnd[k] && !oneFits; v++) {
+                        double ov = values[v];
+                        oneFits = (ov - lo < EPS && ov > lo && hi - ov < EPS && hi > ov);
+                    }
+                    if (!oneFits) return false;
+                    break;
+                }
+                case CONT_NEQ:
+                    if (!(values[from] < domains.lowerBound(slot, var) || values[from] > domains.upperBound(slot, var))) return false;
+                    break;
+                case CONT_LE:
+                    if (!(domains.lowerBound(slot, var) < values[from])) return false;
+                    break;
+                default: // CONT_GR
+                    if (!(domains.upperBound(slot, var) > values[from])) return false;
+            }
+        }
+        return true;
+    }
+}
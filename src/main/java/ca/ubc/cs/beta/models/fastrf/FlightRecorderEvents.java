@@ -0,0 +1,79 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * JDK Flight Recorder events for training and prediction, in the category "fastrf":
+ * one per learnModel call, per tree fit, per apply batch and per preprocessing of a forest.
+ * JFR records the duration and thread of each event; the events add the sizes of the work.
+ *
+ * Each begin method returns null unless JFR is recording the event, in which case the caller passes the result to the
+ * matching end method. So when JFR is not recording, the cost is one check per call and no timing.
+ *
+ * This class does not use jdk.jfr itself: the events and all code using them are in JfrRecorder, which the build compiles
+ * separately and which is loaded reflectively, so the rest of the library compiles with --release 8 and runs without jdk.jfr.
+ * If the JVM has no JFR (it has from Java 11, and Java 8 from update 262) or JfrRecorder is missing, begin always returns null.
+ */
+final class FlightRecorderEvents {
+    //=== Event types passed to Recorder.begin.
+    static final int LEARN_MODEL = 0, TREE_FIT = 1, APPLY = 2, PREPROCESS = 3;
+
+    /*
+     * Implemented by JfrRecorder. Events are passed around as Object, so that no jdk.jfr type appears outside of it.
+     */
+    interface Recorder {
+        Object begin(int type);
+        void endLearnModel(Object event, int N, int numVars, RandomForest forest);
+        void endTreeFit(Object event, int N, int numVars, int numNodes, int numLeaves, int depth, long presortNanos);
+        void endApply(Object event, String operation, int numPoints, int numVars, int numTrees);
+        void endPreprocess(Object event, String operation, int numInstances, RandomForest forest);
+    }
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    private FlightRecorderEvents() {
+    }
+
+    //=== Returns null if the JVM has no JFR or JfrRecorder was not built; JfrRecorder is only loaded if jdk.jfr is there.
+    private static Recorder loadRecorder() {
+        ClassLoader loader = FlightRecorderEvents.class.getClassLoader();
+        try {
+            Class.forName("jdk.jfr.Event", false, loader);
+            return (Recorder) Class.forName("ca.ubc.cs.beta.models.fastrf.JfrRecorder", true, loader).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    static Object beginLearnModel() {
+        return (RECORDER != null ? RECORDER.begin(LEARN_MODEL) : null);
+    }
+
+    static void endLearnModel(Object event, int N, int numVars, RandomForest forest) {
+        if (event != null) RECORDER.endLearnModel(event, N, numVars, forest);
+    }
+
+    static Object beginTreeFit() {
+        return (RECORDER != null ? RECORDER.begin(TREE_FIT) : null);
+    }
+
+    static void endTreeFit(Object event, int N, int numVars, int numNodes, int numLeaves, int depth, long presortNanos) {
+        if (event != null) RECORDER.endTreeFit(event, N, numVars, numNodes, numLeaves, depth, presortNanos);
+    }
+
+    static Object beginApply() {
+        return (RECORDER != null ? RECORDER.begin(APPLY) : null);
+    }
+
+    static void endApply(Object event, String operation, int numPoints, int numVars, int numTrees) {
+        if (event != null) RECORDER.endApply(event, operation, numPoints, numVars, numTrees);
+    }
+
+    static Object beginPreprocess() {
+        return (RECORDER != null ? RECORDER.begin(PREPROCESS) : null);
+    }
+
+    static void endPreprocess(Object event, String operation, int numInstances, RandomForest forest) {
+        if (event != null) RECORDER.endPreprocess(event, operation, numInstances, forest);
+    }
+}
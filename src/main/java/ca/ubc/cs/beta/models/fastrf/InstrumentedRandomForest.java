@@ -0,0 +1,136 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wraps a RandomForest to record the calls, batch sizes and latencies of its predictions in PredictionMetrics.
+ * The methods give the same results as the corresponding static methods of RandomForest.
+ *
+ * For apply and classify, one in depthSampleInterval data points (chosen at random) is also passed down every tree
+ * a second time to record the depth of the leaf it falls into; set depthSampleInterval to 0 to turn this off.
+ * While the metrics are disabled, each method only reads one volatile flag before calling RandomForest.
+ */
+public strictfp class InstrumentedRandomForest {
+    public final RandomForest forest;
+    public final PredictionMetrics metrics;
+    public volatile int depthSampleInterval = 64;
+
+    private final NodeDepths[] nodeDepths;
+
+    public InstrumentedRandomForest(RandomForest forest) {
+        this(forest, new PredictionMetrics());
+    }
+
+    /**
+     * Several forests can share one PredictionMetrics.
+     */
+    public InstrumentedRandomForest(RandomForest forest, PredictionMetrics metrics) {
+        this.forest = forest;
+        this.metrics = metrics;
+        this.nodeDepths = new NodeDepths[forest.numTrees];
+    }
+
+    /**
+     * @see RandomForest.apply(RandomForest, double[][])
+     */
+    public double[][] apply(double[][] X) {
+        if (!metrics.enabled) return RandomForest.apply(forest, X);
+        long start = System.nanoTime();
+        double[][] retn = RandomForest.apply(forest, X);
+        metrics.recordCall(PredictionMetrics.APPLY, X.length, System.nanoTime() - start);
+        sampleDepths(X, null, null);
+        return retn;
+    }
+
+    /**
+     * @see RandomForest.apply(RandomForest, double[][], double[][], int[][])
+     */
+    public double[][] apply(double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+        if (!metrics.enabled) return RandomForest.apply(forest, Theta, X, theta_inst_idxs);
+        long start = System.nanoTime();
+        double[][] retn = RandomForest.apply(forest, Theta, X, theta_inst_idxs);
+        metrics.recordCall(PredictionMetrics.APPLY, theta_inst_idxs.length, System.nanoTime() - start);
+        sampleDepths(Theta, X, theta_inst_idxs);
+        return retn;
+    }
+
+    /**
+     * @see RandomForest.applyMarginal(RandomForest, int[], double[][], double[][])
+     */
+    public double[][] applyMarginal(int[] tree_idxs_used, double[][] Theta, double[][] X) {
+        if (!metrics.enabled) return RandomForest.applyMarginal(forest, tree_idxs_used, Theta, X);
+        long start = System.nanoTime();
+        double[][] retn = RandomForest.applyMarginal(forest, tree_idxs_used, Theta, X);
+        metrics.recordCall(PredictionMetrics.MARGINAL, Theta.length, System.nanoTime() - start);
+        return retn;
+    }
+
+    public double[][] applyMarginal(int[] tree_idxs_used, double[][] Theta) {
+        return applyMarginal(tree_idxs_used, Theta, null);
+    }
+
+    /**
+     * @see RandomForest.classify
+     */
+    public double[] classify(double[][] X) {
+        if (!metrics.enabled) return RandomForest.classify(forest, X);
+        long start = System.nanoTime();
+        double[] retn = RandomForest.classify(forest, X);
+        metrics.recordCall(PredictionMetrics.CLASSIFY, X.length, System.nanoTime() - start);
+        sampleDepths(X, null, null);
+        return retn;
+    }
+
+    //=== Rows are either X (if theta_inst_idxs is null) or the (configuration, instance) pairs of theta_inst_idxs.
+    private void sampleDepths(double[][] ThetaOrX, double[][] X, int[][] theta_inst_idxs) {
+        int interval = depthSampleInterval;
+        int n = (theta_inst_idxs == null ? ThetaOrX.length : theta_inst_idxs.length);
+        if (interval <= 0 || n == 0) return;
+        int first = ThreadLocalRandom.current().nextInt(interval);
+        if (first >= n) return;
+        int numSamples = (n - first - 1) / interval + 1;
+        double[][] sampleX = null;
+        int[][] sampleIdxs = null;
+        if (theta_inst_idxs == null) {
+            sampleX = new double[numSamples][];
+            for (int s=0; s < numSamples; s++) sampleX[s] = ThetaOrX[first + s*interval];
+        } else {
+            sampleIdxs = new int[numSamples][];
+            for (int s=0; s < numSamples; s++) sampleIdxs[s] = theta_inst_idxs[first + s*interval];
+        }
+        for (int i=0; i < forest.numTrees; i++) {
+            Regtree tree = forest.Trees[i];
+            int[] leaves = (sampleX != null ? RegtreeFwd.fwd(tree, sampleX) : RegtreeFwd.fwd(tree, ThetaOrX, X, sampleIdxs));
+            int[] depths = depths(i, tree);
+            for (int s=0; s < numSamples; s++) {
+                metrics.recordTreeDepth(depths[leaves[s]]);
+            }
+        }
+    }
+
+    /**
+     * @returns the depth of each node of the tree, computed once per tree. Children always have larger indices than their parents.
+     */
+    private int[] depths(int treeIdx, Regtree tree) {
+        NodeDepths cached = nodeDepths[treeIdx];
+        if (cached != null && cached.tree == tree) return cached.depth;
+        int[] depth = new int[tree.numNodes];
+        for (int i=0; i < tree.numNodes; i++) {
+            if (tree.var[i] != 0) {
+                depth[tree.children[i][0]] = depth[tree.children[i][1]] = depth[i] + 1;
+            }
+        }
+        nodeDepths[treeIdx] = new NodeDepths(tree, depth); // final fields, so safe to publish without synchronization
+        return depth;
+    }
+
+    private static final class NodeDepths {
+        final Regtree tree;
+        final int[] depth;
+
+        NodeDepths(Regtree tree, int[] depth) {
+            this.tree = tree;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events of FlightRecorderEvents, and the only class of the library that uses jdk.jfr.
+ * It needs Java 11 (or Java 8 from update 262) to compile, so the build compiles it separately from the rest of the library,
+ * and FlightRecorderEvents only loads it, reflectively, if the JVM has JFR.
+ */
+final class JfrRecorder implements FlightRecorderEvents.Recorder {
+    public Object begin(int type) {
+        Event e;
+        switch (type) {
+            case FlightRecorderEvents.LEARN_MODEL: e = new LearnModelEvent(); break;
+            case FlightRecorderEvents.TREE_FIT: e = new TreeFitEvent(); break;
+            case FlightRecorderEvents.APPLY: e = new ApplyEvent(); break;
+            default: e = new PreprocessEvent(); break;
+        }
+        if (!e.isEnabled()) return null;
+        e.begin();
+        return e;
+    }
+
+    public void endLearnModel(Object event, int N, int numVars, RandomForest forest) {
+        LearnModelEvent e = (LearnModelEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.numDataPoints = N;
+            e.numVars = numVars;
+            e.numTrees = forest.numTrees;
+            e.numNodes = numNodes(forest);
+            e.commit();
+        }
+    }
+
+    public void endTreeFit(Object event, int N, int numVars, int numNodes, int numLeaves, int depth, long presortNanos) {
+        TreeFitEvent e = (TreeFitEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.numDataPoints = N;
+            e.numVars = numVars;
+            e.numNodes = numNodes;
+            e.numLeaves = numLeaves;
+            e.depth = depth;
+            e.presortNanos = presortNanos;
+            e.commit();
+        }
+    }
+
+    public void endApply(Object event, String operation, int numPoints, int numVars, int numTrees) {
+        ApplyEvent e = (ApplyEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.operation = operation;
+            e.numPoints = numPoints;
+            e.numVars = numVars;
+            e.numTrees = numTrees;
+            e.commit();
+        }
+    }
+
+    public void endPreprocess(Object event, String operation, int numInstances, RandomForest forest) {
+        PreprocessEvent e = (PreprocessEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.operation = operation;
+            e.numInstances = numInstances;
+            e.numTrees = forest.numTrees;
+            e.numNodes = numNodes(forest);
+            e.commit();
+        }
+    }
+
+    private static long numNodes(RandomForest forest) {
+        long numNodes = 0;
+        for (int i=0; i < forest.numTrees; i++) {
+            numNodes += forest.Trees[i].numNodes;
+        }
+        return numNodes;
+    }
+
+    @Name("ca.ubc.cs.beta.models.fastrf.LearnModel")
+    @Label("Random Forest Training")
+    @Category("fastrf")
+    @Description("A call of RandomForest.learnModel or learnModelImputedValues")
+    static final class LearnModelEvent extends Event {
+        @Label("Data Points") int numDataPoints;
+        @Label("Variables") int numVars;
+        @Label("Trees") int numTrees;
+        @Label("Nodes") long numNodes;
+    }
+
+    @Name("ca.ubc.cs.beta.models.fastrf.TreeFit")
+    @Label("Regression Tree Fit")
+    @Category("fastrf")
+    @Description("A call of RegtreeFit.fit")
+    static final class TreeFitEvent extends Event {
+        @Label("Data Points") int numDataPoints;
+        @Label("Variables") int numVars;
+        @Label("Nodes") int numNodes;
+        @Label("Leaves") int numLeaves;
+        @Label("Depth") int depth;
+        @Label("Presort Time (ns)") long presortNanos;
+    }
+
+    @Name("ca.ubc.cs.beta.models.fastrf.Apply")
+    @Label("Random Forest Prediction")
+    @Category("fastrf")
+    @Description("A batch of predictions by RandomForest.apply, applyCrossProduct or applyMarginal")
+    static final class ApplyEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Points") int numPoints;
+        @Label("Variables") int numVars;
+        @Label("Trees") int numTrees;
+    }
+
+    @Name("ca.ubc.cs.beta.models.fastrf.Preprocess")
+    @Label("Random Forest Preprocessing")
+    @Category("fastrf")
+    @Description("Preprocessing of a forest for marginal predictions or classification")
+    static final class PreprocessEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Instances") int numInstances;
+        @Label("Trees") int numTrees;
+        @Label("Nodes") long numNodes;
+    }
+}
@@ -0,0 +1,202 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A random forest in a binary forest file (see BinaryForestFile) whose trees are read on first access.
+ *
+ * Only the header and the tree index are read when the file is opened. At most maxResidentTrees trees
+ * are kept in memory; when another tree is needed, the least recently used one is evicted.
+ * The static prediction methods go through the requested trees one at a time, so they work for forests
+ * far larger than the heap, and give the same results as the corresponding methods of RandomForest.
+ */
+public strictfp class LazyRandomForest implements Closeable {
+    public int numTrees;
+    public int logModel;
+    public double minVariance;
+
+    private final FileChannel channel;
+    private final BinaryForestFile.Header header;
+    private final int maxResidentTrees;
+    private final LinkedHashMap<Integer, Regtree> resident;
+    private long numTreeLoads = 0;
+
+    private LazyRandomForest(FileChannel channel, BinaryForestFile.Header header, final int maxResidentTrees) {
+        this.channel = channel;
+        this.header = header;
+        this.numTrees = header.numTrees;
+        this.logModel = header.buildParams.logModel;
+        this.minVariance = header.buildParams.minVariance;
+        this.maxResidentTrees = maxResidentTrees;
+        this.resident = new LinkedHashMap<Integer, Regtree>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<Integer, Regtree> eldest) {
+                return size() > maxResidentTrees;
+            }
+        };
+    }
+
+    /**
+     * Opens the given binary forest file, keeping at most maxResidentTrees trees in memory.
+     */
+    public static LazyRandomForest open(File f, int maxResidentTrees) throws IOException {
+        if (maxResidentTrees <= 0) {
+            throw new IllegalArgumentException("maxResidentTrees must be positive, but is " + maxResidentTrees);
+        }
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            return new LazyRandomForest(channel, BinaryForestFile.readHeader(channel), maxResidentTrees);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public RegtreeBuildParams getBuildParams() {
+        return header.buildParams;
+    }
+
+    /**
+     * @returns the given tree, reading it from the file if it is not resident.
+     */
+    public synchronized Regtree getTree(int i) {
+        if (i < 0 || i >= numTrees) {
+            throw new IllegalArgumentException("Tree index " + i + " is out of range; the forest has " + numTrees + " trees.");
+        }
+        Regtree tree = resident.get(i);
+        if (tree == null) {
+            tree = readTree(i);
+            resident.put(i, tree);
+        }
+        return tree;
+    }
+
+    public synchronized int getNumResidentTrees() {
+        return resident.size();
+    }
+
+    /**
+     * @returns how often a tree was read from the file so far.
+     */
+    public synchronized long getNumTreeLoads() {
+        return numTreeLoads;
+    }
+
+    /**
+     * @returns a RandomForest that contains the given trees and null for all others, for use with the methods of RandomForest
+     * that take tree_idxs_used. The view holds on to its trees independently of the resident set.
+     */
+    public RandomForest view(int[] tree_idxs_used) {
+        RandomForest forest = new RandomForest(numTrees, header.buildParams);
+        for (int idx : tree_idxs_used) {
+            forest.Trees[idx] = getTree(idx);
+        }
+        return forest;
+    }
+
+    /**
+     * Reads all trees into a regular RandomForest.
+     */
+    public RandomForest materialize() {
+        RandomForest forest = new RandomForest(numTrees, header.buildParams);
+        for (int i=0; i < numTrees; i++) {
+            forest.Trees[i] = getTree(i);
+        }
+        return forest;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            resident.clear();
+        }
+        channel.close();
+    }
+
+    private Regtree readTree(int i) {
+        ByteBuffer section = ByteBuffer.allocate(header.treeSectionSize(i)).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            BinaryForestFile.readFully(channel, section, header.treeOffsets[i]);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read tree " + i + " of the binary forest file.", e);
+        }
+        ((Buffer) section).flip(); // through Buffer, so that this also links on Java 8
+        numTreeLoads++;
+        return BinaryForestFile.readTree(section);
+    }
+
+    //======================================================================\\
+    //                           PREDICTIONS                                \\
+    //======================================================================\\
+
+    /**
+     * @see RandomForest.apply
+     */
+    public static double[][] apply(LazyRandomForest forest, double[][] X) {
+        boolean brokenVarianceCalculation = forest.getBuildParams().brokenVarianceCalculation;
+        double[][] retn = new double[X.length][2]; // mean, var
+        for (int i=0; i < forest.numTrees; i++) {
+            Regtree tree = forest.getTree(i);
+            int[] result = RegtreeFwd.fwd(tree, X);
+            for (int j=0; j < X.length; j++) {
+                RandomForest.addTreePrediction(retn[j], tree.nodepred[result[j]], tree.nodevar[result[j]], forest.logModel, brokenVarianceCalculation);
+            }
+        }
+        RandomForest.finalizePredictions(retn, forest.numTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    /**
+     * @see RandomForest.applyMarginal
+     */
+    public static double[][] applyMarginal(LazyRandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+        int nTheta = Theta.length, nTrees = tree_idxs_used.length;
+        double[][] retn = new double[nTheta][2]; // mean, var
+        for (int i=0; i < nTrees; i++) {
+            Object[] result = RegtreeFwd.marginalFwd(forest.getTree(tree_idxs_used[i]), Theta, X);
+            double[] preds = (double[])result[0];
+            double[] vars = (double[])result[1];
+            for (int j=0; j < nTheta; j++) {
+                double pred = preds[j];
+                if (forest.logModel>0) {
+                    pred = Math.log10(pred);
+                }
+                retn[j][0] += pred;
+                retn[j][1] += vars[j]+pred*pred;
+            }
+        }
+        RandomForest.finalizePredictions(retn, nTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    /**
+     * @see RandomForest.marginalTreePredictions
+     */
+    public static double[][] marginalTreePredictions(LazyRandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+        int nTheta = Theta.length, nTrees = tree_idxs_used.length;
+        double[][] retn = new double[nTheta][nTrees];
+        for (int i=0; i < nTrees; i++) {
+            Object[] result = RegtreeFwd.marginalFwd(forest.getTree(tree_idxs_used[i]), Theta, X);
+            double[] preds = (double[])result[0];
+            for (int j=0; j < nTheta; j++) {
+                double pred = preds[j];
+                if (forest.logModel>0) {
+                    pred = Math.log10(pred);
+                }
+                retn[j][i] = pred;
+            }
+        }
+        return retn;
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.util.Arrays;
+
+/**
+ * Marginal performance of one or two parameters, stored as the exact piecewise constant function
+ * defined by the cut points of the tree(s) on these parameters.
+ *
+ * For a continuous axis, breakpoints[axis] holds the sorted interval bounds, and cell c is the interval
+ * (breakpoints[axis][c], breakpoints[axis][c+1]); there are breakpoints[axis].length-1 cells.
+ * For a categorical axis, breakpoints[axis] holds the (0-indexed) domain values, one cell per value.
+ *
+ * values holds one marginal prediction per cell; for two axes it is row-major, i.e. cell (c1,c2)
+ * is at index c1*numCells(1) + c2. variances is only set for curves computed across several trees,
+ * and holds the variance of the marginal across these trees.
+ *
+ * Note that marginalPerformance treats leaf bounds as closed intervals, so evaluating it exactly at a
+ * breakpoint can differ from the value of the adjacent cells.
+ */
+public strictfp class MarginalCurve implements java.io.Serializable {
+    private static final long serialVersionUID = -2314789063478260147L;
+
+    public int[] dims;
+    public boolean[] isCategorical;
+    public double[][] breakpoints;
+    public double[] values;
+    public double[] variances;
+
+    public MarginalCurve(int[] dims, boolean[] isCategorical, double[][] breakpoints) {
+        if (dims.length != isCategorical.length || dims.length != breakpoints.length) {
+            throw new IllegalArgumentException("dims, isCategorical and breakpoints must have the same length.");
+        }
+        this.dims = dims;
+        this.isCategorical = isCategorical;
+        this.breakpoints = breakpoints;
+        int numCells = 1;
+        for (int axis=0; axis < dims.length; axis++) {
+            numCells *= numCells(axis);
+        }
+        values = new double[numCells];
+    }
+
+    public int numAxes() {
+        return dims.length;
+    }
+
+    /**
+     * @returns the number of cells along the given axis.
+     */
+    public int numCells(int axis) {
+        if (isCategorical[axis]) return breakpoints[axis].length;
+        return Math.max(0, breakpoints[axis].length - 1);
+    }
+
+    public double value(int cell) {
+        return values[cell];
+    }
+
+    public double value(int cell1, int cell2) {
+        return values[cell1 * numCells(1) + cell2];
+    }
+
+    /**
+     * @returns the cell on the given axis that contains x, or -1 if x lies outside of the curve's domain.
+     * A value that is exactly on a breakpoint is assigned to the cell to its left, as in RegtreeFwd.fwd.
+     */
+    public int cellOf(int axis, double x) {
+        double[] b = breakpoints[axis];
+        if (isCategorical[axis]) {
+            int idx = Arrays.binarySearch(b, x);
+            return (idx < 0 ? -1 : idx);
+        }
+        if (b.length < 2 || x < b[0] || x > b[b.length-1]) return -1;
+        int idx = Arrays.binarySearch(b, x);
+        if (idx >= 0) return Math.max(0, idx-1);
+        return -idx-2;
+    }
+
+    /**
+     * @returns the midpoint of the given cell (or the categorical value of the cell).
+     */
+    public double representativeValue(int axis, int cell) {
+        double[] b = breakpoints[axis];
+        if (isCategorical[axis]) return b[cell];
+        return (b[cell] + b[cell+1]) / 2;
+    }
+}
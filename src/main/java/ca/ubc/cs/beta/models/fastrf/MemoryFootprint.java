@@ -0,0 +1,306 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Heap memory used by trees and forests, broken down by component, and estimates of the peak memory of learnModel.
+ *
+ * Sizes follow the HotSpot object layout: 8-byte alignment, and 4-byte references, 12-byte object headers
+ * and 16-byte array headers with compressed oops (8, 16 and 24 bytes without). Each object is counted once,
+ * in the first component that reaches it, so arrays shared between trees (e.g., by preprocessed trees,
+ * see RegtreeFwd.preprocess_inst_splits) are not counted twice. The condition maps of the build params and the
+ * java.util collections of the leaf info are estimated from their sizes, since their capacity is not visible.
+ */
+public strictfp class MemoryFootprint {
+    public static final boolean COMPRESSED_OOPS = usesCompressedOops();
+    public static final int REFERENCE_BYTES = (COMPRESSED_OOPS ? 4 : 8);
+    public static final int OBJECT_HEADER_BYTES = (COMPRESSED_OOPS ? 12 : 16);
+    public static final int ARRAY_HEADER_BYTES = (COMPRESSED_OOPS ? 16 : 24);
+
+    private final LinkedHashMap<String, Long> bytesByComponent = new LinkedHashMap<String, Long>();
+    private final IdentityHashMap<Object, Boolean> counted = new IdentityHashMap<Object, Boolean>();
+
+    private MemoryFootprint() {
+    }
+
+    /**
+     * @returns the bytes retained by the given tree. Components: object, structure (node, parent, var, cut, children, nodesize),
+     * catsplit, responses, statistics (nodepred, nodevar), preprocessing, classification and leafInfo.
+     */
+    public static MemoryFootprint of(Regtree tree) {
+        MemoryFootprint f = new MemoryFootprint();
+        f.addTree(tree);
+        return f;
+    }
+
+    /**
+     * @returns the bytes retained by the given forest, with the components of all trees summed up, plus forest and buildParams.
+     */
+    public static MemoryFootprint of(RandomForest forest) {
+        MemoryFootprint f = new MemoryFootprint();
+        f.add("forest", forest, objectBytes(RandomForest.class));
+        f.add("forest", forest.Trees, arrayBytes(REFERENCE_BYTES, forest.Trees.length));
+        f.addBuildParams(forest.getBuildParams());
+        for (Regtree tree : forest.Trees) {
+            if (tree != null) f.addTree(tree);
+        }
+        return f;
+    }
+
+    /**
+     * Estimates the peak heap memory of RandomForest.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, params)
+     * for N data points, numTheta configurations with dimTheta parameters and numX instances with dimX features.
+     * Components: input (the arguments), bootstrap (dataIdxs and the data of one tree), fit (the working set of
+     * RegtreeFit.fit), and trees (all trees, assuming the largest possible tree of 2N-1 nodes, so this is an upper bound).
+     */
+    public static MemoryFootprint estimateTraining(int N, int numTheta, int dimTheta, int numX, int dimX, int numTrees, RegtreeBuildParams params) {
+        MemoryFootprint f = new MemoryFootprint();
+        int maxDomSize = 0, numCatVars = 0, numContTheta = dimTheta, numContX = dimX;
+        if (params.catDomainSizes != null) {
+            for (int i=0; i < params.catDomainSizes.length; i++) {
+                int size = params.catDomainSizes[i];
+                maxDomSize = Math.max(maxDomSize, size);
+                if (size > 0) {
+                    numCatVars++;
+                    if (i < dimTheta) numContTheta--;
+                    else numContX--;
+                }
+            }
+        }
+        long idxPair = arrayBytes(4, 2);
+
+        //=== The arguments of learnModel.
+        f.add("input", arrayBytes(REFERENCE_BYTES, numTheta) + numTheta*arrayBytes(8, dimTheta));
+        f.add("input", arrayBytes(REFERENCE_BYTES, numX) + numX*arrayBytes(8, dimX));
+        f.add("input", arrayBytes(REFERENCE_BYTES, N) + N*idxPair + arrayBytes(8, N));
+
+        //=== dataIdxs of learnModel, and the bootstrapped indices and responses of the tree being fit.
+        f.add("bootstrap", arrayBytes(REFERENCE_BYTES, numTrees) + numTrees*arrayBytes(4, N));
+        f.add("bootstrap", arrayBytes(REFERENCE_BYTES, N) + arrayBytes(8, N));
+
+        //=== RegtreeFit.fit: the compacted data indices, the per-node arrays of size 2N and the per-point arrays of size N.
+        int numVars = dimTheta + dimX, maxNM = Math.max(N, maxDomSize), maxPrimary = Math.max(numTheta, numX);
+        f.add("fit", arrayBytes(REFERENCE_BYTES, N) + N*idxPair);
+        f.add("fit", 7*arrayBytes(4, 2L*N) + arrayBytes(8, 2L*N) + 4*arrayBytes(REFERENCE_BYTES, 2L*N));
+        f.add("fit", arrayBytes(8, N) + 3*arrayBytes(4, N) + arrayBytes(1, N));
+        f.add("fit", 3*arrayBytes(4, maxNM) + arrayBytes(4, maxNM+1) + arrayBytes(8, maxNM+1));
+        f.add("fit", 4*arrayBytes(4, maxDomSize) + arrayBytes(8, maxDomSize) + arrayBytes(4, numVars));
+        f.add("fit", arrayBytes(8, maxPrimary) + arrayBytes(1, maxPrimary));
+        f.add("fit", arrayBytes(REFERENCE_BYTES, dimTheta) + numContTheta*arrayBytes(4, numTheta));
+        f.add("fit", arrayBytes(REFERENCE_BYTES, dimX) + numContX*arrayBytes(4, numX));
+        // The data indices of the nodes on the DFS stack partition the data; each pending node also has one array
+        // per configuration and instance. We assume a stack of about 2*log2(N) nodes.
+        int pending = 2*(32 - Integer.numberOfLeadingZeros(Math.max(N, 1)));
+        f.add("fit", 2*arrayBytes(4, N) + 2L*numTheta*ARRAY_HEADER_BYTES + 2L*numX*ARRAY_HEADER_BYTES);
+        f.add("fit", pending*(arrayBytes(REFERENCE_BYTES, numTheta) + arrayBytes(REFERENCE_BYTES, numX)));
+
+        //=== The trees: 2N-1 nodes, each split node with one catsplit array of up to maxDomSize values.
+        long numNodes = Math.max(2L*N - 1, 1);
+        long tree = objectBytes(Regtree.class);
+        tree += 4*arrayBytes(4, numNodes) + 3*arrayBytes(8, numNodes);
+        tree += arrayBytes(REFERENCE_BYTES, numNodes) + numNodes*idxPair;
+        if (numCatVars > 0) {
+            tree += arrayBytes(REFERENCE_BYTES, numNodes/2) + (numNodes/2)*arrayBytes(4, maxDomSize);
+        }
+        if (params.storeResponses) {
+            tree += arrayBytes(8, N) + arrayBytes(4, numNodes+1);
+        } else {
+            tree += 2*arrayBytes(8, numNodes);
+        }
+        f.add("trees", arrayBytes(REFERENCE_BYTES, numTrees) + numTrees*tree);
+        return f;
+    }
+
+    public long getBytes(String component) {
+        Long bytes = bytesByComponent.get(component);
+        return (bytes == null ? 0 : bytes);
+    }
+
+    public Map<String, Long> getBytesByComponent() {
+        return Collections.unmodifiableMap(bytesByComponent);
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long bytes : bytesByComponent.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    public String toString() {
+        return bytesByComponent + " total=" + getTotalBytes();
+    }
+
+    //======================================================================\\
+    //                           OBJECT SIZES                               \\
+    //======================================================================\\
+
+    /**
+     * @returns the size of an array with the given element size and length.
+     */
+    public static long arrayBytes(int elementBytes, long length) {
+        return align8(ARRAY_HEADER_BYTES + elementBytes*length);
+    }
+
+    /**
+     * @returns the shallow size of an instance of the given class, from its instance fields.
+     */
+    public static long objectBytes(Class<?> c) {
+        long bytes = OBJECT_HEADER_BYTES;
+        for (; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                bytes += fieldBytes(field.getType());
+            }
+        }
+        return align8(bytes);
+    }
+
+    private static int fieldBytes(Class<?> type) {
+        if (!type.isPrimitive()) return REFERENCE_BYTES;
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        return 1;
+    }
+
+    private static long align8(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private void add(String component, long bytes) {
+        Long old = bytesByComponent.get(component);
+        bytesByComponent.put(component, (old == null ? 0 : old) + bytes);
+    }
+
+    private void add(String component, Object o, long bytes) {
+        if (o == null || counted.put(o, Boolean.TRUE) != null) return;
+        add(component, bytes);
+    }
+
+    /**
+     * Adds an array and, for arrays of arrays and of collections, everything it references.
+     */
+    private void addArray(String component, Object a) {
+        if (a == null || counted.containsKey(a)) return;
+        if (a instanceof int[]) add(component, a, arrayBytes(4, ((int[]) a).length));
+        else if (a instanceof double[]) add(component, a, arrayBytes(8, ((double[]) a).length));
+        else if (a instanceof boolean[]) add(component, a, arrayBytes(1, ((boolean[]) a).length));
+        else if (a instanceof Object[]) {
+            Object[] array = (Object[]) a;
+            add(component, a, arrayBytes(REFERENCE_BYTES, array.length));
+            for (Object element : array) {
+                if (element instanceof Set) addSet(component, (Set<?>) element);
+                else addArray(component, element);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported array type " + a.getClass().getName());
+        }
+    }
+
+    //=== HashSet<Integer>: the set, its HashMap, a table of the default capacity for its size, and one node per element.
+    private void addSet(String component, Set<?> set) {
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, (int)(set.size()/0.75f)))*2);
+        long bytes = align8(OBJECT_HEADER_BYTES + REFERENCE_BYTES) + align8(OBJECT_HEADER_BYTES + 3*REFERENCE_BYTES + 4*4 + 4);
+        bytes += arrayBytes(REFERENCE_BYTES, capacity) + set.size()*align8(OBJECT_HEADER_BYTES + 4 + 3*REFERENCE_BYTES);
+        for (Object element : set) {
+            bytes += boxedIntegerBytes(element);
+        }
+        add(component, set, bytes);
+    }
+
+    private void addVector(String component, Vector<Integer> vector) {
+        if (vector == null) return;
+        long bytes = objectBytes(Vector.class) + arrayBytes(REFERENCE_BYTES, vector.capacity());
+        for (Integer element : vector) {
+            bytes += boxedIntegerBytes(element);
+        }
+        add(component, vector, bytes);
+    }
+
+    //=== Integers in [-128, 127] come from Integer.valueOf's cache and are not retained by the collection.
+    private static long boxedIntegerBytes(Object element) {
+        if (element instanceof Integer && (Integer) element >= -128 && (Integer) element <= 127) return 0;
+        return align8(OBJECT_HEADER_BYTES + 4);
+    }
+
+    private void addTree(Regtree tree) {
+        add("object", tree, objectBytes(Regtree.class));
+
+        addArray("structure", tree.node);
+        addArray("structure", tree.parent);
+        addArray("structure", tree.var);
+        addArray("structure", tree.cut);
+        addArray("structure", tree.children);
+        addArray("structure", tree.nodesize);
+
+        addArray("catsplit", tree.catsplit);
+
+        addArray("responses", tree.responses);
+        addArray("responses", tree.responseOffsets);
+        addArray("responses", tree.responseOverflow);
+        addArray("responses", tree.numOverflow);
+        addArray("responses", tree.ysum);
+        addArray("responses", tree.ysumOfSq);
+        addArray("responses", tree.ysub);
+
+        addArray("statistics", tree.nodepred);
+        addArray("statistics", tree.nodevar);
+
+        addArray("preprocessing", tree.weights);
+        addArray("preprocessing", tree.weightedpred);
+        addArray("preprocessing", tree.weightedvar);
+
+        addArray("classification", tree.bestClasses);
+
+        addArray("leafInfo", tree.leafContLB);
+        addArray("leafInfo", tree.leafContUB);
+        addArray("leafInfo", tree.leafallCatValues);
+        addArray("leafInfo", tree.leafDomainPercentage);
+        addArray("leafInfo", tree.isCatDimension);
+        addArray("leafInfo", tree.categoricalDomainSizes);
+        addVector("leafInfo", tree.leafIndices);
+    }
+
+    private void addBuildParams(RegtreeBuildParams params) {
+        if (params == null) return;
+        add("buildParams", params, objectBytes(RegtreeBuildParams.class));
+        addArray("buildParams", params.catDomainSizes);
+        addConditionMap(params.nameConditionsMapParentsArray);
+        addConditionMap(params.nameConditionsMapParentsValues);
+        addConditionMap(params.nameConditionsMapOp);
+    }
+
+    //=== HashMap<Integer, array>: the map, its table, one node and one key per entry, and the arrays.
+    private void addConditionMap(Map<Integer, ?> map) {
+        if (map == null) return;
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, (int)(map.size()/0.75f)))*2);
+        long bytes = align8(OBJECT_HEADER_BYTES + 3*REFERENCE_BYTES + 4*4 + 4) + arrayBytes(REFERENCE_BYTES, capacity);
+        for (Object key : map.keySet()) {
+            bytes += align8(OBJECT_HEADER_BYTES + 4 + 3*REFERENCE_BYTES) + boxedIntegerBytes(key);
+        }
+        add("buildParams", map, bytes);
+        for (Object value : map.values()) {
+            addArray("buildParams", value);
+        }
+    }
+
+    //=== Asks HotSpot whether compressed oops are on; other JVMs use them for heaps below 32GB as well.
+    private static boolean usesCompressedOops() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(hotspot.getVMOption("UseCompressedOops").getValue());
+        } catch (Throwable e) {
+            return Runtime.getRuntime().maxMemory() < (32L << 30);
+        }
+    }
+}
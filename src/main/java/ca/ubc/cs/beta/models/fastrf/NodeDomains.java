@@ -0,0 +1,127 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.util.Arrays;
+
+/**
+ * The domains of the variables at the nodes on the DFS stack of RegtreeFit, maintained incrementally as children are created.
+ * For each categorical variable this is the set of values compatible with the splits leading to the node (bit v-1 for value v),
+ * and for each tracked continuous variable the compatible range [lower, upper], which is [0,1] at the root.
+ *
+ * There is one slot per stack position. When a node is split, its slot is copied to the slot of the second child, and both
+ * are narrowed by the split, so domain queries are O(1) instead of a walk up to the root.
+ * All slots are allocated up front, so that maintaining the domains never allocates during the fit.
+ */
+strictfp final class NodeDomains {
+    private final int[] catDomainSizes;
+    private final int[] wordStart;  // per variable, its first word in a slot
+    private final int[] boundStart; // per variable, its lower bound in a slot (the upper bound follows), or -1 if not tracked
+    private final int numWords;
+    private final int numBounds;
+
+    private final long[] words;
+    private final double[] bounds;
+
+    /*
+     * Tracks all categorical variables, and the ranges of the continuous variables in trackedRanges, in numSlots slots.
+     */
+    NodeDomains(int[] catDomainSizes, int[] trackedRanges, int numSlots) {
+        this.catDomainSizes = catDomainSizes;
+        wordStart = new int[catDomainSizes.length];
+        boundStart = new int[catDomainSizes.length];
+        Arrays.fill(boundStart, -1);
+        int w = 0, b = 0;
+        for (int var=0; var < catDomainSizes.length; var++) {
+            wordStart[var] = w;
+            w += words(catDomainSizes[var]);
+        }
+        for (int var : trackedRanges) {
+            if (catDomainSizes[var] == 0 && boundStart[var] == -1) {
+                boundStart[var] = b;
+                b += 2;
+            }
+        }
+        numWords = w;
+        numBounds = b;
+        words = new long[numSlots*numWords];
+        bounds = new double[numSlots*numBounds];
+    }
+
+    static int words(int domSize) {
+        return (domSize + 63) >>> 6;
+    }
+
+    //=== Set the domains of slot to the entire domains, as at the root.
+    void setRoot(int slot) {
+        for (int var=0; var < catDomainSizes.length; var++) {
+            int domSize = catDomainSizes[var];
+            if (domSize == 0) continue;
+            int start = slot*numWords + wordStart[var], end = start + words(domSize);
+            Arrays.fill(words, start, end, -1L);
+            if ((domSize & 63) != 0) words[end-1] = (1L << domSize) - 1;
+        }
+        for (int b=slot*numBounds; b < (slot+1)*numBounds; b += 2) {
+            bounds[b] = 0; // Continuous inputs to the RF are normalized to [0,1].
+            bounds[b+1] = 1;
+        }
+    }
+
+    void copy(int fromSlot, int toSlot) {
+        System.arraycopy(words, fromSlot*numWords, words, toSlot*numWords, numWords);
+        System.arraycopy(bounds, fromSlot*numBounds, bounds, toSlot*numBounds, numBounds);
+    }
+
+    //=== Narrow the domains of slot by a split: the compatible values of a categorical variable are those of its side of the split.
+    void setCompatibleValues(int slot, int var, int[] values) {
+        int start = slot*numWords + wordStart[var];
+        Arrays.fill(words, start, start + words(catDomainSizes[var]), 0L);
+        for (int v : values) {
+            words[start + ((v-1) >>> 6)] |= 1L << (v-1);
+        }
+    }
+
+    void setUpperBound(int slot, int var, double cut) {
+        if (boundStart[var] == -1) return;
+        int b = slot*numBounds + boundStart[var] + 1;
+        bounds[b] = Math.min(bounds[b], cut);
+    }
+
+    void setLowerBound(int slot, int var, double cut) {
+        if (boundStart[var] == -1) return;
+        int b = slot*numBounds + boundStart[var];
+        bounds[b] = Math.max(bounds[b], cut);
+    }
+
+    //=== Queries.
+    /*
+     * Writes the values of categorical variable var compatible with slot to values, in ascending order.
+     * @returns the number of compatible values.
+     */
+    int compatibleValues(int slot, int var, int[] values) {
+        int start = slot*numWords + wordStart[var], n = 0;
+        for (int w=0; w < words(catDomainSizes[var]); w++) {
+            for (long bits = words[start + w]; bits != 0; bits &= bits - 1) {
+                values[n++] = 64*w + Long.numberOfTrailingZeros(bits) + 1;
+            }
+        }
+        return n;
+    }
+
+    /*
+     * @returns whether all values of categorical variable var compatible with slot are in the set of values mask[maskStart...].
+     */
+    boolean isSubset(int slot, int var, long[] mask, int maskStart) {
+        int start = slot*numWords + wordStart[var];
+        for (int w=0; w < words(catDomainSizes[var]); w++) {
+            if ((words[start + w] & ~mask[maskStart + w]) != 0) return false;
+        }
+        return true;
+    }
+
+    double lowerBound(int slot, int var) {
+        return bounds[slot*numBounds + boundStart[var]];
+    }
+
+    double upperBound(int slot, int var) {
+        return bounds[slot*numBounds + boundStart[var] + 1];
+    }
+}
@@ -0,0 +1,219 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A random forest whose trees are kept in (little-endian) byte buffers in the layout of BinaryForestFile,
+ * and evaluated directly from there, without materializing Regtree objects.
+ *
+ * map(File) memory-maps a binary forest file, so loading a forest is independent of its size,
+ * and processes on one host share the file's pages through the page cache. allocate(RandomForest) copies
+ * a forest in memory into direct buffers, so that the garbage collector never has to scan or copy its trees.
+ * Predictions are identical to those of RandomForest.apply and RandomForest.applyMarginal.
+ */
+public strictfp class OffHeapRandomForest {
+    public int numTrees;
+    public int logModel;
+    public double minVariance;
+    public boolean brokenVarianceCalculation;
+
+    ByteBuffer[] trees;
+    BinaryForestFile.TreeLayout[] layouts;
+
+    OffHeapRandomForest(RegtreeBuildParams params, ByteBuffer[] trees) {
+        this.numTrees = trees.length;
+        this.logModel = params.logModel;
+        this.minVariance = params.minVariance;
+        this.brokenVarianceCalculation = params.brokenVarianceCalculation;
+        this.trees = trees;
+        this.layouts = new BinaryForestFile.TreeLayout[trees.length];
+        for (int i=0; i < trees.length; i++) {
+            layouts[i] = new BinaryForestFile.TreeLayout(trees[i], 0);
+            if (layouts[i].end > trees[i].capacity()) {
+                throw new IllegalStateException("Corrupt binary forest: tree " + i + " needs " + layouts[i].end + " bytes, but only " + trees[i].capacity() + " are available.");
+            }
+        }
+    }
+
+    /**
+     * Memory-maps the given binary forest file (as written by BinaryForestFile.write), one read-only region per tree.
+     * The mapping stays valid after this method returns; the file must not be modified while the forest is in use.
+     */
+    public static OffHeapRandomForest map(File f) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            BinaryForestFile.Header header = BinaryForestFile.readHeader(channel);
+            ByteBuffer[] trees = new ByteBuffer[header.numTrees];
+            for (int i=0; i < header.numTrees; i++) {
+                trees[i] = channel.map(FileChannel.MapMode.READ_ONLY, header.treeOffsets[i], header.treeSectionSize(i)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new OffHeapRandomForest(header.buildParams, trees);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copies the trees of the given forest into direct (off-heap) buffers, one per tree.
+     * The forest itself can be discarded afterwards; its direct buffers are freed once the returned forest is unreachable.
+     */
+    public static OffHeapRandomForest allocate(RandomForest forest) {
+        ByteBuffer[] trees = new ByteBuffer[forest.numTrees];
+        for (int i=0; i < forest.numTrees; i++) {
+            trees[i] = ByteBuffer.allocateDirect(BinaryForestFile.treeSectionSize(forest.Trees[i])).order(ByteOrder.LITTLE_ENDIAN);
+            BinaryForestFile.writeTree(forest.Trees[i], trees[i]);
+            ((Buffer) trees[i]).flip(); // Buffer.flip(), not the ByteBuffer override added in Java 9
+        }
+        return new OffHeapRandomForest(forest.getBuildParams(), trees);
+    }
+
+    /**
+     * @returns the total size of the tree buffers in bytes.
+     */
+    public long sizeInBytes() {
+        long size = 0;
+        for (ByteBuffer tree : trees) {
+            size += tree.capacity();
+        }
+        return size;
+    }
+
+    public boolean isPreprocessed(int tree) {
+        return layouts[tree].isPreprocessed();
+    }
+
+    /**
+     * Gets a prediction for the given instantiations of the input dimensions.
+     * @see RandomForest.apply
+     */
+    public static double[][] apply(OffHeapRandomForest forest, double[][] X) {
+        double[][] retn = new double[X.length][2]; // mean, var
+        for (int i=0; i < forest.numTrees; i++) {
+            ByteBuffer tree = forest.trees[i];
+            BinaryForestFile.TreeLayout l = forest.layouts[i];
+            if (X.length > 0 && X[0].length != l.npred) {
+                throw new IllegalArgumentException("X should be square matrix and should be have " +  l.npred + " columns not " + X[0].length);
+            }
+            for (int j=0; j < X.length; j++) {
+                int leaf = fwd(tree, l, X[j], j);
+                RandomForest.addTreePrediction(retn[j], tree.getDouble(l.nodepred + 8*leaf), tree.getDouble(l.nodevar + 8*leaf), forest.logModel, forest.brokenVarianceCalculation);
+            }
+        }
+        RandomForest.finalizePredictions(retn, forest.numTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    /**
+     * Gets a prediction for each of the given configurations Theta, marginal across the instances the trees were preprocessed with.
+     * All trees used must be preprocessed.
+     * @see RandomForest.applyMarginal
+     */
+    public static double[][] applyMarginal(OffHeapRandomForest forest, int[] tree_idxs_used, double[][] Theta) {
+        if (Theta == null || Theta.length == 0) {
+            throw new RuntimeException("Theta must not be empty");
+        }
+        int nTheta = Theta.length, nTrees = tree_idxs_used.length;
+        double[][] retn = new double[nTheta][2]; // mean, var
+        for (int i=0; i < nTrees; i++) {
+            ByteBuffer tree = forest.trees[tree_idxs_used[i]];
+            BinaryForestFile.TreeLayout l = forest.layouts[tree_idxs_used[i]];
+            if (!l.isPreprocessed()) {
+                throw new IllegalStateException("Tree " + tree_idxs_used[i] + " is not preprocessed; marginal predictions from a binary forest need preprocessed trees.");
+            }
+            double[] preds = marginalFwd(tree, l, Theta);
+            for (int j=0; j < nTheta; j++) {
+                double pred = preds[j];
+                if (forest.logModel>0) {
+                    pred = Math.log10(pred);
+                }
+                retn[j][0] += pred;
+                retn[j][1] += pred*pred; // marginal predictions of a single tree have no variance
+            }
+        }
+        RandomForest.finalizePredictions(retn, nTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    //======================================================================\\
+    //                         TREE TRAVERSAL                               \\
+    //======================================================================\\
+
+    /**
+     * @returns the leaf the data point x falls into.
+     * @see RegtreeFwd.fwd
+     */
+    static int fwd(ByteBuffer tree, BinaryForestFile.TreeLayout l, double[] x, int i) {
+        int thisnode = 0;
+        while (true) {
+            int splitvar = tree.getInt(l.var + 4*thisnode);
+            if (splitvar == 0) {
+                return thisnode;
+            }
+            if (Double.isNaN(x[Math.abs(splitvar)-1])) {
+                throw new RuntimeException("In fwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
+            }
+            thisnode = (goesLeft(tree, l, thisnode, splitvar, x[Math.abs(splitvar)-1]) ? tree.getInt(l.left + 4*thisnode) : tree.getInt(l.right + 4*thisnode));
+        }
+    }
+
+    /**
+     * @returns for each configuration the sum of the weighted predictions of the leaves it falls into.
+     * Leaves are visited in the same order as in RegtreeFwd.marginalFwd, so the sums are identical.
+     */
+    static double[] marginalFwd(ByteBuffer tree, BinaryForestFile.TreeLayout l, double[][] Theta) {
+        int thetacols = Theta[0].length;
+        double[] result = new double[Theta.length];
+        int[] queue = new int[l.numNodes];
+        for (int i=0; i < Theta.length; i++) {
+            int head = 0, tail = 0;
+            queue[tail++] = 0;
+            while (head < tail) {
+                int thisnode = queue[head++];
+                while (true) {
+                    int splitvar = tree.getInt(l.var + 4*thisnode);
+                    if (splitvar == 0) {
+                        result[i] += tree.getDouble(l.weightedpred + 8*thisnode);
+                        break;
+                    } else if (Math.abs(splitvar) > thetacols) {
+                        // Splitting on instance - pass this configuration down both children
+                        queue[tail++] = tree.getInt(l.right + 4*thisnode);
+                        thisnode = tree.getInt(l.left + 4*thisnode);
+                    } else {
+                        double value = Theta[i][Math.abs(splitvar)-1];
+                        if (Double.isNaN(value)) {
+                            throw new RuntimeException("In marginalFwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
+                        }
+                        thisnode = (goesLeft(tree, l, thisnode, splitvar, value) ? tree.getInt(l.left + 4*thisnode) : tree.getInt(l.right + 4*thisnode));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean goesLeft(ByteBuffer tree, BinaryForestFile.TreeLayout l, int thisnode, int splitvar, double value) {
+        if (splitvar > 0) {
+            return value <= tree.getDouble(l.cut + 8*thisnode);
+        }
+        int x = (int)value;
+        if (x <= 0) {
+            throw new RuntimeException("Input error in OffHeapRandomForest: categoricals have to be integers >= 1");
+        }
+        int catsplitIdx = (int)tree.getDouble(l.cut + 8*thisnode);
+        int start = tree.getInt(l.catsplitOffsets + 4*catsplitIdx);
+        int end = tree.getInt(l.catsplitOffsets + 4*(catsplitIdx+1));
+        if (x > end - start) {
+            throw new RuntimeException("Input error in OffHeapRandomForest: categorical value " + x + " is outside the domain of size " + (end - start));
+        }
+        int split = tree.getInt(l.catsplitValues + 4*(start + x - 1));
+        if (split == 0) return true;
+        if (split == 1) return false;
+        throw new RuntimeException("Missing value -- not allowed in this implementation.");
+    }
+}
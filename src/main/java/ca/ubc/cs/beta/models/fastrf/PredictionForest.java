@@ -0,0 +1,233 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * An immutable, prediction-only copy of a random forest.
+ *
+ * Each tree keeps only its split variables, cut points, categorical split tables, left children
+ * (the right child of node i is always left(i)+1) and the statistics of its leaves; node numbers,
+ * parents, node sizes, responses, leaf info and build params are dropped. Split variables and children
+ * are stored as short/char where the tree is small enough, and leaf statistics are indexed by leaf rather than by node.
+ * Predictions are identical to those of RandomForest.apply and RandomForest.applyMarginal.
+ */
+public strictfp class PredictionForest implements java.io.Serializable {
+    private static final long serialVersionUID = -3146527704950371285L;
+
+    public final int numTrees;
+    public final int logModel;
+    public final double minVariance;
+    public final boolean brokenVarianceCalculation;
+    public final int npred;
+    private final PredictionTree[] trees;
+
+    private PredictionForest(RandomForest forest) {
+        this.numTrees = forest.numTrees;
+        this.logModel = forest.logModel;
+        this.minVariance = forest.minVariance;
+        this.brokenVarianceCalculation = forest.getBuildParams().brokenVarianceCalculation;
+        this.npred = forest.Trees[0].npred;
+        this.trees = new PredictionTree[numTrees];
+        for (int i=0; i < numTrees; i++) {
+            trees[i] = new PredictionTree(forest.Trees[i]);
+        }
+    }
+
+    /**
+     * @returns a prediction-only copy of the forest. Preprocessed trees keep their weighted predictions for applyMarginal.
+     */
+    public static PredictionForest fromForest(RandomForest forest) {
+        return new PredictionForest(forest);
+    }
+
+    public boolean isPreprocessed(int tree) {
+        return trees[tree].leafweightedpred != null;
+    }
+
+    /**
+     * @see RandomForest.apply
+     */
+    public static double[][] apply(PredictionForest forest, double[][] X) {
+        if (X.length > 0 && X[0].length != forest.npred) {
+            throw new IllegalArgumentException("X should be square matrix and should be have " +  forest.npred + " columns not " + X[0].length);
+        }
+        double[][] retn = new double[X.length][2]; // mean, var
+        for (int i=0; i < forest.numTrees; i++) {
+            PredictionTree tree = forest.trees[i];
+            for (int j=0; j < X.length; j++) {
+                int leaf = tree.fwd(X[j], j);
+                RandomForest.addTreePrediction(retn[j], tree.leafpred[leaf], tree.leafvar[leaf], forest.logModel, forest.brokenVarianceCalculation);
+            }
+        }
+        RandomForest.finalizePredictions(retn, forest.numTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    /**
+     * Gets a prediction for each of the given configurations Theta, marginal across the instances the trees were preprocessed with.
+     * @see RandomForest.applyMarginal
+     */
+    public static double[][] applyMarginal(PredictionForest forest, int[] tree_idxs_used, double[][] Theta) {
+        int nTheta = Theta.length, nTrees = tree_idxs_used.length;
+        double[][] retn = new double[nTheta][2]; // mean, var
+        for (int i=0; i < nTrees; i++) {
+            PredictionTree tree = forest.trees[tree_idxs_used[i]];
+            if (tree.leafweightedpred == null) {
+                throw new IllegalStateException("Tree " + tree_idxs_used[i] + " was not preprocessed before stripping; marginal predictions need preprocessed trees.");
+            }
+            double[] preds = tree.marginalFwd(Theta);
+            for (int j=0; j < nTheta; j++) {
+                double pred = preds[j];
+                if (forest.logModel>0) {
+                    pred = Math.log10(pred);
+                }
+                retn[j][0] += pred;
+                retn[j][1] += pred*pred; // marginal predictions of a single tree have no variance
+            }
+        }
+        RandomForest.finalizePredictions(retn, nTrees, forest.numTrees, forest.minVariance);
+        return retn;
+    }
+
+    /**
+     * A single stripped tree. For a split node i, left(i) is its left child; for a leaf, the same slot holds the leaf's
+     * index into leafpred/leafvar/leafweightedpred. For categorical splits, cut[i] indexes catsplit.
+     */
+    static final class PredictionTree implements java.io.Serializable {
+        private static final long serialVersionUID = 6024412860317722573L;
+
+        private final short[] shortVar;
+        private final int[] intVar;
+        private final char[] charLeft;
+        private final int[] intLeft;
+        private final double[] cut;
+        private final byte[][] catsplit;
+        private final double[] leafpred;
+        private final double[] leafvar;
+        private final double[] leafweightedpred;
+        private final int numNodes;
+
+        PredictionTree(Regtree tree) {
+            int n = tree.numNodes;
+            numNodes = n;
+            int numLeaves = 0, maxVar = 0;
+            for (int i=0; i < n; i++) {
+                if (tree.var[i] == 0) {
+                    numLeaves++;
+                } else {
+                    maxVar = Math.max(maxVar, Math.abs(tree.var[i]));
+                    if (tree.children[i][1] != tree.children[i][0] + 1) {
+                        throw new IllegalArgumentException("Node " + i + " does not have adjacent children; only trees built by RegtreeFit can be stripped.");
+                    }
+                }
+            }
+
+            shortVar = (maxVar <= Short.MAX_VALUE ? new short[n] : null);
+            intVar = (shortVar == null ? new int[n] : null);
+            boolean smallTree = Math.max(n, numLeaves) <= Character.MAX_VALUE;
+            charLeft = (smallTree ? new char[n] : null);
+            intLeft = (smallTree ? null : new int[n]);
+            cut = new double[n];
+            leafpred = new double[numLeaves];
+            leafvar = new double[numLeaves];
+            leafweightedpred = (tree.preprocessed ? new double[numLeaves] : null);
+
+            int leaf = 0;
+            for (int i=0; i < n; i++) {
+                int left;
+                if (tree.var[i] == 0) {
+                    left = leaf;
+                    leafpred[leaf] = tree.nodepred[i];
+                    leafvar[leaf] = tree.nodevar[i];
+                    if (leafweightedpred != null) leafweightedpred[leaf] = tree.weightedpred[i];
+                    leaf++;
+                } else {
+                    left = tree.children[i][0];
+                    cut[i] = tree.cut[i];
+                }
+                if (shortVar != null) shortVar[i] = (short) tree.var[i];
+                else intVar[i] = tree.var[i];
+                if (charLeft != null) charLeft[i] = (char) left;
+                else intLeft[i] = left;
+            }
+
+            catsplit = new byte[tree.catsplit.length][];
+            for (int c=0; c < tree.catsplit.length; c++) {
+                catsplit[c] = new byte[tree.catsplit[c].length];
+                for (int v=0; v < tree.catsplit[c].length; v++) {
+                    catsplit[c][v] = (byte) tree.catsplit[c][v];
+                }
+            }
+        }
+
+        private int var(int node) {
+            return (shortVar != null ? shortVar[node] : intVar[node]);
+        }
+
+        private int left(int node) {
+            return (charLeft != null ? charLeft[node] : intLeft[node]);
+        }
+
+        /**
+         * @returns the index of the leaf x falls into.
+         * @see RegtreeFwd.fwd
+         */
+        int fwd(double[] x, int i) {
+            int thisnode = 0;
+            while (true) {
+                int splitvar = var(thisnode);
+                if (splitvar == 0) {
+                    return left(thisnode);
+                }
+                thisnode = child(thisnode, splitvar, x[Math.abs(splitvar)-1], i);
+            }
+        }
+
+        /**
+         * Visits leaves in the same order as RegtreeFwd.marginalFwd, so the sums are identical.
+         */
+        double[] marginalFwd(double[][] Theta) {
+            double[] result = new double[Theta.length];
+            if (Theta.length == 0) return result;
+            int thetacols = Theta[0].length;
+            int[] queue = new int[numNodes];
+            for (int i=0; i < Theta.length; i++) {
+                int head = 0, tail = 0;
+                queue[tail++] = 0;
+                while (head < tail) {
+                    int thisnode = queue[head++];
+                    while (true) {
+                        int splitvar = var(thisnode);
+                        if (splitvar == 0) {
+                            result[i] += leafweightedpred[left(thisnode)];
+                            break;
+                        } else if (Math.abs(splitvar) > thetacols) {
+                            // Splitting on instance - pass this configuration down both children
+                            queue[tail++] = left(thisnode) + 1;
+                            thisnode = left(thisnode);
+                        } else {
+                            thisnode = child(thisnode, splitvar, Theta[i][Math.abs(splitvar)-1], i);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private int child(int thisnode, int splitvar, double value, int i) {
+            if (Double.isNaN(value)) {
+                throw new RuntimeException("In fwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
+            }
+            int left_kid = left(thisnode);
+            if (splitvar > 0) {
+                return (value <= cut[thisnode] ? left_kid : left_kid + 1);
+            }
+            int x = (int)value;
+            if (x <= 0) {
+                throw new RuntimeException("Input error in PredictionForest: categoricals have to be integers >= 1");
+            }
+            int split = catsplit[(int)cut[thisnode]][x-1];
+            if (split == 0) return left_kid;
+            if (split == 1) return left_kid + 1;
+            throw new RuntimeException("Missing value -- not allowed in this implementation.");
+        }
+    }
+}
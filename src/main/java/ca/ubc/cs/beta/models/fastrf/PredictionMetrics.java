@@ -0,0 +1,233 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the predictions made through an InstrumentedRandomForest: for apply, applyMarginal and classify,
+ * the number of calls, the batch sizes and the latencies, and the depths of the leaves that sampled data points fall into.
+ *
+ * Recording is lock-free: counts are LongAdders, which are striped across threads, and histograms are log-linear
+ * (see Histogram) with one atomic counter per bucket. Metrics can be exported via JMX with registerMBean.
+ */
+public class PredictionMetrics implements PredictionMetricsMXBean {
+    public static final int APPLY = 0, MARGINAL = 1, CLASSIFY = 2;
+    private static final String[] OPERATION_NAMES = {"apply", "applyMarginal", "classify"};
+
+    volatile boolean enabled = true;
+    private final LongAdder[] calls = new LongAdder[3];
+    private final LongAdder[] points = new LongAdder[3];
+    private final Histogram[] latencyNanos = new Histogram[3];
+    private final Histogram[] batchSizes = new Histogram[3];
+    private final Histogram treeDepths = new Histogram();
+
+    public PredictionMetrics() {
+        for (int op=0; op < 3; op++) {
+            calls[op] = new LongAdder();
+            points[op] = new LongAdder();
+            latencyNanos[op] = new Histogram();
+            batchSizes[op] = new Histogram();
+        }
+    }
+
+    void recordCall(int operation, int batchSize, long nanos) {
+        calls[operation].increment();
+        points[operation].add(batchSize);
+        latencyNanos[operation].record(nanos);
+        batchSizes[operation].record(batchSize);
+    }
+
+    void recordTreeDepth(int depth) {
+        treeDepths.record(depth);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * While disabled, InstrumentedRandomForest calls RandomForest directly and records nothing.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Clears all counts. Not atomic with respect to concurrent predictions, which may be partially counted.
+     */
+    public void reset() {
+        for (int op=0; op < 3; op++) {
+            calls[op].reset();
+            points[op].reset();
+            latencyNanos[op].reset();
+            batchSizes[op].reset();
+        }
+        treeDepths.reset();
+    }
+
+    public long getCalls(int operation) {
+        return calls[operation].sum();
+    }
+
+    public long getPoints(int operation) {
+        return points[operation].sum();
+    }
+
+    public Histogram getLatencyNanos(int operation) {
+        return latencyNanos[operation];
+    }
+
+    public Histogram getBatchSizes(int operation) {
+        return batchSizes[operation];
+    }
+
+    public Histogram getTreeDepths() {
+        return treeDepths;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as ca.ubc.cs.beta.models.fastrf:type=PredictionMetrics,name=[name].
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("ca.ubc.cs.beta.models.fastrf:type=PredictionMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register prediction metrics " + name + " with JMX", e);
+        }
+    }
+
+    public static void unregisterMBean(ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister " + objectName + " from JMX", e);
+        }
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        for (int op=0; op < 3; op++) {
+            long n = getCalls(op);
+            if (n == 0) continue;
+            sb.append(OPERATION_NAMES[op] + ": " + n + " calls, " + getPoints(op) + " points (batch size p50 " + batchSizes[op].percentile(50) + ", max " + batchSizes[op].max() + ")");
+            sb.append(", latency p50 " + micros(latencyNanos[op].percentile(50)) + " us, p99 " + micros(latencyNanos[op].percentile(99)) + " us, max " + micros(latencyNanos[op].max()) + " us\n");
+        }
+        if (treeDepths.count() > 0) {
+            sb.append("tree depth: " + String.format("%.2f", treeDepths.mean()) + " on average, p50 " + treeDepths.percentile(50) + ", p99 " + treeDepths.percentile(99) + ", max " + treeDepths.max() + " (" + treeDepths.count() + " samples)\n");
+        }
+        return sb.toString();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    //=== MXBean attributes
+    public long getApplyCalls() { return getCalls(APPLY); }
+    public long getApplyPoints() { return getPoints(APPLY); }
+    public double getApplyLatencyP50Micros() { return micros(latencyNanos[APPLY].percentile(50)); }
+    public double getApplyLatencyP99Micros() { return micros(latencyNanos[APPLY].percentile(99)); }
+    public double getApplyLatencyMaxMicros() { return micros(latencyNanos[APPLY].max()); }
+
+    public long getMarginalCalls() { return getCalls(MARGINAL); }
+    public long getMarginalPoints() { return getPoints(MARGINAL); }
+    public double getMarginalLatencyP50Micros() { return micros(latencyNanos[MARGINAL].percentile(50)); }
+    public double getMarginalLatencyP99Micros() { return micros(latencyNanos[MARGINAL].percentile(99)); }
+    public double getMarginalLatencyMaxMicros() { return micros(latencyNanos[MARGINAL].max()); }
+
+    public long getClassifyCalls() { return getCalls(CLASSIFY); }
+    public long getClassifyPoints() { return getPoints(CLASSIFY); }
+    public double getClassifyLatencyP50Micros() { return micros(latencyNanos[CLASSIFY].percentile(50)); }
+    public double getClassifyLatencyP99Micros() { return micros(latencyNanos[CLASSIFY].percentile(99)); }
+    public double getClassifyLatencyMaxMicros() { return micros(latencyNanos[CLASSIFY].max()); }
+
+    public long getTreeDepthSamples() { return treeDepths.count(); }
+    public double getTreeDepthMean() { return treeDepths.mean(); }
+    public long getTreeDepthP50() { return treeDepths.percentile(50); }
+    public long getTreeDepthP99() { return treeDepths.percentile(99); }
+    public long getTreeDepthMax() { return treeDepths.max(); }
+
+    /**
+     * A histogram of non-negative longs in the style of HdrHistogram: values below 16 have a bucket each, and every
+     * power-of-two range above is split into 16 equal buckets, so a value is known up to 1/16 of itself with 960 buckets for all longs.
+     * Percentiles and the maximum are reported as the largest value of the respective bucket.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 16, SUB_BUCKET_BITS = 4;
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long highestValueInBucket(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + ((1L << shift) - 1);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int b=0; b < NUM_BUCKETS; b++) n += counts.get(b);
+            return n;
+        }
+
+        public double mean() {
+            long n = count();
+            return (n == 0 ? 0 : (double) sum.sum() / n);
+        }
+
+        /**
+         * @returns the smallest bucket value such that at least the given percentage of the recorded values is at most that value, or 0 if nothing was recorded.
+         */
+        public long percentile(double percent) {
+            long[] snapshot = new long[NUM_BUCKETS];
+            long n = 0;
+            for (int b=0; b < NUM_BUCKETS; b++) {
+                snapshot[b] = counts.get(b);
+                n += snapshot[b];
+            }
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+            long seen = 0;
+            for (int b=0; b < NUM_BUCKETS; b++) {
+                seen += snapshot[b];
+                if (seen >= rank) return highestValueInBucket(b);
+            }
+            return max();
+        }
+
+        public long max() {
+            for (int b=NUM_BUCKETS-1; b >= 0; b--) {
+                if (counts.get(b) > 0) return highestValueInBucket(b);
+            }
+            return 0;
+        }
+
+        public void reset() {
+            for (int b=0; b < NUM_BUCKETS; b++) counts.set(b, 0);
+            sum.reset();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * The JMX view of PredictionMetrics. Latencies are in microseconds; percentiles are accurate to within 1/16 of the value.
+ */
+public interface PredictionMetricsMXBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    void reset();
+
+    long getApplyCalls();
+    long getApplyPoints();
+    double getApplyLatencyP50Micros();
+    double getApplyLatencyP99Micros();
+    double getApplyLatencyMaxMicros();
+
+    long getMarginalCalls();
+    long getMarginalPoints();
+    double getMarginalLatencyP50Micros();
+    double getMarginalLatencyP99Micros();
+    double getMarginalLatencyMaxMicros();
+
+    long getClassifyCalls();
+    long getClassifyPoints();
+    double getClassifyLatencyP50Micros();
+    double getClassifyLatencyP99Micros();
+    double getClassifyLatencyMaxMicros();
+
+    long getTreeDepthSamples();
+    double getTreeDepthMean();
+    long getTreeDepthP50();
+    long getTreeDepthP99();
+    long getTreeDepthMax();
+}
@@ -527,6 +527,21 @@ public strictfp class RandomForest implements java.io.Serializable {
 		}
     }
 
+    /**
+     * Saves the forest in the compact binary format of BinaryForestFile.
+     */
+    public static void saveBinary(RandomForest forest, File f) throws IOException {
+        BinaryForestFile.write(forest, f);
+    }
+
+    public static RandomForest fromBinaryForestFile(String s) {
+        try {
+            return BinaryForestFile.read(new File(s));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Learns a random forest.
      * @param numTrees: number of trees to use.
@@ -596,6 +611,7 @@ public strictfp class RandomForest implements java.io.Serializable {
             throw new RuntimeException("length(dataIdxs) must be equal to numtrees.");
         }
     
+        Object event = FlightRecorderEvents.beginLearnModel();
         /* 
          * Collect the bootstrapped data for each tree as specified by the indices to be used for each tree in dataIdxs.
          */
@@ -611,6 +627,7 @@ public strictfp class RandomForest implements java.io.Serializable {
             }
             rf.Trees[i] = RegtreeFit.fit(allTheta, allX, this_theta_inst_idxs, thisy, params);
         }
+        FlightRecorderEvents.endLearnModel(event, y.length, numVars(allTheta, allX), rf);
         return rf;
     }
     
@@ -688,6 +705,7 @@ public strictfp class RandomForest implements java.io.Serializable {
     
         
         
+        Object event = FlightRecorderEvents.beginLearnModel();
         RandomForest rf = new RandomForest(numTrees, params);
         for (int i = 0; i < numTrees; i++) {
             int N = dataIdxs[i].length;
@@ -705,8 +723,13 @@ public strictfp class RandomForest implements java.io.Serializable {
             	throw e;
             }
         }
+        FlightRecorderEvents.endLearnModel(event, theta_inst_idxs.length, numVars(allTheta, allX), rf);
         return rf;
     }
+
+    private static int numVars(double[][] allTheta, double[][] allX) {
+        return (allTheta == null || allTheta.length == 0 ? 0 : allTheta[0].length) + (allX == null || allX.length == 0 ? 0 : allX[0].length);
+    }
     
     
     /**
@@ -729,77 +752,180 @@ public strictfp class RandomForest implements java.io.Serializable {
      * and (i,1) is the variance of that prediction. See Matlab code for how var is calculated.
      */
     public static double[][] apply(RandomForest forest, double[][] X) {
+        Object event = FlightRecorderEvents.beginApply();
 		double[][] retn = new double[X.length][2]; // mean, var
         for (int i=0; i < forest.numTrees; i++) {
-            int[] result = RegtreeFwd.fwd(forest.Trees[i], X);
+            Regtree tree = forest.Trees[i];
+            RegtreeFwd.checkFwd(tree, X[0].length);
             for (int j=0; j < X.length; j++) {
-				double pred = forest.Trees[i].nodepred[result[j]];
-				double var = forest.Trees[i].nodevar[result[j]];
-				
-                if (forest.logModel>0) {
-                	
-                	if(forest.buildParams.brokenVarianceCalculation)
-                	{
-                		pred = Math.log10(pred);
-                	} else
-                	{
-                		double test_mu_n = pred;
-	    	            double test_var_n = var;
-	    	            
-	    	            double var_ln = Math.log(test_var_n/(test_mu_n*test_mu_n) + 1);
-	    	            double	mu_ln = Math.log(test_mu_n) - var_ln/2;
-	    	            
-	    	            double var_l10 = var_ln / Math.log(10) / Math.log(10);
-	    	            double mu_l10 = mu_ln / Math.log(10); 
-	    	            
-	    	            pred = mu_l10;
-	    	            var = var_l10;
-                	}
-                   // System.out.println( i+ "," + j + ":" + "pred: " + pred + " var: " + var);
-                   // System.out.println("Variance for Tree[  " + i + "] is " + var);
+                int leaf = RegtreeFwd.fwd(tree, X[j], j);
+                addTreePrediction(retn[j], tree.nodepred[leaf], tree.nodevar[leaf], forest.logModel, forest.buildParams.brokenVarianceCalculation);
+            }
+        }
+        finalizePredictions(retn, forest.numTrees, forest.numTrees, forest.minVariance);
+        FlightRecorderEvents.endApply(event, "apply", X.length, (X.length == 0 ? 0 : X[0].length), forest.numTrees);
+        return retn;
+    }
+
+    /**
+     * Gets the prediction for the single data point x into meanvar, where meanvar[0] is the prediction and meanvar[1] its variance.
+     * Identical to apply(forest, new double[][]{x})[0], but does not allocate, so it can be called in tight loops.
+     */
+    public static void apply(RandomForest forest, double[] x, double[] meanvar) {
+        meanvar[0] = 0;
+        meanvar[1] = 0;
+        for (int i=0; i < forest.numTrees; i++) {
+            Regtree tree = forest.Trees[i];
+            RegtreeFwd.checkFwd(tree, x.length);
+            int leaf = RegtreeFwd.fwd(tree, x, 0);
+            addTreePrediction(meanvar, tree.nodepred[leaf], tree.nodevar[leaf], forest.logModel, forest.buildParams.brokenVarianceCalculation);
+        }
+        finalizePrediction(meanvar, forest.numTrees, forest.numTrees, forest.minVariance);
+    }
+
+    /**
+     * Gets a prediction for each (configuration, instance) pair in theta_inst_idxs, without building the joined design matrix.
+     * Equivalent to apply(forest, Z), where Z[i] is Theta[theta_inst_idxs[i][0]] followed by X[theta_inst_idxs[i][1]]
+     * (e.g., Z = RfData.buildMatrixForApply()).
+     * @see RegtreeFwd.fwd(Regtree, double[][], double[][], int[][])
+     */
+    public static double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+        Object event = FlightRecorderEvents.beginApply();
+        double[][] retn = new double[theta_inst_idxs.length][2]; // mean, var
+        int[] order = RegtreeFwd.groupByConfiguration(Theta.length, theta_inst_idxs);
+        int maxNodes = 0;
+        for (int i=0; i < forest.numTrees; i++) {
+            maxNodes = Math.max(maxNodes, forest.Trees[i].numNodes);
+        }
+        int[] jump = new int[maxNodes], jumpStamp = new int[maxNodes];
+        for (int i=0; i < forest.numTrees; i++) {
+            Regtree tree = forest.Trees[i];
+            int[] result = RegtreeFwd.fwd(tree, Theta, X, theta_inst_idxs, order, jump, jumpStamp);
+            for (int j=0; j < result.length; j++) {
+                addTreePrediction(retn[j], tree.nodepred[result[j]], tree.nodevar[result[j]], forest.logModel, forest.buildParams.brokenVarianceCalculation);
+            }
+        }
+        finalizePredictions(retn, forest.numTrees, forest.numTrees, forest.minVariance);
+        FlightRecorderEvents.endApply(event, "apply", theta_inst_idxs.length, numVars(Theta, X), forest.numTrees);
+        return retn;
+    }
+
+    /**
+     * Adds the prediction and variance of one tree's leaf to the running sums meanvar of apply,
+     * transforming them into log10 space for log models.
+     */
+    static void addTreePrediction(double[] meanvar, double pred, double var, int logModel, boolean brokenVarianceCalculation) {
+        if (logModel>0) {
+            if (brokenVarianceCalculation) {
+                pred = Math.log10(pred);
+            } else {
+                double test_mu_n = pred;
+                double test_var_n = var;
+
+                double var_ln = Math.log(test_var_n/(test_mu_n*test_mu_n) + 1);
+                double mu_ln = Math.log(test_mu_n) - var_ln/2;
+
+                double var_l10 = var_ln / Math.log(10) / Math.log(10);
+                double mu_l10 = mu_ln / Math.log(10);
+
+                pred = mu_l10;
+                var = var_l10;
+            }
+        }
+        meanvar[0] += pred;
+        meanvar[1] += var+pred*pred;
+    }
+
+    /**
+     * Turns the running sums of nTrees tree predictions into the mean and the (bias-corrected) variance across trees.
+     * @param numTrees the size of the forest, used for the bias correction.
+     */
+    static void finalizePredictions(double[][] retn, int nTrees, int numTrees, double minVariance) {
+        for (int i=0; i < retn.length; i++) {
+            finalizePrediction(retn[i], nTrees, numTrees, minVariance);
+        }
+    }
+
+    static void finalizePrediction(double[] meanvar, int nTrees, int numTrees, double minVariance) {
+        meanvar[0] /= nTrees;
+        meanvar[1] /= nTrees;
+        meanvar[1] -= meanvar[0]*meanvar[0];
+        meanvar[1] = meanvar[1] * ( ((double) numTrees)/Math.max(1, numTrees-1));
+
+        if(meanvar[1] < MIN_VARIANCE_RESULT)
+        {
+        	assert(meanvar[1] > MIN_VARIANCE_RESULT); //Assert negative variance only comes from numerical issues (and they shouldn't make it too small)
+        }
+        meanvar[1] = Math.max(minVariance, meanvar[1]);
+    }
+
+    /**
+     * Gets a prediction for every configuration in Theta on every instance in X.
+     * Equivalent to apply on the M*K rows Theta[m] followed by X[k], but each tree partitions Theta by its configuration splits
+     * and X by its instance splits, and combines the parts only at the leaves.
+     * @returns an array of size 2*Theta.length*X.length where [0][m][k] is the prediction for Theta[m] on X[k], and [1][m][k] its variance.
+     */
+    public static double[][][] applyCrossProduct(RandomForest forest, double[][] Theta, double[][] X) {
+        Object event = FlightRecorderEvents.beginApply();
+        int M = Theta.length, K = X.length;
+        int thetacols = (M == 0 ? 0 : Theta[0].length);
+        double[][][] retn = new double[2][M][K]; // mean, var
+        double[] meanvar = new double[2];
+        int[] thetaPerm = new int[M], xPerm = new int[K];
+
+        for (int i=0; i < forest.numTrees; i++) {
+            Regtree tree = forest.Trees[i];
+            if (M > 0 && K > 0 && thetacols + X[0].length != tree.npred) {
+                throw new IllegalArgumentException("Theta and X should have " + tree.npred + " columns together, not " + (thetacols + X[0].length));
+            }
+            for (int m=0; m < M; m++) thetaPerm[m] = m;
+            for (int k=0; k < K; k++) xPerm[k] = k;
+
+            //=== Depth-first traversal with an explicit stack of (node, configuration range, instance range).
+            int[] stack = new int[5*(tree.numNodes+1)];
+            int top = 0;
+            if (M > 0 && K > 0) {
+                stack[top++] = 0; stack[top++] = 0; stack[top++] = M; stack[top++] = 0; stack[top++] = K;
+            }
+            while (top > 0) {
+                int xEnd = stack[--top], xStart = stack[--top], tEnd = stack[--top], tStart = stack[--top], thisnode = stack[--top];
+                int splitvar = tree.var[thisnode];
+                if (splitvar == 0) {
+                    meanvar[0] = 0;
+                    meanvar[1] = 0;
+                    addTreePrediction(meanvar, tree.nodepred[thisnode], tree.nodevar[thisnode], forest.logModel, forest.buildParams.brokenVarianceCalculation);
+                    for (int a=tStart; a < tEnd; a++) {
+                        double[] mean = retn[0][thetaPerm[a]], var = retn[1][thetaPerm[a]];
+                        for (int b=xStart; b < xEnd; b++) {
+                            mean[xPerm[b]] += meanvar[0];
+                            var[xPerm[b]] += meanvar[1];
+                        }
+                    }
+                    continue;
+                }
+                int left_kid = tree.children[thisnode][0], right_kid = tree.children[thisnode][1];
+                if (Math.abs(splitvar) <= thetacols) {
+                    int mid = RegtreeFwd.partition(tree, thisnode, Theta, Math.abs(splitvar)-1, thetaPerm, tStart, tEnd);
+                    if (tEnd > mid) { stack[top++] = right_kid; stack[top++] = mid; stack[top++] = tEnd; stack[top++] = xStart; stack[top++] = xEnd; }
+                    if (mid > tStart) { stack[top++] = left_kid; stack[top++] = tStart; stack[top++] = mid; stack[top++] = xStart; stack[top++] = xEnd; }
+                } else {
+                    int mid = RegtreeFwd.partition(tree, thisnode, X, Math.abs(splitvar)-1-thetacols, xPerm, xStart, xEnd);
+                    if (xEnd > mid) { stack[top++] = right_kid; stack[top++] = tStart; stack[top++] = tEnd; stack[top++] = mid; stack[top++] = xEnd; }
+                    if (mid > xStart) { stack[top++] = left_kid; stack[top++] = tStart; stack[top++] = tEnd; stack[top++] = xStart; stack[top++] = mid; }
                 }
-                retn[j][0] += pred;
-                retn[j][1] += var+pred*pred;
             }
         }
 
-        for (int i=0; i < X.length; i++) {
-            retn[i][0] /= forest.numTrees;
-            retn[i][1] /= forest.numTrees;
-            retn[i][1] -= retn[i][0]*retn[i][0];
-            retn[i][1] = retn[i][1] * ( ((double) forest.numTrees)/Math.max(1, forest.numTrees-1));
-            
-//            if(forest.logModel > 0)
-//            {
-//	            /**
-//	             * Take mean and variance in non-log space, transform them into ln space, then Linearly Transform them to log-10 space. 
-//	             * Get the parameters of the log normal distribution, with that mean and variance (in non-log space).
-//	             */
-//	            double test_mu_n = retn[i][0];
-//	            double test_var_n = retn[i][1];
-//	            
-//	            double var_ln = Math.log(test_var_n/(test_mu_n*test_mu_n) + 1);
-//	            double	mu_ln = Math.log(test_mu_n) - var_ln/2;
-//	            
-//	            double var_l10 = var_ln / Math.log(10) / Math.log(10);
-//	            double mu_l10 = mu_ln / Math.log(10); 
-//	            
-//	            retn[i][0] = mu_l10;
-//	            retn[i][1] = var_l10;
-//            }
-            
-            if(retn[i][1] < MIN_VARIANCE_RESULT)
-            {
-//            	System.err.println("[WARN]: Variance is less than " + MIN_VARIANCE_RESULT + " > " + retn[i][1]);
-            	assert(retn[i][1] > MIN_VARIANCE_RESULT); //Assert negative variance only comes from numerical issues (and they shouldn't make it too small)
+        for (int m=0; m < M; m++) {
+            for (int k=0; k < K; k++) {
+                meanvar[0] = retn[0][m][k];
+                meanvar[1] = retn[1][m][k];
+                finalizePrediction(meanvar, forest.numTrees, forest.numTrees, forest.minVariance);
+                retn[0][m][k] = meanvar[0];
+                retn[1][m][k] = meanvar[1];
             }
-            retn[i][1] = Math.max(forest.minVariance, retn[i][1]);
-        
-            
-            
         }
-        
-        
+        FlightRecorderEvents.endApply(event, "applyCrossProduct", M*K, numVars(Theta, X), forest.numTrees);
         return retn;
     }
     
@@ -883,6 +1009,7 @@ public strictfp class RandomForest implements java.io.Serializable {
      * @see RegtreeFwd.marginalFwd
      */
     public static double[][] applyMarginal(RandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+        Object event = FlightRecorderEvents.beginApply();
         int nTheta = Theta.length, nTrees = tree_idxs_used.length;
 		double[][] retn = new double[nTheta][2]; // mean, var
         
@@ -906,20 +1033,8 @@ public strictfp class RandomForest implements java.io.Serializable {
             }
         }
         
-        for (int i=0; i < nTheta; i++) {
-            retn[i][0] /= nTrees;
-            retn[i][1] /= nTrees;
-			retn[i][1] -= retn[i][0]*retn[i][0];
-            retn[i][1] = retn[i][1] * ((forest.numTrees+0.0)/Math.max(1, forest.numTrees-1));
-            
-            if(retn[i][1] < MIN_VARIANCE_RESULT) 
-            {
-            	//System.err.println("[WARN]: Variance is less than " + MIN_VARIANCE_RESULT + " > " + retn[i][1]);
-            	assert(retn[i][1] > MIN_VARIANCE_RESULT); //Assert negative variance only comes from numerical issues (and they shouldn't make it too small)
-            }
-           
-            retn[i][1] = Math.max(forest.minVariance, retn[i][1]);
-        }
+        finalizePredictions(retn, nTrees, forest.numTrees, forest.minVariance);
+        FlightRecorderEvents.endApply(event, "applyMarginal", nTheta, (nTheta == 0 ? 0 : Theta[0].length), nTrees);
         return retn;
     }
     
@@ -953,15 +1068,103 @@ public strictfp class RandomForest implements java.io.Serializable {
         return retn;
     }
     
-    /** 
+    /**
+     * Gets the marginal performance curve of dimension dim, averaged across the given trees.
+     * The trees must be preprocessed and have their leaf info precomputed.
+     * @returns a curve on the union of the trees' breakpoints, whose variances hold the variance across trees.
+     * @see Regtree.marginalPerformanceCurve
+     */
+    public static MarginalCurve marginalPerformanceCurve(RandomForest forest, int[] tree_idxs_used, int dim) {
+        MarginalCurve[] treeCurves = new MarginalCurve[tree_idxs_used.length];
+        for (int i=0; i < tree_idxs_used.length; i++) {
+            treeCurves[i] = forest.Trees[tree_idxs_used[i]].marginalPerformanceCurve(dim);
+        }
+        return averageCurves(treeCurves);
+    }
+
+    /**
+     * Gets the marginal performance surface of the dimensions dim1 and dim2, averaged across the given trees.
+     * @see marginalPerformanceCurve
+     */
+    public static MarginalCurve marginalPerformanceSurface(RandomForest forest, int[] tree_idxs_used, int dim1, int dim2) {
+        MarginalCurve[] treeCurves = new MarginalCurve[tree_idxs_used.length];
+        for (int i=0; i < tree_idxs_used.length; i++) {
+            treeCurves[i] = forest.Trees[tree_idxs_used[i]].marginalPerformanceSurface(dim1, dim2);
+        }
+        return averageCurves(treeCurves);
+    }
+
+    private static MarginalCurve averageCurves(MarginalCurve[] treeCurves) {
+        if (treeCurves.length == 0) {
+            throw new IllegalArgumentException("At least one tree is needed to compute a marginal performance curve.");
+        }
+        int numAxes = treeCurves[0].numAxes();
+
+        //=== Merge the breakpoints of all trees; categorical axes share the same domain.
+        double[][] breakpoints = new double[numAxes][];
+        for (int axis=0; axis < numAxes; axis++) {
+            if (treeCurves[0].isCategorical[axis]) {
+                breakpoints[axis] = treeCurves[0].breakpoints[axis];
+                continue;
+            }
+            TreeSet<Double> merged = new TreeSet<Double>();
+            for (MarginalCurve c : treeCurves) {
+                for (double b : c.breakpoints[axis]) merged.add(b);
+            }
+            breakpoints[axis] = new double[merged.size()];
+            int k = 0;
+            for (Double b : merged) breakpoints[axis][k++] = b;
+        }
+        MarginalCurve result = new MarginalCurve(treeCurves[0].dims, treeCurves[0].isCategorical, breakpoints);
+        result.variances = new double[result.values.length];
+
+        //=== Map each merged cell to the tree's cell containing it (via the cell's midpoint), and accumulate mean and squares.
+        int numCells1 = (numAxes == 2 ? result.numCells(1) : 1);
+        for (MarginalCurve c : treeCurves) {
+            int[][] cellMap = new int[numAxes][];
+            for (int axis=0; axis < numAxes; axis++) {
+                cellMap[axis] = new int[result.numCells(axis)];
+                for (int cell=0; cell < cellMap[axis].length; cell++) {
+                    cellMap[axis][cell] = c.cellOf(axis, result.representativeValue(axis, cell));
+                }
+            }
+            for (int c0=0; c0 < result.numCells(0); c0++) {
+                int treeCell0 = cellMap[0][c0];
+                for (int c1=0; c1 < numCells1; c1++) {
+                    double pred = 0;
+                    if (numAxes == 1) {
+                        if (treeCell0 >= 0) pred = c.value(treeCell0);
+                    } else {
+                        int treeCell1 = cellMap[1][c1];
+                        if (treeCell0 >= 0 && treeCell1 >= 0) pred = c.value(treeCell0, treeCell1);
+                    }
+                    result.values[c0*numCells1 + c1] += pred;
+                    result.variances[c0*numCells1 + c1] += pred*pred;
+                }
+            }
+        }
+
+        int nTrees = treeCurves.length;
+        for (int i=0; i < result.values.length; i++) {
+            result.values[i] /= nTrees;
+            result.variances[i] /= nTrees;
+            result.variances[i] -= result.values[i]*result.values[i];
+            result.variances[i] = Math.max(0, result.variances[i] * ((nTrees+0.0)/Math.max(1, nTrees-1)));
+        }
+        return result;
+    }
+
+    /**
      * Prepares the random forest for marginal predictions.
      * @see RegtreeFwd.preprocess_inst_splits
      */
     public static RandomForest preprocessForest(RandomForest forest, double[][] X) {
+        Object event = FlightRecorderEvents.beginPreprocess();
         RandomForest prepared = new RandomForest(forest.numTrees,forest.buildParams);
         for (int i=0; i < forest.numTrees; i++) {
             prepared.Trees[i] = RegtreeFwd.preprocess_inst_splits(forest.Trees[i], X);
         }
+        FlightRecorderEvents.endPreprocess(event, "marginal", (X == null ? 0 : X.length), prepared);
         return prepared;
     }
 
@@ -970,8 +1173,10 @@ public strictfp class RandomForest implements java.io.Serializable {
 	 * @see RegtreeFwd.preprocess_for_classification
 	 */
 	public static void preprocessForestForClassification(RandomForest forest) {
+		Object event = FlightRecorderEvents.beginPreprocess();
 		for (int i=0; i < forest.numTrees; i++) {
 			RegtreeFwd.preprocess_for_classification(forest.Trees[i]);
 		}
+		FlightRecorderEvents.endPreprocess(event, "classification", 0, forest);
 	}
 }
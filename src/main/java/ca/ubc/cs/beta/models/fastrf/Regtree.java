@@ -19,6 +19,23 @@ public strictfp class Regtree implements java.io.Serializable {
     public int[] node;
     public int[] parent;
     public double[][] ysub;
+    
+    /**
+     * Flat layout of the leaf responses, used instead of ysub by trees built with this version (ysub is then null;
+     * it is only set in trees serialized by older versions). If resultsStoredInLeaves, the responses of node i are
+     * responses[responseOffsets[i]..responseOffsets[i+1]); otherwise ysum[i] and ysumOfSq[i] hold their sum and sum of squares.
+     */
+    public double[] responses;
+    public int[] responseOffsets;
+    /**
+     * Responses added by update since the flat layout was built (null before the first update): those of node i follow its
+     * responses in responseOverflow[i][0..numOverflow[i]). Each has spare capacity, so that adding a response costs about
+     * the size of its leaf; copies of the tree (new Regtree(t), the binary format) fold them into responses.
+     */
+    public double[][] responseOverflow;
+    public int[] numOverflow;
+    public double[] ysum;
+    public double[] ysumOfSq;
     public int[] var;
     public double[] cut;
     public int[][] children;
@@ -32,6 +49,8 @@ public strictfp class Regtree implements java.io.Serializable {
     public boolean resultsStoredInLeaves;
     
     public boolean preprocessed;
+    /* Whether a view from preprocessingView may share this tree's arrays; the next update copies the arrays it changes. */
+    boolean sharedWithView = false;
     public double[] weightedpred;
     public double[] weightedvar;
     public double[] weights;
@@ -72,7 +91,7 @@ public strictfp class Regtree implements java.io.Serializable {
     		if (!Arrays.equals(cut,rt.cut)) return false;
     		
     		if (!Arrays.deepEquals(catsplit,rt.catsplit)) return false;
-    		if (!Arrays.deepEquals(ysub,rt.ysub)) return false;
+    		if (!sameResponses(rt)) return false;
     		if (!Arrays.deepEquals(children,rt.children)) return false;
     		
     		if (!Arrays.equals(parent,rt.parent)) return false;
@@ -191,10 +210,68 @@ public strictfp class Regtree implements java.io.Serializable {
         catsplit = new int[ncatsplit][];
         
         if (resultsStoredInLeaves) {
-            ysub = new double[numNodes][];
+            responseOffsets = new int[numNodes+1];
+            responses = new double[0];
         } else {
-            ysub = new double[numNodes][2]; // sum, sumofsq
+            ysum = new double[numNodes];
+            ysumOfSq = new double[numNodes];
+        }
+    }
+    
+    //======================================================================\\
+    //                         RESPONSE ACCESS                              \\
+    //======================================================================\\
+    
+    /**
+     * @returns a copy of the responses stored in the given node (empty for nodes without responses); needs resultsStoredInLeaves.
+     */
+    public double[] getResponses(int node) {
+        if (ysub != null) {
+            return (ysub[node] == null ? new double[0] : ysub[node].clone());
         }
+        int numArena = responseOffsets[node+1] - responseOffsets[node];
+        double[] retn = Arrays.copyOfRange(responses, responseOffsets[node], responseOffsets[node] + getNumResponses(node));
+        if (retn.length > numArena) {
+            System.arraycopy(responseOverflow[node], 0, retn, numArena, retn.length - numArena);
+        }
+        return retn;
+    }
+    
+    /**
+     * @returns the number of responses stored in the given node; needs resultsStoredInLeaves.
+     */
+    public int getNumResponses(int node) {
+        if (ysub != null) {
+            return (ysub[node] == null ? 0 : ysub[node].length);
+        }
+        return responseOffsets[node+1] - responseOffsets[node] + (numOverflow == null ? 0 : numOverflow[node]);
+    }
+    
+    /**
+     * @returns the sum of the responses in the given node; needs !resultsStoredInLeaves.
+     */
+    public double getResponseSum(int node) {
+        return (ysub != null ? ysub[node][0] : ysum[node]);
+    }
+    
+    /**
+     * @returns the sum of squares of the responses in the given node; needs !resultsStoredInLeaves.
+     */
+    public double getResponseSumOfSq(int node) {
+        return (ysub != null ? ysub[node][1] : ysumOfSq[node]);
+    }
+    
+    private boolean sameResponses(Regtree rt) {
+        if (numNodes != rt.numNodes) return false;
+        for (int i=0; i < numNodes; i++) {
+            if (resultsStoredInLeaves) {
+                if (!Arrays.equals(getResponses(i), rt.getResponses(i))) return false;
+            } else {
+                if (Double.compare(getResponseSum(i), rt.getResponseSum(i)) != 0) return false;
+                if (Double.compare(getResponseSumOfSq(i), rt.getResponseSumOfSq(i)) != 0) return false;
+            }
+        }
+        return true;
     }
     
     public Regtree(Regtree t) {
@@ -217,15 +294,39 @@ public strictfp class Regtree implements java.io.Serializable {
         for (int i=0; i < numNodes; i++) {
             children[i][0] = t.children[i][0];
             children[i][1] = t.children[i][1];
-            
-            if (resultsStoredInLeaves) {
-                int Nnode = (var[i] == 0 ? nodesize[i] : 0);
-                if (Nnode != 0) {
-                    ysub[i] = new double[Nnode];
-                    System.arraycopy(t.ysub[i], 0, ysub[i], 0, Nnode);
+        }
+        
+        if (resultsStoredInLeaves) {
+            if (t.ysub == null && t.responseOverflow == null) {
+                System.arraycopy(t.responseOffsets, 0, responseOffsets, 0, numNodes+1);
+                responses = t.responses.clone();
+            } else if (t.ysub == null) {
+                // Fold the responses added by update into the flat layout.
+                for (int i=0; i < numNodes; i++) {
+                    responseOffsets[i+1] = responseOffsets[i] + t.getNumResponses(i);
+                }
+                responses = new double[responseOffsets[numNodes]];
+                for (int i=0; i < numNodes; i++) {
+                    double[] leaf = t.getResponses(i);
+                    System.arraycopy(leaf, 0, responses, responseOffsets[i], leaf.length);
                 }
             } else {
-                System.arraycopy(t.ysub[i], 0, ysub[i], 0, t.ysub[i].length);
+                // Convert the old layout, keeping the responses of leaves only.
+                for (int i=0; i < numNodes; i++) {
+                    int Nnode = (var[i] == 0 ? nodesize[i] : 0);
+                    responseOffsets[i+1] = responseOffsets[i] + Nnode;
+                }
+                responses = new double[responseOffsets[numNodes]];
+                for (int i=0; i < numNodes; i++) {
+                    if (responseOffsets[i+1] > responseOffsets[i]) {
+                        System.arraycopy(t.ysub[i], 0, responses, responseOffsets[i], responseOffsets[i+1] - responseOffsets[i]);
+                    }
+                }
+            }
+        } else {
+            for (int i=0; i < numNodes; i++) {
+                ysum[i] = t.getResponseSum(i);
+                ysumOfSq[i] = t.getResponseSumOfSq(i);
             }
         }
         
@@ -242,6 +343,43 @@ public strictfp class Regtree implements java.io.Serializable {
         recalculateStats();
     }
     
+    /**
+     * @returns a tree that shares all arrays of t except var and children, which are copied. This is all that
+     * RegtreeFwd.preprocess_inst_splits changes (it allocates the weight arrays itself). update copies the arrays it
+     * changes while t.sharedWithView is set, so updating t later does not affect the view. Trees with the old ysub layout are copied in full.
+     */
+    static Regtree preprocessingView(Regtree t) {
+        if (t.ysub != null) {
+            return new Regtree(t);
+        }
+        Regtree view = new Regtree(t.numNodes, t.logModel);
+        view.npred = t.npred;
+        view.node = t.node;
+        view.parent = t.parent;
+        view.cut = t.cut;
+        view.nodesize = t.nodesize;
+        view.catsplit = t.catsplit;
+        view.resultsStoredInLeaves = t.resultsStoredInLeaves;
+        view.responses = t.responses;
+        view.responseOffsets = t.responseOffsets;
+        view.responseOverflow = t.responseOverflow;
+        view.numOverflow = t.numOverflow;
+        view.ysum = t.ysum;
+        view.ysumOfSq = t.ysumOfSq;
+        view.nodepred = t.nodepred;
+        view.nodevar = t.nodevar;
+        view.preprocessed = t.preprocessed;
+        t.sharedWithView = true;
+        
+        view.var = t.var.clone();
+        view.children = new int[t.numNodes][2];
+        for (int i=0; i < t.numNodes; i++) {
+            view.children[i][0] = t.children[i][0];
+            view.children[i][1] = t.children[i][1];
+        }
+        return view;
+    }
+    
     /**
      * Gets a prediction for the given instantiations of features
      * @returns a matrix of size X.length*2 where index (i,0) is the prediction for X[i] 
@@ -305,13 +443,49 @@ public strictfp class Regtree implements java.io.Serializable {
         int[] nodes = RegtreeFwd.fwd(tree, newx);
         boolean[] nodeChanged = new boolean[tree.node.length];
         
+        //=== Copy the arrays changed in place below if they may be shared with preprocessed views of this tree; once is enough.
+        if (tree.sharedWithView) {
+            tree.nodesize = tree.nodesize.clone();
+            tree.nodepred = tree.nodepred.clone();
+            tree.nodevar = tree.nodevar.clone();
+            if (tree.ysum != null) {
+                tree.ysum = tree.ysum.clone();
+                tree.ysumOfSq = tree.ysumOfSq.clone();
+            }
+            if (tree.responseOverflow != null) {
+                // Views only read up to their own numOverflow, so appending to the shared per-node arrays is safe.
+                tree.responseOverflow = tree.responseOverflow.clone();
+                tree.numOverflow = tree.numOverflow.clone();
+            }
+            tree.sharedWithView = false;
+        }
+        if (tree.resultsStoredInLeaves && tree.ysub == null && tree.responseOverflow == null) {
+            tree.responseOverflow = new double[tree.numNodes][];
+            tree.numOverflow = new int[tree.numNodes];
+        }
+        
         for (int i = 0; i < newx.length; i++) {
             int node = nodes[i];
             nodeChanged[node] = true;
 
             int Nnode = tree.nodesize[node];
 
-            if (tree.resultsStoredInLeaves) {
+            if (tree.ysub == null) {
+                if (tree.resultsStoredInLeaves) {
+                    // Append to the node's overflow responses, doubling their capacity when full.
+                    double[] overflow = tree.responseOverflow[node];
+                    int numOverflow = tree.numOverflow[node];
+                    if (overflow == null || numOverflow == overflow.length) {
+                        overflow = (overflow == null ? new double[4] : Arrays.copyOf(overflow, 2*numOverflow));
+                        tree.responseOverflow[node] = overflow;
+                    }
+                    overflow[numOverflow] = newy[i];
+                    tree.numOverflow[node]++;
+                } else {
+                    tree.ysum[node] += newy[i]; // sum
+                    tree.ysumOfSq[node] += newy[i]*newy[i]; // sum of squares
+                }
+            } else if (tree.resultsStoredInLeaves) {
                 double[] newysub = new double[Nnode+1];
                 if (Nnode != 0) {
                     System.arraycopy(tree.ysub[node], 0, newysub, 0, Nnode);
@@ -355,11 +529,18 @@ public strictfp class Regtree implements java.io.Serializable {
     public void recalculateStats(int node) {
         if (var[node] != 0) return;
         
-        if (resultsStoredInLeaves) {
+        if (resultsStoredInLeaves && ysub == null && (numOverflow == null || numOverflow[node] == 0)) {
+            nodepred[node] = Utils.mean(responses, responseOffsets[node], responseOffsets[node+1]);
+            nodevar[node] = Utils.var(responses, responseOffsets[node], responseOffsets[node+1]);
+        } else if (resultsStoredInLeaves && ysub == null) {
+            double[] leaf = getResponses(node);
+            nodepred[node] = Utils.mean(leaf);
+            nodevar[node] = Utils.var(leaf);
+        } else if (resultsStoredInLeaves) {
             nodepred[node] = Utils.mean(ysub[node]);
             nodevar[node] = Utils.var(ysub[node]);
         } else {
-            double sum = ysub[node][0], sumOfSq = ysub[node][1];
+            double sum = getResponseSum(node), sumOfSq = getResponseSumOfSq(node);
             int N = nodesize[node];
             
             nodepred[node] = sum/N;
@@ -622,7 +803,141 @@ public strictfp class Regtree implements java.io.Serializable {
 
     	return result;
     }
-    
+
+    /**
+     * Compute the marginal performance of dimension dim for all of its values in a single sweep over the leaves.
+     * The marginal is piecewise constant between the cuts of this tree on dim, so the result holds one value per
+     * interval between these cuts (or one value per domain value for categorical dimensions).
+     * Each value agrees with marginalPerformance for any point inside the interval.
+     */
+    public MarginalCurve marginalPerformanceCurve(int dim){
+    	return marginalPerformanceCurve(new int[]{dim});
+    }
+
+    /**
+     * Compute the marginal performance of the pair of dimensions (dim1, dim2) on the grid spanned by the cuts of this tree on them.
+     * @see marginalPerformanceCurve
+     */
+    public MarginalCurve marginalPerformanceSurface(int dim1, int dim2){
+    	if (dim1 == dim2){
+    		throw new IllegalArgumentException("Dimensions of a marginal performance surface must differ, but both are " + dim1);
+    	}
+    	return marginalPerformanceCurve(new int[]{dim1, dim2});
+    }
+
+    private MarginalCurve marginalPerformanceCurve(int[] dims){
+    	if (!leafInfoIsPrecomputed){
+    		throw new RuntimeException("Leaf info has to be precomputed before predicting marginal performance.");
+    	}
+    	for (int d: dims){
+    		if (d < 0 || d >= isCatDimension.length){
+    			throw new IllegalArgumentException("Dimension " + d + " does not exist; the leaf info was precomputed for " + isCatDimension.length + " dimensions.");
+    		}
+    	}
+
+    	//=== Collect the breakpoints along each axis.
+    	boolean[] isCat = new boolean[dims.length];
+    	double[][] breakpoints = new double[dims.length][];
+    	for (int axis=0; axis<dims.length; axis++){
+    		isCat[axis] = isCatDimension[dims[axis]];
+    		breakpoints[axis] = leafBreakpoints(dims[axis]);
+    	}
+    	MarginalCurve curve = new MarginalCurve(dims.clone(), isCat, breakpoints);
+
+    	int numCells2 = (dims.length == 2 ? curve.numCells(1) : 1);
+    	//=== Continuous leaf ranges are added as differences and summed up in one pass at the end; cellSums has one extra slot per row for that.
+    	double[] cellSums = new double[curve.numCells(0) * (numCells2+1)];
+
+    	for(Integer leafIdx:leafIndices){
+    		double p = 1;
+    		for (int j=0; j<isCatDimension.length; j++){
+    			if (j == dims[0] || (dims.length == 2 && j == dims[1])) continue;
+    			p = p*leafDomainPercentage[leafIdx][j];
+    		}
+    		double value = p * weights[leafIdx] * nodepred[leafIdx];
+    		if (value == 0) continue;
+
+    		if (dims.length == 1){
+    			addToCells(cellSums, 0, 1, dims[0], isCat[0], breakpoints[0], leafIdx, value);
+    		} else {
+    			//=== Walk the cells of the first axis that this leaf covers, and add to the covered cells in each of these rows.
+    			int d = dims[0];
+    			if (isCat[0]){
+    				for (Integer catValue: leafallCatValues[leafIdx][d]){
+    					addToCells(cellSums, catValue*(numCells2+1), 1, dims[1], isCat[1], breakpoints[1], leafIdx, value);
+    				}
+    			} else {
+    				int first = Arrays.binarySearch(breakpoints[0], leafContLB[leafIdx][d]);
+    				int last = Arrays.binarySearch(breakpoints[0], leafContUB[leafIdx][d]);
+    				for (int c=first; c<last; c++){
+    					addToCells(cellSums, c*(numCells2+1), 1, dims[1], isCat[1], breakpoints[1], leafIdx, value);
+    				}
+    			}
+    		}
+    	}
+
+    	//=== Resolve the differences along the last axis (if it is continuous).
+    	int numRows = (dims.length == 2 ? curve.numCells(0) : 1);
+    	int rowLength = (dims.length == 2 ? numCells2 : curve.numCells(0));
+    	boolean lastAxisIsCat = isCat[dims.length-1];
+    	for (int row=0; row<numRows; row++){
+    		double running = 0;
+    		int rowStart = row*(rowLength+1);
+    		for (int c=0; c<rowLength; c++){
+    			if (lastAxisIsCat){
+    				curve.values[row*rowLength + c] = cellSums[rowStart + c];
+    			} else {
+    				running += cellSums[rowStart + c];
+    				curve.values[row*rowLength + c] = running;
+    			}
+    		}
+    	}
+    	return curve;
+    }
+
+    /**
+     * Adds value to the cells of one row of cellSums that leaf leafIdx covers in dimension d.
+     * Continuous ranges are stored as differences (+value at the first cell, -value after the last one).
+     */
+    private void addToCells(double[] cellSums, int rowStart, int stride, int d, boolean isCat, double[] breakpoints, int leafIdx, double value){
+    	if (isCat){
+    		for (Integer catValue: leafallCatValues[leafIdx][d]){
+    			cellSums[rowStart + stride*catValue] += value;
+    		}
+    	} else {
+    		int first = Arrays.binarySearch(breakpoints, leafContLB[leafIdx][d]);
+    		int last = Arrays.binarySearch(breakpoints, leafContUB[leafIdx][d]);
+    		if (first >= last) return; // the leaf covers no interval of positive length
+    		cellSums[rowStart + stride*first] += value;
+    		cellSums[rowStart + stride*last] -= value;
+    	}
+    }
+
+    /**
+     * @returns the sorted, distinct bounds of all leaves in dimension d, or the categorical domain values of d.
+     */
+    private double[] leafBreakpoints(int d){
+    	if (isCatDimension[d]){
+    		double[] values = new double[categoricalDomainSizes[d]];
+    		for (int i=0; i<values.length; i++) values[i] = i;
+    		return values;
+    	}
+    	double[] bounds = new double[2*leafIndices.size()];
+    	int numBounds = 0;
+    	for(Integer leafIdx:leafIndices){
+    		bounds[numBounds++] = leafContLB[leafIdx][d];
+    		bounds[numBounds++] = leafContUB[leafIdx][d];
+    	}
+    	Arrays.sort(bounds, 0, numBounds);
+    	int numUnique = 0;
+    	for (int i=0; i<numBounds; i++){
+    		if (numUnique == 0 || bounds[i] != bounds[numUnique-1]){
+    			bounds[numUnique++] = bounds[i];
+    		}
+    	}
+    	return Arrays.copyOf(bounds, numUnique);
+    }
+
     /**
      * Precompute which ranges of parameters fall into which leaves.
      * isCat holds a Boolean for each of dim dimensions, true for categorical and false for continuous parameters
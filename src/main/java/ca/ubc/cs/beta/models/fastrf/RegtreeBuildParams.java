@@ -17,6 +17,7 @@ import java.util.Arrays;
  * @param seed -1 means don't use a seed (i.e. create a new Random but don't call setSeed). 
  * @param random will be used instead of seed if it's not null.
  * @param minVariance - Minimum Variance value that will ever be returned on apply call
+ * @param fitListener receives timings and sizes while trees are fitted, if not null (see RegtreeFitStatistics). Not serialized.
  */
 public strictfp class RegtreeBuildParams implements java.io.Serializable {    
 	public RegtreeBuildParams(int numVars, boolean doBootstrapping) {
@@ -109,6 +110,7 @@ public strictfp class RegtreeBuildParams implements java.io.Serializable {
     public long seed = -1;
     public Random random = null;
 	public boolean brokenVarianceCalculation = true;
+	public transient RegtreeFitListener fitListener = null;
     
     /**
      * DEPRECATED
@@ -174,6 +176,7 @@ public strictfp class RegtreeBuildParams implements java.io.Serializable {
 			bpNew.storeResponses = bp.storeResponses;
 			
 			bpNew.seed = bp.seed;
+			bpNew.fitListener = bp.fitListener;
 			return bpNew;
 	}
 	
@@ -65,6 +65,10 @@ public strictfp class RegtreeFit {
 	
 	private static int numleft;
 	private static int numright;
+	
+	// Second results of prepare_for_cont_critval and critval_cont, so that the split search does not allocate.
+	private static int numUniqData;
+	private static double cutvalcont;
 	private static int[] leftside;
 	private static int[] rightside;
     	
@@ -82,7 +86,9 @@ public strictfp class RegtreeFit {
      * @params params see RegtreeBuildParams
      */
     public static Regtree fit(double[][] allTheta, double[][] allX, int[][] dataIdxs, double[] y, RegtreeBuildParams params) {
-    	boolean printDebug = false;
+    	RegtreeFitListener listener = params.fitListener;
+    	Object event = FlightRecorderEvents.beginTreeFit();
+    	boolean instrumented = (listener != null || event != null);
     	/*
     	if(RoundingMode.ROUND_NUMBERS_FOR_MATLAB_SYNC)
     	{
@@ -90,8 +96,7 @@ public strictfp class RegtreeFit {
     	}*/
     
       
-    	long startTime = new Date().getTime();
-    	long currentTime = startTime;
+    	long startTime = (listener == null ? 0 : System.nanoTime());
     	
         if (dataIdxs == null || dataIdxs.length == 0) throw new RuntimeException("Cannot build a tree with no data.");
         int N = dataIdxs.length;
@@ -198,6 +203,7 @@ public strictfp class RegtreeFit {
         
         //int[][] condParents = params.condParents;
         //int[][][] condParentVals = params.condParentVals; 
+        CompiledConditions conditions = CompiledConditions.compile(params, nvars);
         
         //=== Extract tuning parameters.
         double ratioFeatures = params.ratioFeatures;
@@ -213,7 +219,10 @@ public strictfp class RegtreeFit {
         int[] leftchildren = new int[2*N];
         int[] rightchildren = new int[2*N];
         int[] parent = new int[2*N];
-        double[][] ysub = new double[2*N][];
+        // Responses of the leaves, each leaf's in one range: every data point ends up in exactly one leaf.
+        double[] leafResponses = new double[N];
+        int[] leafResponseStart = new int[2*N];
+        int numLeafResponses = 0;
         
         int ncatsplit = 0;
         int[][] catsplit = new int[2*N][];
@@ -232,6 +241,17 @@ public strictfp class RegtreeFit {
         int[] bestRight = new int[maxDomSize];
         leftside = new int[maxDomSize];
         rightside = new int[maxDomSize];     
+        int[] compatibleValues = new int[maxDomSize];
+        int[] missing_values_for_left = new int[maxDomSize];
+        int[] missing_values_for_right = new int[maxDomSize];
+        
+        // Domains of the variables at the nodes on the stack, one slot per stack position; only needed for categorical splits and conditions.
+        // Every node on the stack holds at least one data point, so there are at most N of them, plus the slot of a second child.
+        NodeDomains domains = null;
+        if (maxDomSize > 0 || conditions != null) {
+            domains = new NodeDomains(catDomainSizes, (conditions == null ? new int[0] : conditions.parents), N+1);
+            domains.setRoot(0);
+        }
         
         maxlocs = new int[Math.max(N, maxDomSize)-1];
         
@@ -247,6 +267,9 @@ public strictfp class RegtreeFit {
         
         double ystd = Utils.var(y);
         
+        long presortStart = (instrumented ? System.nanoTime() : 0);
+        int[] nodedepth = (instrumented ? new int[2*N] : null);
+        
         //=== Start: pre-sort each variable
         // The entries of sortedTheta and sortedX are indices into allTheta/allX.
         int[][] sortedTheta = new int[numThetavars][];
@@ -354,11 +377,13 @@ public strictfp class RegtreeFit {
         int stacktop = 0; // Top of the stack
         int numNodes = 1; // Number of nodes in the tree so far
         
-        if (printDebug) System.out.println("Setup took " + (-currentTime + (currentTime = new Date().getTime())) + " milliseconds.");
+        long presortNanos = (instrumented ? System.nanoTime() - presortStart : 0);
+        if (listener != null) listener.presorted(presortNanos);
         
         while (stacktop >= 0) {
         	//== Get the data for this node.
             int tnode = stack[stacktop--];
+            int slot = stacktop+1; // the slot of this node's domains, and the left child's after the split
             
             index_into_dataIdxs_here = y_node[tnode];
             ynodeTheta = y_Theta[tnode];
@@ -390,128 +415,14 @@ public strictfp class RegtreeFit {
             if (impure && Nnode >= splitMin) { // split only impure nodes with more than a threshold of uncensored values
                 //=== Start: handle conditional parameters. 
                 int nvarsenabled = 0; // #variables that are active for sure given the variable instantiations up to the root 
-                if (params.nameConditionsMapParentsArray == null || params.nameConditionsMapParentsArray.isEmpty()) {
+                if (conditions == null) {
                     nvarsenabled = nvars;
                     for (int i=0; i < nvars; i++) {
                         randomPermutation[i] = i;
                     }
                 } else {
                 	//TODO: Missing check: parameters are only active if all their parents are active
-                	for (int idx=0; idx< nvars; idx++) {
-                		boolean fullfill_disj = false;
-                		if (params.nameConditionsMapParentsArray.get(idx) == null) {
-                			randomPermutation[nvarsenabled++] = idx;
-                			continue; // this parameter does not have any parents => active.
-                		}
-                		for(int i=0; i < params.nameConditionsMapParentsArray.get(idx).length; i++) {
-                			boolean fullfill_clause = true;
-                			for(int j=0; j < params.nameConditionsMapParentsArray.get(idx)[i].length; j++) {
-                				int parent_idx = params.nameConditionsMapParentsArray.get(idx)[i][j];
-                				double[] values = params.nameConditionsMapParentsValues.get(idx)[i][j];
-                				int op = params.nameConditionsMapOp.get(idx)[i][j];
-                				// how to decide whether a variable is categorical:
-                				boolean is_var_cat = (catDomainSizes[parent_idx] != 0);
-                				int[] compatibleValues = null;
-                				boolean fullfill_cond = true;
-                				
-                				if (is_var_cat) {
-                					compatibleValues = getCompatibleValues(tnode, parent_idx, N, parent, cutvar, cutpoint, leftchildren, rightchildren, catsplit, catDomainSizes);
-                					for(int cv : compatibleValues) {
-	            						boolean isok = false;
-	            						if (op == 0) { //EQ
-	            							double ov = values[0]; 
-	            							if (cv == ov) {
-	                							isok = true;
-	                						}
-	            						}
-	            						if (op == 1) { //NEQ
-	            							double ov = values[0]; 
-	            							if (cv != ov) {
-	                							isok = true;
-	                						}
-	            						}
-	            						if (op == 2) { //LE
-	            							double ov = values[0]; 
-	            							if (cv < ov) {
-	                							isok = true;
-	                						}
-	            						}
-	            						if (op == 3) { //GR
-	            							double ov = values[0]; 
-	            							if (cv > ov) {
-	                							isok = true;
-	                						}
-	            						}
-	            						if (op == 4) { //IN
-	            							for (double ov: values) {
-	            								if (cv == ov) {
-	                    							isok = true;
-	                    							break;
-	                    						}
-	            							}
-	            						}
-		                				if (!isok) {
-		        							fullfill_cond = false;
-		        							break;
-		        						}
-	                				}
-            					}
-                				else {
-                					double[] compatbileRange = getCompatibleRange(tnode, parent_idx, N, parent, cutvar, cutpoint, leftchildren, rightchildren);
-            						if (op == 0) { //EQ
-            							double ov = values[0]; 
-            							if (!(ov - compatbileRange[0] < Math.pow(10,-6) &&
-            								ov > compatbileRange[0] &&
-            								compatbileRange[1] - ov < Math.pow(10,-6) &&
-            								compatbileRange[1] > ov)) {
-            									fullfill_cond = false;
-                						}
-            						}
-            						if (op == 1) { //NEQ
-            							double ov = values[0]; 
-            							if (!((ov < compatbileRange[0]) || (ov > compatbileRange[1]))) {
-            								fullfill_cond = false;
-            							}
-            						}
-            						if (op == 2) { //LE
-            							double ov = values[0]; 
-            							if (!(compatbileRange[0] < ov)) {
-            								fullfill_cond = false;
-                						}
-            						}
-            						if (op == 3) { //GR
-            							double ov = values[0]; 
-            							if (!(compatbileRange[1] > ov)) {
-            								fullfill_cond = false;
-                						}
-            						}
-            						if (op == 4) { //IN
-            							boolean one_fits = false;
-            							for (double ov: values) {
-            								if (ov - compatbileRange[0] < Math.pow(10,-6) &&
-                    								ov > compatbileRange[0] &&
-                    								compatbileRange[1] - ov < Math.pow(10,-6) &&
-                    								compatbileRange[1] > ov) {
-                    								one_fits = true;
-                    								break;
-                    						}
-            							}
-            							fullfill_cond = one_fits;
-            						}
-                				}
-            					
-            					if (!fullfill_cond) {
-            						fullfill_clause = false;
-            					}
-                			}
-                			if (fullfill_clause) {
-                				fullfill_disj = true;
-                			}
-                		}
-                		if (fullfill_disj) {
-                			randomPermutation[nvarsenabled++] = idx;
-                		}
-                	}
+                	nvarsenabled = conditions.activeVars(randomPermutation, domains, slot);
                 }
                 
               //following code block is DEPRECATED
@@ -557,8 +468,11 @@ public strictfp class RegtreeFit {
                 double bestcrit = -1e12;
                 
                 //=== Try splitting each variable at every split point and pick best split ===
+                long splitSearchStart = (listener == null ? 0 : System.nanoTime());
+                int numVarsEvaluated = 0;
                 for (int i=0; i < nvarsenabled; i++) {
                     int nextvar = randomPermutation[i];
+                    numVarsEvaluated++;
                     boolean is_nextvar_cat = (catDomainSizes[nextvar] != 0);
                     
                     int varIdx, numData;
@@ -602,16 +516,12 @@ public strictfp class RegtreeFit {
                         }
                     } else { // Continuous variable  
                     	// Get the values of y that we have in this node, in order corresponding to sorted variable values
-                        int[] results = prepare_for_cont_critval(varIdx, is_X, numData, sortedData, allData, Nnode, index_into_dataIdxs_here, ynodeData, variableValuesHere);
-                        if (results == null) continue;
-                        
-                        int numUniqData = results[0];
-                        int numUniqValues = results[1];
+                        int numUniqValues = prepare_for_cont_critval(varIdx, is_X, numData, sortedData, allData, Nnode, index_into_dataIdxs_here, ynodeData, variableValuesHere);
+                        if (numUniqValues <= 1) continue;
                         
                         // Compute critval
-                        double[] result = critval_cont(numUniqData, numUniqValues, uniqueIdxs, index_into_dataIdxs_here, ynodeData, dataRowsHere, variableValuesHere);
-                        critval = result[0];
-                        cutval = result[1];
+                        critval = critval_cont(numUniqData, numUniqValues, uniqueIdxs, index_into_dataIdxs_here, ynodeData, dataRowsHere, variableValuesHere);
+                        cutval = cutvalcont;
                         //=== Change best split if this one is best so far.
                         if (critval > bestcrit + 1e-10) {
                             bestcrit = critval;
@@ -628,6 +538,12 @@ public strictfp class RegtreeFit {
                         break;
                     }
                 }
+                long partitionStart = 0;
+                if (listener != null) {
+                    partitionStart = System.nanoTime();
+                    listener.splitSearched(tnode, nodedepth[tnode], Nnode, numVarsEvaluated, bestvar != -1, partitionStart - splitSearchStart);
+                }
+                
                 //=== Best split point has been found. Split this node using the best rule found.
                 if (bestvar != -1) {
                     // Create primaryGoesLeft and yGoesLeft in order to create y_node, y_Theta, and y_X for children
@@ -673,14 +589,8 @@ public strictfp class RegtreeFit {
                         cutvar[tnode] = -(bestvar+1); // negative indicates cat. var. split
                         cutpoint[tnode] = ncatsplit; // index into catsplit cell array. 0-indexed!!!
                         
-                        /* 1: To get all compatible values, walk up the tree, looking
-                         * for a split on the same parameter. If none is found
-                         * take the initial domain of that parameter.
-                         */
-                        int[] compatibleValues = getCompatibleValues(tnode, bestvar, N, parent, cutvar, cutpoint, leftchildren, rightchildren, catsplit, catDomainSizes);
-                        
-                        int[] missing_values_for_left = new int[compatibleValues.length];
-                        int[] missing_values_for_right = new int[compatibleValues.length];
+                        // 1: Get all compatible values, in ascending order, from the domains of this node.
+                        int numCompatibleValues = domains.compatibleValues(slot, bestvar, compatibleValues);
                         
                         // 2: For each compatible but missing value choose a side u.a.r.
                         for (int i=0; i < catDomainSizes[bestvar]; i++) dataRowsHere[i] = 0;
@@ -688,7 +598,7 @@ public strictfp class RegtreeFit {
                         for (int i=0; i < numBestRight; i++) dataRowsHere[bestRight[i]-1] = 1;
 
 						int num_missing_to_left = 0, num_missing_to_right = 0;
-                        for (int i=0; i < compatibleValues.length; i++) {
+                        for (int i=0; i < numCompatibleValues; i++) {
                             int nextValue = compatibleValues[i];
                             if (dataRowsHere[nextValue-1] == 0) {
                                 // Missing but compatible value: choose side u.a.r.
@@ -907,26 +817,40 @@ public strictfp class RegtreeFit {
                     nodesize[numNodes] = nleft;
                     nodesize[numNodes+1] = nright;
                     
+                    // The left child keeps this node's slot of domains and the right child gets the next one; both are narrowed by the split.
+                    if (domains != null) {
+                        domains.copy(slot, slot+1);
+                        if (cutvar[tnode] < 0) {
+                            domains.setCompatibleValues(slot, bestvar, catsplit[(int)cutpoint[tnode]]);
+                            domains.setCompatibleValues(slot+1, bestvar, catsplit[(int)cutpoint[tnode]+N]);
+                        } else {
+                            domains.setUpperBound(slot, bestvar, cutpoint[tnode]);
+                            domains.setLowerBound(slot+1, bestvar, cutpoint[tnode]);
+                        }
+                    }
+                    
                     stack[++stacktop] = numNodes;
                     stack[++stacktop] = numNodes+1;
                     numNodes += 2; 
+                    
+                    if (instrumented) {
+                        nodedepth[numNodes-2] = nodedepth[numNodes-1] = nodedepth[tnode] + 1;
+                    }
+                    if (listener != null) {
+                        listener.partitioned(tnode, nodedepth[tnode], Nnode, System.nanoTime() - partitionStart);
+                    }
                 }
             }
             
             if (cutvar[tnode] == 0) {
                 // Leaf => store results falling here (don't store them everywhere to avoid O(N^2) storage)
                 // Save *runtimes*, not losses. 
-                ysub[tnode] = new double[Nnode];
+                leafResponseStart[tnode] = numLeafResponses;
                 for (int i=0; i < Nnode; i++) {
                     int idx = index_into_dataIdxs_here[i];
-                    ysub[tnode][i] = y[idx];
+                    leafResponses[numLeafResponses++] = y[idx];
                 }
             }
-            if (printDebug) {
-            	long diff = (-currentTime + (currentTime = new Date().getTime()));
-            	if (diff > 1000)
-            		System.out.println("Node " + tnode + " had " + Nnode + " data points and took " + diff + " milliseconds.");
-            }
         }
         
         //==================== Build the actual tree ===========================
@@ -956,33 +880,42 @@ public strictfp class RegtreeFit {
             tree.catsplit[cs_idx] = tmp;
 	   }
         
+       if (params.storeResponses) {
+            for (int i=0; i < numNodes; i++) {
+                int Nnode = leftchildren[i] == 0 ? nodesize[i] : 0;
+                tree.responseOffsets[i+1] = tree.responseOffsets[i] + Nnode;
+            }
+            tree.responses = new double[tree.responseOffsets[numNodes]];
+        }
+        
        for (int i=0; i < numNodes; i++) {
             tree.children[i][0] = leftchildren[i];
             tree.children[i][1] = rightchildren[i];
             
             int Nnode = leftchildren[i] == 0 ? nodesize[i] : 0;            
             if (Nnode != 0) {
+                int start = leafResponseStart[i];
                 if (params.storeResponses) {
-                    tree.ysub[i] = new double[Nnode];
+                    int offset = tree.responseOffsets[i];
                     if (tree.logModel>0) {
                         for(int n=0; n<Nnode; n++){
-                            tree.ysub[i][n] = Math.pow(10, ysub[i][n]);
+                            tree.responses[offset+n] = Math.pow(10, leafResponses[start+n]);
                         }
                     } else {
-                        System.arraycopy(ysub[i], 0, tree.ysub[i], 0, Nnode);
+                        System.arraycopy(leafResponses, start, tree.responses, offset, Nnode);
                     }
                 } else {
                     double sum = 0, sumOfSq = 0;
                     for (int j=0; j < Nnode; j++) {
-                        double next = ysub[i][j];
+                        double next = leafResponses[start+j];
                         if (tree.logModel > 0){
                             next = Math.pow(10, next);
                         }
                         sum += next;
                         sumOfSq += next * next;
                     }
-                    tree.ysub[i][0] = sum;
-                    tree.ysub[i][1] = sumOfSq;
+                    tree.ysum[i] = sum;
+                    tree.ysumOfSq[i] = sumOfSq;
                 }
             }
         }
@@ -1004,13 +937,25 @@ public strictfp class RegtreeFit {
         leftside = null;
         rightside = null;
         
-    	if (printDebug)
-    		System.out.println("Building the tree took a total of " + (new Date().getTime() - startTime) + " milliseconds.");   	
+        if (instrumented) {
+            int numLeaves = 0, depth = 0;
+            for (int i=0; i < numNodes; i++) {
+                if (leftchildren[i] == 0) {
+                    numLeaves++;
+                    depth = Math.max(depth, nodedepth[i]);
+                }
+            }
+            if (listener != null) listener.fitted(numNodes, numLeaves, depth, System.nanoTime() - startTime);
+            FlightRecorderEvents.endTreeFit(event, N, nvars, numNodes, numLeaves, depth, presortNanos);
+        }
         return tree;
     }
     
-    private static int[] prepare_for_cont_critval(int varIdx, int is_X, int numData, int[][] sortedData, double[][] allData, int Nnode, int[] index_into_dataIdxs_here, int[][] ynodeData, double[] variableValuesHere) {
-    	int numUniqData = 0;
+    /**
+     * @returns the number of unique values of the variable in this node, and sets numUniqData.
+     */
+    private static int prepare_for_cont_critval(int varIdx, int is_X, int numData, int[][] sortedData, double[][] allData, int Nnode, int[] index_into_dataIdxs_here, int[][] ynodeData, double[] variableValuesHere) {
+    	numUniqData = 0;
         int numUniqValues = 0;
     	if (ynodeData == null) { // do Nnode log Nnode sorting
             for (int j=0; j < Nnode; j++) {
@@ -1045,11 +990,13 @@ public strictfp class RegtreeFit {
                 }
             }
         }
-        if (numUniqValues <= 1) return null;
-        return new int[]{numUniqData, numUniqValues};
+        return numUniqValues;
 	}
 
-	private static double[] critval_cont(int numUniqData, int numUniqValues, int[] uniqueIdxs, int[] index_into_dataIdxs_here, int[][] ynodeData, int[] dataRowsHere, double[] variableValuesHere) {
+	/**
+	 * @returns the best critval of splitting on the variable, and sets cutvalcont to the corresponding cut point.
+	 */
+	private static double critval_cont(int numUniqData, int numUniqValues, int[] uniqueIdxs, int[] index_into_dataIdxs_here, int[][] ynodeData, int[] dataRowsHere, double[] variableValuesHere) {
         double critval = INVALID_CRITVAL;
 
         ycum[0] = 0;
@@ -1110,7 +1057,8 @@ public strictfp class RegtreeFit {
                 throw new RuntimeException("random splitpoint has to lie in between the upper and lower limit");
             }
         }
-        return new double[]{critval, cutval};
+        cutvalcont = cutval;
+        return critval;
 	}
 	
 	private static double critval_cat(int varIdx, int var_is_X, double[][] allData, int Nnode, int[] index_into_dataIdxs_here, int domSize) {
@@ -1177,79 +1125,6 @@ public strictfp class RegtreeFit {
 		return critval;
 	}
     
-    //=== Get the values of variable var's domain that it could potentially take at this node (the values that are *compatible* with the splits going to this node)
-    private static int[] getCompatibleValues(int currnode, int var, int N, int[] parent, int[] cutvar, double[] cutpoint, int[] leftchildren, int[] rightchildren, int[][] catsplit, int[] catDomainSizes) {
-        int[] compatibleValues = null;
-        
-    	/*
-    	 * Iteratively follow the pointers up to the root, and check if there is a split on this parameter.
-    	 * If there is such a split, we simply return the values compatible with the subtree we're in.
-    	 * If we get all the way to the root we return the parameter's entire domain.
-    	 */
-        while (currnode > 0) {
-            int parent_node = parent[currnode];
-            if (-cutvar[parent_node]-1 == var) { // cutvar is negative for categorical splits
-                int catsplit_index = (int)cutpoint[parent_node];
-
-                if (leftchildren[parent_node] == currnode) {
-                    compatibleValues = catsplit[catsplit_index];
-                } else if (rightchildren[parent_node] == currnode) {
-                    compatibleValues = catsplit[catsplit_index+N];
-                } else {
-                    throw new RuntimeException("currnode must be either left or right child of its parent.");
-                }
-                break;
-            }
-            currnode = parent_node;
-        }
-        if (currnode == 0) {
-            compatibleValues = new int[catDomainSizes[var]];
-            for (int i=0; i < compatibleValues.length; i++) compatibleValues[i] = i+1;
-        }
-        return compatibleValues;
-    }
-
-    
-    //=== Get the range of variable var's domain that it could potentially take at this node (the range that is *compatible* with the splits going to this node)
-    private static double[] getCompatibleRange(int currnode, int var, int N, int[] parent, int[] cutvar, double[] cutpoint, int[] leftchildren, int[] rightchildren) {
-    	double upperBound = 1; // Continuous inputs to the RF are normalized to [0,1]. 
-    	double lowerBound = 0;
-    	
-    	boolean updatedLowerBound = false; 
-    	boolean updatedUpperBound = false;
-    	
-    	/*
-    	 * Iteratively follow the pointers up to the root, and check if there is a split on this parameter.
-    	 * For each split on this parameter, if we're the left child we update the upperBound and if we're the right child we update the lowerBound.
-    	 * Once we're at the root we're done.
-    	 */
-    	while (currnode > 0) {
-            int parent_node = parent[currnode];
-            if (cutvar[parent_node]-1 == var) { // cutvar is positive for continuous splits
-                double cut = cutpoint[parent_node];
-
-                if (leftchildren[parent_node] == currnode) {
-                    upperBound = Math.min(upperBound, cut);
-                    updatedUpperBound = true;
-                } else if (rightchildren[parent_node] == currnode) {
-                	lowerBound = Math.max(lowerBound, cut);
-                	updatedLowerBound = true;
-                } else {
-                    throw new RuntimeException("currnode must be either left or right child of its parent.");
-                }
-                if (updatedLowerBound && updatedUpperBound) break; // Once we have updated both the lower and the upper bound we're done since they only get less constrained higher up the tree.
-            }
-            currnode = parent_node;
-        }
-        		
-        double[] result = new double[2];
-        result[0] = lowerBound;
-        result[1] = upperBound;
-        return result;
-    }
-    
-    
-    
     //======================================================================\\
     //                        BEGIN HELPER FUNCTIONS                        \\
     //======================================================================\\
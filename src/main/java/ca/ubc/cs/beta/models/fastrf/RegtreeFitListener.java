@@ -0,0 +1,31 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * Receives structured events while RegtreeFit.fit builds a tree; set it as RegtreeBuildParams.fitListener.
+ * All times are in nanoseconds (System.nanoTime). When no listener is set, fit does not take any timings.
+ * Nodes are numbered as in the resulting Regtree, and the root has depth 0.
+ * @see RegtreeFitStatistics for an aggregator over all trees of a forest.
+ */
+public interface RegtreeFitListener {
+    /**
+     * Called once per tree, after the variables have been presorted and the data of the root node has been set up.
+     */
+    void presorted(long nanos);
+
+    /**
+     * Called for every node that was considered for splitting (i.e., impure nodes with at least splitMin data points),
+     * after the best split over numVarsEvaluated candidate variables has been searched; split says whether one was found.
+     * nanos only covers the search over the candidate variables, not the node's statistics or its conditional-activity check.
+     */
+    void splitSearched(int node, int depth, int numDataPoints, int numVarsEvaluated, boolean split, long nanos);
+
+    /**
+     * Called for every node that was split, after its data has been partitioned among its two children.
+     */
+    void partitioned(int node, int depth, int numDataPoints, long nanos);
+
+    /**
+     * Called once per tree, at the end of fit.
+     */
+    void fitted(int numNodes, int numLeaves, int depth, long totalNanos);
+}
@@ -0,0 +1,94 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+/**
+ * A RegtreeFitListener that sums up the events of all trees it is registered for, e.g., all trees of a forest:
+ * the time spent in presorting, in searching splits, in partitioning data among children and in total,
+ * the number of candidate variables evaluated, and the sizes and depths of the trees.
+ * The remainder of the total time is spent in computing node statistics, in checking which conditional variables are active,
+ * and in building the Regtree objects.
+ * Updates are synchronized, so one instance can be shared between threads.
+ */
+public class RegtreeFitStatistics implements RegtreeFitListener, java.io.Serializable {
+    private static final long serialVersionUID = 4412278416093127215L;
+
+    private long numTrees;
+    private long presortNanos;
+    private long splitSearchNanos;
+    private long partitionNanos;
+    private long totalNanos;
+    private long numNodesSearched;
+    private long numNodesSplit;
+    private long numVarsEvaluated;
+    private long numDataPointsSearched;
+    private long numNodes;
+    private long numLeaves;
+    private int maxDepth;
+    private long sumOfDepths;
+
+    public synchronized void presorted(long nanos) {
+        presortNanos += nanos;
+    }
+
+    public synchronized void splitSearched(int node, int depth, int numDataPoints, int numVarsEvaluated, boolean split, long nanos) {
+        splitSearchNanos += nanos;
+        numNodesSearched++;
+        this.numVarsEvaluated += numVarsEvaluated;
+        numDataPointsSearched += numDataPoints;
+    }
+
+    public synchronized void partitioned(int node, int depth, int numDataPoints, long nanos) {
+        partitionNanos += nanos;
+        numNodesSplit++;
+    }
+
+    public synchronized void fitted(int numNodes, int numLeaves, int depth, long totalNanos) {
+        numTrees++;
+        this.totalNanos += totalNanos;
+        this.numNodes += numNodes;
+        this.numLeaves += numLeaves;
+        maxDepth = Math.max(maxDepth, depth);
+        sumOfDepths += depth;
+    }
+
+    public synchronized void reset() {
+        numTrees = presortNanos = splitSearchNanos = partitionNanos = totalNanos = 0;
+        numNodesSearched = numNodesSplit = numVarsEvaluated = numDataPointsSearched = numNodes = numLeaves = sumOfDepths = 0;
+        maxDepth = 0;
+    }
+
+    public synchronized long getNumTrees() { return numTrees; }
+    public synchronized long getPresortNanos() { return presortNanos; }
+    public synchronized long getSplitSearchNanos() { return splitSearchNanos; }
+    public synchronized long getPartitionNanos() { return partitionNanos; }
+    public synchronized long getTotalNanos() { return totalNanos; }
+    public synchronized long getNumNodesSearched() { return numNodesSearched; }
+    public synchronized long getNumNodesSplit() { return numNodesSplit; }
+    public synchronized long getNumVarsEvaluated() { return numVarsEvaluated; }
+    public synchronized long getNumDataPointsSearched() { return numDataPointsSearched; }
+    public synchronized long getNumNodes() { return numNodes; }
+    public synchronized long getNumLeaves() { return numLeaves; }
+    public synchronized int getMaxDepth() { return maxDepth; }
+
+    public synchronized double getMeanDepth() {
+        return (numTrees == 0 ? 0 : (double) sumOfDepths / numTrees);
+    }
+
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(numTrees + " trees with " + numNodes + " nodes (" + numLeaves + " leaves), depth " + String.format("%.1f", getMeanDepth()) + " on average and " + maxDepth + " at most, took " + millis(totalNanos) + " ms:");
+        sb.append("\n  presort:      " + millis(presortNanos) + " ms (" + percent(presortNanos) + ")");
+        sb.append("\n  split search: " + millis(splitSearchNanos) + " ms (" + percent(splitSearchNanos) + ") in " + numNodesSearched + " nodes with " + numDataPointsSearched + " data points, evaluating " + numVarsEvaluated + " variables");
+        sb.append("\n  partition:    " + millis(partitionNanos) + " ms (" + percent(partitionNanos) + ") in " + numNodesSplit + " nodes");
+        long rest = totalNanos - presortNanos - splitSearchNanos - partitionNanos;
+        sb.append("\n  other:        " + millis(rest) + " ms (" + percent(rest) + ")");
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    private String percent(long nanos) {
+        return String.format("%.1f%%", (totalNanos == 0 ? 0 : 100.0 * nanos / totalNanos));
+    }
+}
@@ -13,6 +13,18 @@ public strictfp class RegtreeFwd {
      */
     public static int[] fwd(Regtree tree, double[][] X) {  
         int numdata = X.length;
+        checkFwd(tree, X[0].length);
+        int[] result = new int[numdata];
+        for (int i=0; i < numdata; i++) {
+            result[i] = fwd(tree, X[i], i);
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the tree is consistent and that data points with numcols variables can be propagated down it.
+     */
+    static void checkFwd(Regtree tree, int numcols) {
         int numnodes = tree.node.length;
         if (tree.cut.length != numnodes) {
             throw new RuntimeException("cut must be Nx1 vector.");
@@ -23,51 +35,163 @@ public strictfp class RegtreeFwd {
         if (tree.children.length != numnodes) {
             throw new RuntimeException("children must be Nx2 matrix.");
         }
-        
-        
-        if(X[0].length != tree.npred)
+        if(numcols != tree.npred)
         {
-        	throw new IllegalArgumentException("X should be square matrix and should be have " +  tree.npred + " columns not " + X[0].length);
+        	throw new IllegalArgumentException("X should be square matrix and should be have " +  tree.npred + " columns not " + numcols);
         }
-        	
-        int[] result = new int[numdata];
+    }
+
+    /**
+     * Propagates the data point x (number i, for error messages) down the regtree and returns the node it falls into.
+     * Does not allocate, and does not check the tree (see checkFwd).
+     */
+    static int fwd(Regtree tree, double[] x, int i) {
+        int thisnode = 0;
+        while(true) {
+            int splitvar = tree.var[thisnode];
+            if (splitvar == 0) {
+                // This node not split, store results.
+                return thisnode;
+            }
+            double cutoff = tree.cut[thisnode];
+            int left_kid = tree.children[thisnode][0];
+            int right_kid = tree.children[thisnode][1];
+            // Determine if the point goes left or goes right
+            if(Double.isNaN(x[Math.abs(splitvar)-1])){
+                throw new RuntimeException("In fwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
+            }
+            if (splitvar > 0) { 
+                // continuous variable
+                thisnode = (x[splitvar-1] <= cutoff ? left_kid : right_kid);
+            } else { 
+                // categorical variable
+                int xcat = (int)x[-splitvar-1];
+                if (xcat<=0){
+                    throw new RuntimeException("Input error in Regtree.fwd: categoricals have to be integers >= 1");
+                }
+
+                int split = tree.catsplit[(int)cutoff][xcat-1];
+                if (split == 0) thisnode = left_kid;
+                else if (split == 1) thisnode = right_kid;
+                else throw new RuntimeException("Missing value -- not allowed in this implementation.");
+            }
+        }
+    }
+    
+    /**
+     * Propagates (configuration, instance) pairs down the regtree without building the joined design matrix,
+     * and returns a 1*theta_inst_idxs.length vector of the leaves the pairs fall into.
+     * Equivalent to fwd(tree, Z), where Z[i] is Theta[theta_inst_idxs[i][0]] followed by X[theta_inst_idxs[i][1]].
+     * For each configuration, the path through consecutive splits on configuration parameters is computed once and reused for all its instances.
+     */
+    public static int[] fwd(Regtree tree, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+        return fwd(tree, Theta, X, theta_inst_idxs, groupByConfiguration(Theta.length, theta_inst_idxs), new int[tree.numNodes], new int[tree.numNodes]);
+    }
+    
+    /**
+     * @returns the indices of the pairs in theta_inst_idxs, ordered by configuration (a counting sort, stable within configurations).
+     */
+    static int[] groupByConfiguration(int numTheta, int[][] theta_inst_idxs) {
+        int[] start = new int[numTheta+1];
+        for (int i=0; i < theta_inst_idxs.length; i++) {
+            start[theta_inst_idxs[i][0]+1]++;
+        }
+        for (int t=0; t < numTheta; t++) {
+            start[t+1] += start[t];
+        }
+        int[] order = new int[theta_inst_idxs.length];
+        for (int i=0; i < theta_inst_idxs.length; i++) {
+            order[start[theta_inst_idxs[i][0]]++] = i;
+        }
+        return order;
+    }
+    
+    /**
+     * @param order the pairs, grouped by configuration (see groupByConfiguration).
+     * @param jump, jumpStamp scratch arrays of length tree.numNodes; jump[n] caches the first node below n that does not split
+     *        on a configuration parameter, valid while jumpStamp[n] equals the current configuration + 1.
+     */
+    static int[] fwd(Regtree tree, double[][] Theta, double[][] X, int[][] theta_inst_idxs, int[] order, int[] jump, int[] jumpStamp) {
+        int thetacols = (Theta.length == 0 ? 0 : Theta[0].length);
+        int xcols = (X.length == 0 ? 0 : X[0].length);
+        if (thetacols + xcols != tree.npred) {
+            throw new IllegalArgumentException("Theta and X should have " + tree.npred + " columns together, not " + (thetacols + xcols));
+        }
+        Arrays.fill(jumpStamp, 0);
         
-        for (int i=0; i < numdata; i++) {
+        int[] result = new int[theta_inst_idxs.length];
+        for (int k=0; k < order.length; k++) {
+            int i = order[k];
+            int t = theta_inst_idxs[i][0];
+            double[] theta = Theta[t];
+            double[] x = X[theta_inst_idxs[i][1]];
             int thisnode = 0;
-            while(true) {
+            while (true) {
                 int splitvar = tree.var[thisnode];
                 if (splitvar == 0) {
-                    // This node not split, store results.
                     result[i] = thisnode;
                     break;
                 }
-                double cutoff = tree.cut[thisnode];
-                int left_kid = tree.children[thisnode][0];
-                int right_kid = tree.children[thisnode][1];
-                // Determine if the point goes left or goes right
-                if(Double.isNaN(X[i][Math.abs(splitvar)-1])){
-                    throw new RuntimeException("In fwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
-                }
-                if (splitvar > 0) { 
-                    // continuous variable
-                    thisnode = (X[i][splitvar-1] <= cutoff ? left_kid : right_kid);
-                } else { 
-                    // categorical variable
-                    int x = (int)X[i][-splitvar-1];
-                    if (x<=0){
-                        throw new RuntimeException("Input error in Regtree.fwd: categoricals have to be integers >= 1");
+                if (Math.abs(splitvar) <= thetacols) {
+                    if (jumpStamp[thisnode] != t+1) {
+                        // Follow this configuration through the consecutive configuration splits below thisnode, and remember where it ends up.
+                        int node = thisnode;
+                        while (tree.var[node] != 0 && Math.abs(tree.var[node]) <= thetacols) {
+                            node = child(tree, node, theta[Math.abs(tree.var[node])-1], i);
+                        }
+                        jump[thisnode] = node;
+                        jumpStamp[thisnode] = t+1;
                     }
-
-                    int split = tree.catsplit[(int)cutoff][x-1];
-                    if (split == 0) thisnode = left_kid;
-                    else if (split == 1) thisnode = right_kid;
-                    else throw new RuntimeException("Missing value -- not allowed in this implementation.");
+                    thisnode = jump[thisnode];
+                } else {
+                    thisnode = child(tree, thisnode, x[Math.abs(splitvar)-1-thetacols], i);
                 }
             }
         }
         return result;
     }
     
+    /**
+     * @returns the child of the (split) node thisnode that a data point with the given value of the split variable goes to.
+     */
+    static int child(Regtree tree, int thisnode, double value, int i) {
+        int splitvar = tree.var[thisnode];
+        if (Double.isNaN(value)) {
+            throw new RuntimeException("In fwd, trying to split on variable " + splitvar + " (1-based, negative means categorical), but data point number " + i + " is NaN for that.");
+        }
+        if (splitvar > 0) {
+            // continuous variable
+            return (value <= tree.cut[thisnode] ? tree.children[thisnode][0] : tree.children[thisnode][1]);
+        }
+        // categorical variable
+        int x = (int)value;
+        if (x<=0){
+            throw new RuntimeException("Input error in Regtree.fwd: categoricals have to be integers >= 1");
+        }
+        int split = tree.catsplit[(int)tree.cut[thisnode]][x-1];
+        if (split == 0) return tree.children[thisnode][0];
+        else if (split == 1) return tree.children[thisnode][1];
+        else throw new RuntimeException("Missing value -- not allowed in this implementation.");
+    }
+    
+    /**
+     * Partitions perm[start..end) in place such that the rows going to the left child of the split node thisnode come first.
+     * @param col the column of rows holding the split variable.
+     * @returns the end of the left part.
+     */
+    static int partition(Regtree tree, int thisnode, double[][] rows, int col, int[] perm, int start, int end) {
+        int left_kid = tree.children[thisnode][0];
+        int mid = start;
+        for (int k=start; k < end; k++) {
+            int row = perm[k];
+            if (child(tree, thisnode, rows[row][col], row) == left_kid) {
+                perm[k] = perm[mid];
+                perm[mid++] = row;
+            }
+        }
+        return mid;
+    }
+    
     /**
      * Propogates configurations(Theta) and instances(X) down the tree, and returns a 1*Theta.length vector of 
      * marginal prediction for each configuration (summed across each of the specified instances).
@@ -105,13 +229,14 @@ public strictfp class RegtreeFwd {
         double[] result = new double[thetarows];
         double[] vars = new double[thetarows];
         
-        LinkedList<Integer> queue = new LinkedList<Integer>();
+        int[] queue = new int[numnodes]; // FIFO; each node is queued at most once per row
         
         for (int i=0; i < thetarows; i++) {
             vars[i] = 0;
-            queue.add(0);
-            while(!queue.isEmpty()) {
-                int thisnode = queue.poll();
+            int head = 0, tail = 0;
+            queue[tail++] = 0;
+            while(head < tail) {
+                int thisnode = queue[head++];
                 while(true) {
                     int splitvar = tree.var[thisnode];
                     double cutoff = tree.cut[thisnode];
@@ -124,7 +249,7 @@ public strictfp class RegtreeFwd {
                         break;
                     } else if (Math.abs(splitvar) > thetacols) {
                         // Splitting on instance - pass this instance down both children
-                        queue.add(right_kid);
+                        queue[tail++] = right_kid;
                         thisnode = left_kid;
                     } else {
                         if(Double.isNaN(Theta[i][Math.abs(splitvar)-1])){
@@ -189,7 +314,7 @@ public strictfp class RegtreeFwd {
         double[] result = new double[thetarows];
         double[] vars = new double[thetarows];
         
-        LinkedList<Integer> queue = new LinkedList<Integer>();
+        int[] queue = new int[numnodes]; // FIFO; each node is queued at most once per row
         
         Set<Integer> locations = new HashSet<Integer>();
         
@@ -198,9 +323,10 @@ public strictfp class RegtreeFwd {
         
         for (int i=0; i < thetarows; i++) {
             vars[i] = 0;
-            queue.add(0);
-            while(!queue.isEmpty()) {
-                int thisnode = queue.poll();
+            int head = 0, tail = 0;
+            queue[tail++] = 0;
+            while(head < tail) {
+                int thisnode = queue[head++];
                 while(true) {
                     int splitvar = tree.var[thisnode];
                     double cutoff = tree.cut[thisnode];
@@ -214,7 +340,7 @@ public strictfp class RegtreeFwd {
                         break;
                     } else if (Math.abs(splitvar) > thetacols) {
                         // Splitting on instance - pass this instance down both children
-                        queue.add(right_kid);
+                        queue[tail++] = right_kid;
                         thisnode = left_kid;
                     } else {
                         if(Double.isNaN(Theta[i][Math.abs(splitvar)-1])){
@@ -252,7 +378,7 @@ public strictfp class RegtreeFwd {
      * except that marginalFwd preprocesses the tree internally.
      */
     public static Regtree preprocess_inst_splits(Regtree tree, double[][] X) {
-        tree = new Regtree(tree);
+        tree = Regtree.preprocessingView(tree);
         
         int numnodes = tree.node.length;
         if (numnodes == 0) {
@@ -297,12 +423,13 @@ public strictfp class RegtreeFwd {
         int numinsts = X.length;       
         int thetacols = tree.npred - X[0].length;
 
-        LinkedList<Integer> queue = new LinkedList<Integer>();
+        int[] queue = new int[numnodes]; // FIFO; each node is queued at most once per row
 
         for (int i=0; i < numinsts; i++) {
-            queue.add(0);
-            while(!queue.isEmpty()) {
-                int thisnode = queue.poll();
+            int head = 0, tail = 0;
+            queue[tail++] = 0;
+            while(head < tail) {
+                int thisnode = queue[head++];
                 while(true) {
                     int splitvar = tree.var[thisnode];
                     double cutoff = tree.cut[thisnode];
@@ -315,7 +442,7 @@ public strictfp class RegtreeFwd {
                         break;
                     } else if (Math.abs(splitvar) <= thetacols) {
                         // Splitting on Theta - pass this instance down both children
-                        queue.add(right_kid);
+                        queue[tail++] = right_kid;
                         thisnode = left_kid;
                     } else {
                         if(Double.isNaN(X[i][Math.abs(splitvar)-1-thetacols])){
@@ -407,7 +534,7 @@ public strictfp class RegtreeFwd {
         for (int i=0; i < tree.numNodes; i++) {
             if (tree.var[i] != 0) // not a leaf
                 continue;
-            tree.bestClasses[i] = Utils.mode(tree.ysub[i]);
+            tree.bestClasses[i] = Utils.mode(tree.getResponses(i));
         }
         tree.preprocessed_for_classification = true;
     }
@@ -0,0 +1,198 @@
+package ca.ubc.cs.beta.models.fastrf;
+
+import java.util.Random;
+
+import ca.ubc.cs.beta.models.fastrf.utils.Gaussian;
+
+/**
+ * Approximate functional ANOVA for high-dimensional configuration spaces.
+ *
+ * The exact decomposition in Regtree.computeFactorVariance enumerates power sets of factors; this estimator
+ * instead samples configurations with a randomly shifted Kronecker (R_d) low-discrepancy sequence, predicts
+ * them with the forest, and computes first-order and total-effect (Sobol) indices with the Saltelli/Jansen
+ * estimators. Sampling proceeds in batches with independent random shifts; the spread of the batch estimates
+ * gives the confidence intervals, and sampling stops once all of them are narrower than the requested precision.
+ *
+ * Continuous parameters are sampled uniformly from [0,1] (the normalized RF input range), categorical
+ * parameters uniformly from their domain {1,...,k}. If the trees are preprocessed, configurations are
+ * predicted marginally across the instances they were preprocessed with (RandomForest.applyMarginal),
+ * otherwise with RandomForest.apply. For log models the indices therefore refer to log10 performance.
+ */
+public strictfp class SobolIndexEstimator {
+
+    public static class Result implements java.io.Serializable {
+        private static final long serialVersionUID = 4781529301866418113L;
+        public double[] firstOrder;
+        public double[] totalEffect;
+        public double[] firstOrderHalfWidth;
+        public double[] totalEffectHalfWidth;
+        public double totalVariance;
+        public long numEvaluations;
+        public int numBatches;
+        public boolean converged;
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 128;
+    public static final int MIN_BATCHES = 4;
+
+    /**
+     * Estimates Sobol indices until the confidence intervals at the 95% level are at most precision wide (on each side),
+     * or until 10^7 predictions have been made.
+     */
+    public static Result estimate(RandomForest forest, int[] tree_idxs_used, int[] catDomainSizes, double precision, Random random) {
+        return estimate(forest, tree_idxs_used, catDomainSizes, precision, 0.95, DEFAULT_BATCH_SIZE, 10000000L, random);
+    }
+
+    /**
+     * @param forest the forest to analyze; its trees must be preprocessed if it was trained with instance features.
+     * @param tree_idxs_used the trees whose mean prediction is analyzed.
+     * @param catDomainSizes for each parameter, its categorical domain size, or 0 for continuous parameters.
+     * @param precision the maximal half width of each index' confidence interval.
+     * @param confidence the confidence level of the intervals, e.g. 0.95.
+     * @param batchSize the number of base samples per batch; each batch costs batchSize*(#parameters+2) predictions.
+     * @param maxEvaluations the maximal number of predictions after which sampling stops, converged or not.
+     */
+    public static Result estimate(RandomForest forest, int[] tree_idxs_used, int[] catDomainSizes, double precision, double confidence, int batchSize, long maxEvaluations, Random random) {
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("confidence must lie in (0,1), but is " + confidence);
+        }
+        if (batchSize < 2) {
+            throw new IllegalArgumentException("batchSize must be at least 2, but is " + batchSize);
+        }
+        int D = catDomainSizes.length;
+        double z = Gaussian.PhiInverse(1 - (1 - confidence) / 2);
+        double[] alpha = kroneckerGenerator(2*D);
+
+        //=== Running sums of the per-batch estimates, for mean and standard error.
+        double[] sumS = new double[D], sumSqS = new double[D];
+        double[] sumST = new double[D], sumSqST = new double[D];
+        double sumV = 0;
+
+        Result result = new Result();
+        result.firstOrder = new double[D];
+        result.totalEffect = new double[D];
+        result.firstOrderHalfWidth = new double[D];
+        result.totalEffectHalfWidth = new double[D];
+
+        double[][] A = new double[batchSize][D];
+        double[][] B = new double[batchSize][D];
+        double[][] AB = new double[batchSize][D];
+        double[] shift = new double[2*D];
+        long sequenceIndex = 1;
+
+        while (true) {
+            //=== Draw a randomly shifted block of the 2D-dimensional sequence; the first D coordinates form A, the rest B.
+            for (int j=0; j < 2*D; j++) shift[j] = random.nextDouble();
+            for (int n=0; n < batchSize; n++, sequenceIndex++) {
+                for (int j=0; j < 2*D; j++) {
+                    double u = shift[j] + sequenceIndex * alpha[j];
+                    u -= Math.floor(u);
+                    double value = toParameterValue(u, catDomainSizes[j % D]);
+                    if (j < D) A[n][j] = value;
+                    else B[n][j-D] = value;
+                }
+            }
+            double[] fA = predict(forest, tree_idxs_used, A);
+            double[] fB = predict(forest, tree_idxs_used, B);
+
+            double mean = 0;
+            for (int n=0; n < batchSize; n++) mean += fA[n] + fB[n];
+            mean /= 2*batchSize;
+            double V = 0;
+            for (int n=0; n < batchSize; n++) {
+                V += (fA[n]-mean)*(fA[n]-mean) + (fB[n]-mean)*(fB[n]-mean);
+            }
+            V /= 2*batchSize - 1;
+            sumV += V;
+
+            for (int i=0; i < D; i++) {
+                for (int n=0; n < batchSize; n++) {
+                    System.arraycopy(A[n], 0, AB[n], 0, D);
+                    AB[n][i] = B[n][i];
+                }
+                double[] fAB = predict(forest, tree_idxs_used, AB);
+                double first = 0, total = 0;
+                for (int n=0; n < batchSize; n++) {
+                    first += fB[n] * (fAB[n] - fA[n]);
+                    total += (fA[n] - fAB[n]) * (fA[n] - fAB[n]);
+                }
+                double S = (V > 0 ? first / batchSize / V : 0);
+                double ST = (V > 0 ? total / (2.0*batchSize) / V : 0);
+                sumS[i] += S;
+                sumSqS[i] += S*S;
+                sumST[i] += ST;
+                sumSqST[i] += ST*ST;
+            }
+            result.numBatches++;
+            result.numEvaluations += (long)batchSize * (D+2);
+
+            //=== Update estimates and confidence intervals, and stop once they are tight enough.
+            int b = result.numBatches;
+            double maxHalfWidth = 0;
+            for (int i=0; i < D; i++) {
+                result.firstOrder[i] = sumS[i] / b;
+                result.totalEffect[i] = sumST[i] / b;
+                result.firstOrderHalfWidth[i] = z * standardError(sumS[i], sumSqS[i], b);
+                result.totalEffectHalfWidth[i] = z * standardError(sumST[i], sumSqST[i], b);
+                maxHalfWidth = Math.max(maxHalfWidth, Math.max(result.firstOrderHalfWidth[i], result.totalEffectHalfWidth[i]));
+            }
+            result.totalVariance = sumV / b;
+
+            if (b >= MIN_BATCHES && maxHalfWidth <= precision) {
+                result.converged = true;
+                break;
+            }
+            if (result.numEvaluations + (long)batchSize * (D+2) > maxEvaluations) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static double[] predict(RandomForest forest, int[] tree_idxs_used, double[][] Theta) {
+        double[][] meanvar;
+        if (forest.Trees[tree_idxs_used[0]].preprocessed) {
+            meanvar = RandomForest.applyMarginal(forest, tree_idxs_used, Theta);
+        } else {
+            if (tree_idxs_used.length != forest.numTrees) {
+                throw new IllegalArgumentException("Subsets of trees are only supported for preprocessed forests.");
+            }
+            meanvar = RandomForest.apply(forest, Theta);
+        }
+        double[] result = new double[Theta.length];
+        for (int i=0; i < Theta.length; i++) {
+            result[i] = meanvar[i][0];
+        }
+        return result;
+    }
+
+    private static double toParameterValue(double u, int catDomainSize) {
+        if (catDomainSize == 0) return u;
+        return Math.min(catDomainSize, 1 + (int)(u * catDomainSize));
+    }
+
+    private static double standardError(double sum, double sumSq, int n) {
+        if (n < 2) return Double.POSITIVE_INFINITY;
+        double mean = sum / n;
+        double var = (sumSq - n*mean*mean) / (n-1);
+        return Math.sqrt(Math.max(0, var) / n);
+    }
+
+    /**
+     * @returns the generating vector of the R_d sequence: alpha_j = (1/phi_d)^(j+1), where phi_d is the
+     * unique positive root of x^(d+1) = x+1.
+     */
+    private static double[] kroneckerGenerator(int d) {
+        double phi = 2;
+        for (int i=0; i < 50; i++) {
+            phi = Math.pow(1 + phi, 1.0 / (d + 1));
+        }
+        double[] alpha = new double[d];
+        double a = 1;
+        for (int j=0; j < d; j++) {
+            a /= phi;
+            alpha[j] = a - Math.floor(a);
+        }
+        return alpha;
+    }
+}
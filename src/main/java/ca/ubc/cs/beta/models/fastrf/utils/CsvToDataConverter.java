@@ -1,12 +1,24 @@
 package ca.ubc.cs.beta.models.fastrf.utils;
 
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.opencsv.CSVReader;
 
@@ -40,11 +52,18 @@ public class CsvToDataConverter implements java.io.Serializable {
 
 	public CsvToDataConverter(String filename) throws IOException{
 		getColIdxsFromCsvHeader(filename);
-		prepareConverter(filename, thetaColIdxs, xColIdxs, yColIdx, catColIdxs);
+		prepareConverter(filename, thetaColIdxs, xColIdxs, yColIdx, catColIdxs, 1);
 	}
 	
 	public CsvToDataConverter(String filename, int[] thetaColIdxs, int[] xColIdxs, int yColIdx, int[] catColIdxs) throws IOException{
-		prepareConverter(filename, thetaColIdxs, xColIdxs, yColIdx, catColIdxs);
+		prepareConverter(filename, thetaColIdxs, xColIdxs, yColIdx, catColIdxs, 1);
+	}
+	
+	/*
+	 *  Like the constructor above, but builds the categorical dictionaries from numThreads chunks of the file in parallel (see readDataFromCsvFile(String, int)).
+	 */
+	public CsvToDataConverter(String filename, int[] thetaColIdxs, int[] xColIdxs, int yColIdx, int[] catColIdxs, int numThreads) throws IOException{
+		prepareConverter(filename, thetaColIdxs, xColIdxs, yColIdx, catColIdxs, numThreads);
 	}
 	
 	private void getColIdxsFromCsvHeader(String csvFilename) throws IOException{
@@ -125,6 +144,26 @@ public class CsvToDataConverter implements java.io.Serializable {
 		return entries;
 	}
 
+	/*
+	 *  Opens a csv file and reads its header, so that readNext() returns the data lines one at a time.
+	 */
+	private CSVReader openCsv(String filename, boolean overWriteHeader) throws IOException{
+		CSVReader csvReader = new CSVReader(new FileReader(filename));
+		String[] header = csvReader.readNext();
+		if (header == null){
+			csvReader.close();
+			throw new IllegalArgumentException("Error in reading csv file " + filename + ": the file is empty.");
+		}
+		if (overWriteHeader){
+			csvHeader = header;
+		} else {
+			for (int i = 0; i < csvHeader.length; i++) {
+				assert(csvHeader[i].equals(header[i]));
+			}
+		}
+		return csvReader;
+	}
+
 	//=== Since the csv file columns are not ordered as all theta first, then all x, we need a map of indices: csvColToModelDimMap[csv index] -> model index   
 	private void computeCsvToModelIdxMap(int[] thetaColIdxs, int[] xColIdxs){
 		csvColToModelDimMap = readOutCsvToModelIdxMap(thetaColIdxs, xColIdxs);
@@ -141,10 +180,6 @@ public class CsvToDataConverter implements java.io.Serializable {
 		return localCsvColToModelDimMap;
 	}
 	
-	private void computeCatDomainValueMap(List<String[]> lines, int[] catColIdxs, Map<Integer, Integer> csvColToModelDimMap){
-		catDomainValueMaps = readOutCatDomainValueMap(lines, catColIdxs, csvColToModelDimMap);
-	}
-	
 	//=== For all categorical variables, build a map from their values to an index: catDomainValueMaps[inputDim]: { domainValue0 -> 0, ..., domainValueN -> N  }
 	public static HashMap<Integer, Map<String,Integer>> readOutCatDomainValueMap(List<String[]> lines, int[] catColIdxs, Map<Integer, Integer> csvColToModelDimMap){
 		HashMap<Integer, Map<String,Integer>> localCatDomainValueMaps = new HashMap<Integer, Map<String,Integer>>();	
@@ -164,6 +199,29 @@ public class CsvToDataConverter implements java.io.Serializable {
 		return localCatDomainValueMaps;
 	}
 	
+	/*
+	 *  Like readOutCatDomainValueMap(List, ...), but reads the remaining lines of csvReader one at a time, building the maps for all categorical columns in a single pass.
+	 */
+	public static HashMap<Integer, Map<String,Integer>> readOutCatDomainValueMap(CSVReader csvReader, int[] catColIdxs, Map<Integer, Integer> csvColToModelDimMap) throws IOException{
+		HashMap<Integer, Map<String,Integer>> localCatDomainValueMaps = new HashMap<Integer, Map<String,Integer>>();
+		List<Map<String, Integer>> domainValueMaps = new ArrayList<Map<String, Integer>>(catColIdxs.length);
+		for (int i = 0; i < catColIdxs.length; i++) {
+			domainValueMaps.add(new HashMap<String, Integer>());
+			localCatDomainValueMaps.put(csvColToModelDimMap.get(catColIdxs[i]), domainValueMaps.get(i));
+		}
+		String[] line;
+		while ((line = csvReader.readNext()) != null) {
+			for (int i = 0; i < catColIdxs.length; i++) {
+				String valueString = line[catColIdxs[i]].trim();
+				Map<String, Integer> domainValueMap = domainValueMaps.get(i);
+				if( domainValueMap.get(valueString) == null ){
+					domainValueMap.put(valueString, domainValueMap.size()+1);
+				}
+			}
+		}
+		return localCatDomainValueMaps;
+	}
+	
 	//=== Set catDomainSizes accordingly to the values maps.
 	private void computeCatDomainSizes(HashMap<Integer, Map<String,Integer>> catDomainValueMaps, int numDim){
 		catDomainSizes = readOutCatDomainSizes(catDomainValueMaps, numDim);
@@ -180,7 +238,7 @@ public class CsvToDataConverter implements java.io.Serializable {
 		return localCatDomainSizes;
 	}
 	
-	private void prepareConverter(String filename, int[] thetaColIdxs, int[] xColIdxs, int yColIdx, int[] catColIdxs) throws IOException{
+	private void prepareConverter(String filename, int[] thetaColIdxs, int[] xColIdxs, int yColIdx, int[] catColIdxs, int numThreads) throws IOException{
 		this.thetaColIdxs = thetaColIdxs;
 		this.xColIdxs = xColIdxs;
 		this.yColIdx = yColIdx;
@@ -188,8 +246,17 @@ public class CsvToDataConverter implements java.io.Serializable {
 		
 		//=== Use helper functions to get indices right and get categorical variables prepared.
 		computeCsvToModelIdxMap(thetaColIdxs, xColIdxs);
-		List<String[]> lines = readEntriesFromCsv(filename, true);
-		computeCatDomainValueMap(lines, catColIdxs, csvColToModelDimMap);
+		CSVReader csvReader = openCsv(filename, true);
+		try {
+			if (numThreads <= 1){
+				catDomainValueMaps = readOutCatDomainValueMap(csvReader, catColIdxs, csvColToModelDimMap);
+			}
+		} finally {
+			csvReader.close();
+		}
+		if (numThreads > 1){
+			catDomainValueMaps = readOutCatDomainValueMapParallel(filename, numThreads);
+		}
 		computeCatDomainSizes(catDomainValueMaps, thetaColIdxs.length + xColIdxs.length);
 		
 		parameterNames = new String[thetaColIdxs.length];
@@ -217,52 +284,280 @@ public class CsvToDataConverter implements java.io.Serializable {
 	
 	/*
 	 *  Read the data from a csv file (asserting that the file is of the same form as the one used to construct the converter).
+	 *  Lines are read one at a time and parsed straight into the rows of Theta and X, so the csv strings are never held in memory all at once.
 	 */
 	public RfData readDataFromCsvFile(String filename) throws IOException{
-		List<String[]> lines = readEntriesFromCsv(filename, false);
+		ArrayList<double[]> thetaRows = new ArrayList<double[]>();
+		ArrayList<double[]> xRows = new ArrayList<double[]>();
+		double[] y = new double[1024];
 		
-		//=== Initialize Theta, X, y, and theta_inst_idxs. 
-		double[][] Theta_nonuniq = new double[lines.size()][thetaColIdxs.length];
-		double[][] X_nonuniq = new double[lines.size()][xColIdxs.length];
-		double[] y = new double[lines.size()];
+		CSVReader csvReader = openCsv(filename, false);
+		try {
+			String[] line;
+			while ((line = csvReader.readNext()) != null) {
+				double[] theta = new double[thetaColIdxs.length];
+				double[] x = new double[xColIdxs.length];
+				if (thetaRows.size() == y.length){
+					y = Arrays.copyOf(y, 2*y.length);
+				}
+				y[thetaRows.size()] = parseLine(line, theta, x);
+				thetaRows.add(theta);
+				xRows.add(x);
+			}
+		} finally {
+			csvReader.close();
+		}
 		
-		//=== Load data into Theta, X, y, and theta_inst_idxs, one line at a time. 
-		for (int i = 0; i < y.length; i++) {
-			String[] line = lines.get(i);
-			for (int j = 0; j < thetaColIdxs.length; j++) {
-				int csvColIdx = thetaColIdxs[j];
-				int modelColIdx = csvColToModelDimMap.get(csvColIdx);
-				
-				String valueString = line[csvColIdx].trim();
-				if (catDomainSizes[modelColIdx] == 0){ // not categorical
-					Theta_nonuniq[i][modelColIdx] = Double.parseDouble(valueString);			
+		double[][] Theta_nonuniq = thetaRows.toArray(new double[thetaRows.size()][]);
+		double[][] X_nonuniq = xRows.toArray(new double[xRows.size()][]);
+		return new RfData(Theta_nonuniq, X_nonuniq, Arrays.copyOf(y, thetaRows.size()), catDomainSizes);
+	}
+	
+	/*
+	 *  Parse one csv line into theta and x, and return its response value.
+	 */
+	double parseLine(String[] line, double[] theta, double[] x){
+		for (int j = 0; j < thetaColIdxs.length; j++) {
+			int csvColIdx = thetaColIdxs[j];
+			int modelColIdx = csvColToModelDimMap.get(csvColIdx);
+			
+			String valueString = line[csvColIdx].trim();
+			if (catDomainSizes[modelColIdx] == 0){ // not categorical
+				theta[modelColIdx] = Double.parseDouble(valueString);			
+			} else {
+				int thetaValue = getIntForCategoricalValueString(modelColIdx, valueString);
+				theta[modelColIdx] = thetaValue;					
+			}					
+		}
+		for (int j = 0; j < xColIdxs.length; j++) {
+			int csvColIdx = xColIdxs[j];
+			int modelColIdx = csvColToModelDimMap.get(csvColIdx);
+			String valueString = line[csvColIdx].trim();
+			if (catDomainSizes[modelColIdx] == 0){ // not categorical
+				x[modelColIdx-thetaColIdxs.length] = Double.parseDouble(valueString);
+			} else {
+				if ( catDomainValueMaps.get(modelColIdx).containsKey(valueString) ){
+					int xValue = catDomainValueMaps.get(modelColIdx).get(valueString);
+					x[modelColIdx-thetaColIdxs.length] = xValue;											
 				} else {
-					int thetaValue = getIntForCategoricalValueString(modelColIdx, valueString);
-//					int thetaValue = catDomainValueMaps.get(modelColIdx).get(valueString); // equivalent, but let's use the same method for this everywhere.
-					Theta_nonuniq[i][modelColIdx] = thetaValue;					
-				}					
+					throw new IllegalArgumentException("Error in reading csv file: value for column " + csvColIdx + " (" + csvHeader[csvColIdx] + ") is " + valueString + "; the domain only has the values " + catDomainValueMaps.get(modelColIdx).keySet());
+				}
+			}					
+		}
+		return Double.parseDouble(line[yColIdx]);
+	}
+	
+	/*
+	 *  Read the data from a csv file like readDataFromCsvFile(String), but split the file into chunks of whole lines and parse them on numThreads threads.
+	 *  The result is identical to that of readDataFromCsvFile(String). Quoted fields must not contain line breaks.
+	 */
+	public RfData readDataFromCsvFile(final String filename, int numThreads) throws IOException{
+		if (numThreads <= 1){
+			return readDataFromCsvFile(filename);
+		}
+		openCsv(filename, false).close(); // check the header
+		
+		final long[] boundaries = splitIntoChunks(filename, CHUNKS_PER_THREAD*numThreads);
+		List<Callable<Object[]>> tasks = new ArrayList<Callable<Object[]>>();
+		for (int c = 0; c < boundaries.length-1; c++) {
+			final int chunk = c;
+			tasks.add(new Callable<Object[]>() {
+				public Object[] call() throws IOException {
+					ArrayList<double[]> thetaRows = new ArrayList<double[]>();
+					ArrayList<double[]> xRows = new ArrayList<double[]>();
+					double[] y = new double[1024];
+					CSVReader csvReader = openChunk(filename, boundaries[chunk], boundaries[chunk+1]);
+					try {
+						String[] line;
+						while ((line = csvReader.readNext()) != null) {
+							double[] theta = new double[thetaColIdxs.length];
+							double[] x = new double[xColIdxs.length];
+							if (thetaRows.size() == y.length){
+								y = Arrays.copyOf(y, 2*y.length);
+							}
+							y[thetaRows.size()] = parseLine(line, theta, x);
+							thetaRows.add(theta);
+							xRows.add(x);
+						}
+					} finally {
+						csvReader.close();
+					}
+					return new Object[]{thetaRows, xRows, y};
+				}
+			});
+		}
+		List<Object[]> results = runAll(tasks, numThreads);
+		
+		//=== Concatenate the chunks in file order.
+		int numLines = 0;
+		for (Object[] result : results) {
+			numLines += ((ArrayList<?>) result[0]).size();
+		}
+		double[][] Theta_nonuniq = new double[numLines][];
+		double[][] X_nonuniq = new double[numLines][];
+		double[] y = new double[numLines];
+		int offset = 0;
+		for (Object[] result : results) {
+			@SuppressWarnings("unchecked")
+			ArrayList<double[]> thetaRows = (ArrayList<double[]>) result[0];
+			@SuppressWarnings("unchecked")
+			ArrayList<double[]> xRows = (ArrayList<double[]>) result[1];
+			for (int i = 0; i < thetaRows.size(); i++) {
+				Theta_nonuniq[offset+i] = thetaRows.get(i);
+				X_nonuniq[offset+i] = xRows.get(i);
 			}
-			for (int j = 0; j < xColIdxs.length; j++) {
-				int csvColIdx = xColIdxs[j];
-				int modelColIdx = csvColToModelDimMap.get(csvColIdx);
-				String valueString = line[csvColIdx].trim();
-				if (catDomainSizes[modelColIdx] == 0){ // not categorical
-					X_nonuniq[i][modelColIdx-thetaColIdxs.length] = Double.parseDouble(valueString);
-				} else {
-					if ( catDomainValueMaps.get(modelColIdx).containsKey(valueString) ){
-						int xValue = catDomainValueMaps.get(modelColIdx).get(valueString);
-						X_nonuniq[i][modelColIdx-thetaColIdxs.length] = xValue;											
-					} else {
-						throw new IllegalArgumentException("Error in reading csv file: value for column " + csvColIdx + " (" + csvHeader[csvColIdx] + ") is " + valueString + "; the domain only has the values " + catDomainValueMaps.get(modelColIdx).keySet());
-//						System.out.println("\n\n======================================================\nError in reading csv file: value for column " + csvColIdx + " (" + csvHeader[csvColIdx] + ") is " + valueString + "; the domain only has the values " + catDomainValueMaps.get(modelColIdx).keySet() + "\n\n REPLACING WITH INDEX 0 \n\n======================================================\n");
-//						data.X[i][modelColIdx-thetaColIdxs.length] = 1;
+			System.arraycopy((double[]) result[2], 0, y, offset, thetaRows.size());
+			offset += thetaRows.size();
+		}
+		return new RfData(Theta_nonuniq, X_nonuniq, y, catDomainSizes);
+	}
+	
+	/*
+	 *  Build the categorical dictionaries of each chunk in parallel, then merge them in file order,
+	 *  so that values are numbered in the order they first appear in the file, just as in readOutCatDomainValueMap. 
+	 */
+	private HashMap<Integer, Map<String,Integer>> readOutCatDomainValueMapParallel(final String filename, int numThreads) throws IOException{
+		final long[] boundaries = splitIntoChunks(filename, CHUNKS_PER_THREAD*numThreads);
+		List<Callable<HashMap<Integer, Map<String,Integer>>>> tasks = new ArrayList<Callable<HashMap<Integer, Map<String,Integer>>>>();
+		for (int c = 0; c < boundaries.length-1; c++) {
+			final int chunk = c;
+			tasks.add(new Callable<HashMap<Integer, Map<String,Integer>>>() {
+				public HashMap<Integer, Map<String,Integer>> call() throws IOException {
+					CSVReader csvReader = openChunk(filename, boundaries[chunk], boundaries[chunk+1]);
+					try {
+						return readOutCatDomainValueMap(csvReader, catColIdxs, csvColToModelDimMap);
+					} finally {
+						csvReader.close();
+					}
+				}
+			});
+		}
+		List<HashMap<Integer, Map<String,Integer>>> chunkMaps = runAll(tasks, numThreads);
+		
+		HashMap<Integer, Map<String,Integer>> localCatDomainValueMaps = new HashMap<Integer, Map<String,Integer>>();
+		for (int i = 0; i < catColIdxs.length; i++) {
+			int modelColIdx = csvColToModelDimMap.get(catColIdxs[i]);
+			Map<String, Integer> domainValueMap = new HashMap<String, Integer>();
+			for (HashMap<Integer, Map<String,Integer>> chunkMap : chunkMaps) {
+				Map<String, Integer> chunkValueMap = chunkMap.get(modelColIdx);
+				String[] valuesInOrder = new String[chunkValueMap.size()];
+				for (Map.Entry<String, Integer> entry : chunkValueMap.entrySet()) {
+					valuesInOrder[entry.getValue()-1] = entry.getKey();
+				}
+				for (String valueString : valuesInOrder) {
+					if( domainValueMap.get(valueString) == null ){
+						domainValueMap.put(valueString, domainValueMap.size()+1);
 					}
-				}					
+				}
+			}
+			localCatDomainValueMaps.put(modelColIdx, domainValueMap);
+		}
+		return localCatDomainValueMaps;
+	}
+	
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_BYTES = 1 << 16;
+	
+	/*
+	 *  Split the lines after the header of a csv file into at most numChunks byte ranges that each start at the beginning of a line.
+	 *  @returns the chunk boundaries, chunk i being [boundaries[i], boundaries[i+1]).
+	 */
+	static long[] splitIntoChunks(String filename, int numChunks) throws IOException{
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			long length = file.length();
+			long dataStart = nextLineStart(file, 0);
+			long dataBytes = length - dataStart;
+			numChunks = (int) Math.max(1, Math.min(numChunks, dataBytes / MIN_CHUNK_BYTES));
+			long[] boundaries = new long[numChunks+1];
+			boundaries[0] = dataStart;
+			for (int i = 1; i < numChunks; i++) {
+				long target = dataStart + dataBytes * i / numChunks;
+				boundaries[i] = Math.max(boundaries[i-1], nextLineStart(file, target-1));
+			}
+			boundaries[numChunks] = length;
+			return boundaries;
+		} finally {
+			file.close();
+		}
+	}
+	
+	/*
+	 *  @returns the position right after the first line break at or after pos, or the file length if there is none.
+	 */
+	private static long nextLineStart(RandomAccessFile file, long pos) throws IOException{
+		byte[] buffer = new byte[8192];
+		file.seek(pos);
+		int read;
+		while ((read = file.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') return pos + i + 1;
+			}
+			pos += read;
+		}
+		return pos;
+	}
+	
+	private static CSVReader openChunk(String filename, long start, long end) throws IOException{
+		FileInputStream in = new FileInputStream(filename);
+		in.getChannel().position(start);
+		return new CSVReader(new InputStreamReader(new BoundedInputStream(in, end - start)));
+	}
+	
+	private static <T> List<T> runAll(List<Callable<T>> tasks, int numThreads) throws IOException{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+		try {
+			List<T> results = new ArrayList<T>();
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
 			}
-			y[i] = Double.parseDouble(line[yColIdx]);
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading csv file.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
+	}
+	
+	/*
+	 *  An input stream that ends after the given number of bytes.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
 		
-		return new RfData(Theta_nonuniq, X_nonuniq, y, catDomainSizes);
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+		
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = super.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0) remaining -= read;
+			return read;
+		}
+		
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+		
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
 	}
 	
 	public String getPcsString(String filename) throws IOException{
@@ -324,18 +619,21 @@ public class CsvToDataConverter implements java.io.Serializable {
 		
 		//=== Read in data from test file.
 		csvReader = new CSVReader(new FileReader(testFileCsvName));
-		List<String[]> testLines = csvReader.readAll();
-		csvReader.close();
-		
-		double[][] X = new double[testLines.size()-1][testXColIdxs.length];
-		
-		for (int i = 0; i < X.length; i++) {
-			for (int j = 0; j < testXColIdxs.length; j++) {
-				double value = Double.parseDouble( testLines.get(i+1)[testXColIdxs[j]].trim() );
-				X[i][j] = value;
-			}			
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		try {
+			csvReader.readNext(); // header
+			String[] line;
+			while ((line = csvReader.readNext()) != null) {
+				double[] row = new double[testXColIdxs.length];
+				for (int j = 0; j < testXColIdxs.length; j++) {
+					row[j] = Double.parseDouble( line[testXColIdxs[j]].trim() );
+				}
+				rows.add(row);
+			}
+		} finally {
+			csvReader.close();
 		}
-		return X;
+		return rows.toArray(new double[rows.size()][]);
 	}
 	
 }
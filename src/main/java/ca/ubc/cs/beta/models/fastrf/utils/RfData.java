@@ -1,12 +1,9 @@
 package ca.ubc.cs.beta.models.fastrf.utils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class RfData implements java.io.Serializable {
 	private static final long serialVersionUID = 239457234672435L;
@@ -32,6 +29,25 @@ public class RfData implements java.io.Serializable {
 		construct(Theta_nonuniq, X_nonuniq, y, catDomainSizes);
 	}
 	
+	private RfData() {
+	}
+	
+	/*
+	 * Wraps data whose Theta and X are already unique (e.g., read back from an RfDataFile), without deduplicating them again.
+	 */
+	public static RfData fromUniqueData(double[][] Theta, double[][] X, int[][] theta_inst_idxs, double[] y, int[] catDomainSizes) {
+		if (theta_inst_idxs.length != y.length) {
+			throw new IllegalArgumentException("theta_inst_idxs has " + theta_inst_idxs.length + " rows, but y has " + y.length + " entries.");
+		}
+		RfData data = new RfData();
+		data.Theta = Theta;
+		data.X = X;
+		data.theta_inst_idxs = theta_inst_idxs;
+		data.y = y;
+		data.catDomainSizes = catDomainSizes;
+		return data;
+	}
+	
 	private void construct(double[][] Theta_nonuniq, double[][] X_nonuniq, double[] y, int[] catDomainSizes) {
 		Theta = Theta_nonuniq;
 		X = X_nonuniq;
@@ -42,10 +58,12 @@ public class RfData implements java.io.Serializable {
 			theta_inst_idxs[i][0] = i;
 			theta_inst_idxs[i][1] = i;
 		}
-		makeUnique(true);
-		makeUnique(false);
+		makeUnique(true, true, Theta.length + X.length >= CONCURRENT_DEDUPLICATION_THRESHOLD);
 	}
 
+	//=== Below this many rows, deduplicating Theta and X on separate threads does not pay off. 
+	private static final int CONCURRENT_DEDUPLICATION_THRESHOLD = 200000;
+
 	private double[][] Theta;
 	private double[][] X;
 	private double[] y;
@@ -72,52 +90,54 @@ public class RfData implements java.io.Serializable {
 	 * Make Theta unique, and updates the first column of theta_inst_idxs accordingly.  
 	 */
 	public void makeUnique(boolean makeThetaUnique){
-		Set<ArrayWithSensibleEquals> uniqueArrays = new HashSet<ArrayWithSensibleEquals>();
-		Map<ArrayWithSensibleEquals,Integer> mapArrayToUniqueIndex = new HashMap<ArrayWithSensibleEquals, Integer>();
-		Vector<Integer> newIndices = new Vector<Integer>();
-		
-		//=== Collect unique theta arrays in a set,	building up a vector mapping from previous to unique indices as we go.
 		if (makeThetaUnique){
-			for (int i = 0; i < Theta.length; i++) {
-				double[] theta = Theta[i];
-				ArrayWithSensibleEquals array = new ArrayWithSensibleEquals(theta);
-				if(!uniqueArrays.contains(array)){
-					mapArrayToUniqueIndex.put( array, uniqueArrays.size() );
-					uniqueArrays.add( array );
-				}
-				newIndices.add(i, mapArrayToUniqueIndex.get(array) );
-			}
+			int[] newIndices = RowDeduplicator.uniqueIndices(Theta);
+			Theta = RowDeduplicator.uniqueRows(Theta, newIndices);
+			remapIndices(0, newIndices);
 		} else {
-			for (int i = 0; i < X.length; i++) {
-				double[] x = X[i];
-				ArrayWithSensibleEquals array = new ArrayWithSensibleEquals(x);
-				if(!uniqueArrays.contains(array)){
-					mapArrayToUniqueIndex.put( array, uniqueArrays.size() );
-					uniqueArrays.add( array );
-				}
-				newIndices.add(i, mapArrayToUniqueIndex.get(array) );
-			}
+			int[] newIndices = RowDeduplicator.uniqueIndices(X);
+			X = RowDeduplicator.uniqueRows(X, newIndices);
+			remapIndices(1, newIndices);
 		}
-		
-		//=== Create the unique array, fill it, and then change the reference to the new unique array. Also update theta_inst_idxs.
-		if( makeThetaUnique ){
-			double[][] uniqueTheta = new double[uniqueArrays.size()][];
-			for (ArrayWithSensibleEquals array: uniqueArrays) {
-				uniqueTheta[mapArrayToUniqueIndex.get(array)] = array.values;
-			}
-			Theta = uniqueTheta;
-			for (int i = 0; i < newIndices.size(); i++) {
-				theta_inst_idxs[i][0] = newIndices.get(i);
-			}
-		} else {
-			double[][] uniqueX = new double[uniqueArrays.size()][];
-			for (ArrayWithSensibleEquals array: uniqueArrays) {
-				uniqueX[mapArrayToUniqueIndex.get(array)] = array.values;
+	}
+	
+	/* 
+	 * Make both Theta and X unique, optionally deduplicating X on a second thread while Theta is deduplicated on this one.  
+	 */
+	public void makeUnique(boolean makeThetaUnique, boolean makeXUnique, boolean concurrently){
+		if (!(makeThetaUnique && makeXUnique && concurrently)){
+			if (makeThetaUnique) makeUnique(true);
+			if (makeXUnique) makeUnique(false);
+			return;
+		}
+		final double[][] rows = X;
+		FutureTask<int[]> xTask = new FutureTask<int[]>(new Callable<int[]>() {
+			public int[] call() {
+				return RowDeduplicator.uniqueIndices(rows);
 			}
-			X = uniqueX;
-			for (int i = 0; i < newIndices.size(); i++) {
-				theta_inst_idxs[i][1] = newIndices.get(i);
-			}			
+		});
+		new Thread(xTask, "RfData-makeUnique-X").start();
+		int[] thetaIndices = RowDeduplicator.uniqueIndices(Theta);
+		int[] xIndices;
+		try {
+			xIndices = xTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while making X unique", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		Theta = RowDeduplicator.uniqueRows(Theta, thetaIndices);
+		remapIndices(0, thetaIndices);
+		X = RowDeduplicator.uniqueRows(X, xIndices);
+		remapIndices(1, xIndices);
+	}
+	
+	private void remapIndices(int column, int[] newIndices){
+		for (int i = 0; i < theta_inst_idxs.length; i++) {
+			theta_inst_idxs[i][column] = newIndices[theta_inst_idxs[i][column]];
 		}
 	}
 	
@@ -145,17 +165,3 @@ public class RfData implements java.io.Serializable {
 	}
 	
 }
-
-
-class ArrayWithSensibleEquals{
-	public ArrayWithSensibleEquals(double[] values) {
-		this.values = values;
-	}
-	public double[] values;
-    public boolean equals(Object o){
-    	return (o==null? false : Arrays.equals(((ArrayWithSensibleEquals)o).values, values));
-    }
-    public int hashCode() {
-        return Arrays.hashCode(values);
-    }
-}
\ No newline at end of file
@@ -0,0 +1,305 @@
+package ca.ubc.cs.beta.models.fastrf.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary columnar file format for (deduplicated) RfData, so training data only needs to be parsed from csv once.
+ *
+ * All values are little-endian:
+ * <pre>
+ * int    magic, version, numTheta, dimTheta, numX, dimX, numPoints, numDims, numDictionaries, reserved
+ * int    catDomainSizes[numDims]                                  (padding to 8 bytes)
+ * double Theta columns: dimTheta x numTheta
+ * double X columns: dimX x numX
+ * double y[numPoints]
+ * int    thetaIdxs[numPoints], instIdxs[numPoints]                (padding to 8 bytes)
+ * for each dictionary: int dim, int size, then size x (int numBytes, UTF-8 bytes), in the order of the categorical codes 1..size
+ * </pre>
+ * Reading memory-maps the file and bulk-copies the columns, so loading is bound by I/O rather than parsing.
+ */
+public class RfDataFile {
+	public static final int MAGIC = 0x43444652; // "RFDC" in little-endian byte order
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 40;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Write the data to the given file, replacing it if it exists.
+	 * catDomainValueMaps (e.g., CsvToDataConverter.getCatDomainValueMaps()) may be null if there are no value names to keep.
+	 */
+	public static void write(final RfData data, Map<Integer, Map<String,Integer>> catDomainValueMaps, File f) throws IOException{
+		final int[][] theta_inst_idxs = data.getTheta_inst_idxs();
+		final double[] y = data.getY();
+		write(data.getTheta(), data.getX(), new Runs() {
+			public int numPoints() { return y.length; }
+			public int thetaIdx(int i) { return theta_inst_idxs[i][0]; }
+			public int instIdx(int i) { return theta_inst_idxs[i][1]; }
+			public double y(int i) { return y[i]; }
+		}, data.getCatDomainSizes(), catDomainValueMaps, f);
+	}
+
+	/*
+	 * The runs of a data set, one (configuration index, instance index, response) triple per data point.
+	 * Lets writers produce the runs on the fly instead of holding theta_inst_idxs and y in memory.
+	 */
+	interface Runs {
+		int numPoints();
+		int thetaIdx(int i);
+		int instIdx(int i);
+		double y(int i);
+	}
+
+	static void write(double[][] Theta, double[][] X, Runs runs, int[] catDomainSizes, Map<Integer, Map<String,Integer>> catDomainValueMaps, File f) throws IOException{
+		int numPoints = runs.numPoints();
+		int dimTheta = (Theta.length == 0 ? 0 : Theta[0].length);
+		int dimX = (X.length == 0 ? 0 : X[0].length);
+		int numDims = (catDomainSizes == null ? 0 : catDomainSizes.length);
+		int numDictionaries = (catDomainValueMaps == null ? 0 : catDomainValueMaps.size());
+
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ChannelWriter out = new ChannelWriter(channel);
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(Theta.length);
+			out.putInt(dimTheta);
+			out.putInt(X.length);
+			out.putInt(dimX);
+			out.putInt(numPoints);
+			out.putInt(numDims);
+			out.putInt(numDictionaries);
+			out.putInt(0);
+			for (int i = 0; i < numDims; i++) {
+				out.putInt(catDomainSizes[i]);
+			}
+			out.align8();
+
+			for (int j = 0; j < dimTheta; j++) {
+				for (int i = 0; i < Theta.length; i++) {
+					out.putDouble(Theta[i][j]);
+				}
+			}
+			for (int j = 0; j < dimX; j++) {
+				for (int i = 0; i < X.length; i++) {
+					out.putDouble(X[i][j]);
+				}
+			}
+			for (int i = 0; i < numPoints; i++) {
+				out.putDouble(runs.y(i));
+			}
+			for (int i = 0; i < numPoints; i++) {
+				out.putInt(runs.thetaIdx(i));
+			}
+			for (int i = 0; i < numPoints; i++) {
+				out.putInt(runs.instIdx(i));
+			}
+			out.align8();
+
+			if (catDomainValueMaps != null) {
+				for (Map.Entry<Integer, Map<String,Integer>> dictionary : catDomainValueMaps.entrySet()) {
+					Map<String,Integer> valueMap = dictionary.getValue();
+					String[] valuesInOrder = new String[valueMap.size()];
+					for (Map.Entry<String,Integer> entry : valueMap.entrySet()) {
+						valuesInOrder[entry.getValue()-1] = entry.getKey();
+					}
+					out.putInt(dictionary.getKey());
+					out.putInt(valuesInOrder.length);
+					for (String value : valuesInOrder) {
+						byte[] bytes = value.getBytes(UTF8);
+						out.putInt(bytes.length);
+						out.putBytes(bytes);
+					}
+				}
+			}
+			out.flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Read the data written by write(). The returned RfData is already unique, as written.
+	 */
+	public static RfData read(File f) throws IOException{
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			Layout l = new Layout(channel);
+
+			double[][] Theta = new double[l.numTheta][l.dimTheta];
+			readColumns(channel, l.theta, Theta);
+			double[][] X = new double[l.numX][l.dimX];
+			readColumns(channel, l.x, X);
+
+			double[] y = new double[l.numPoints];
+			mapDoubles(channel, l.y, l.numPoints).get(y);
+
+			int[][] theta_inst_idxs = new int[l.numPoints][2];
+			int[] column = new int[l.numPoints];
+			for (int c = 0; c < 2; c++) {
+				mapInts(channel, l.idxs + 4L*c*l.numPoints, l.numPoints).get(column);
+				for (int i = 0; i < l.numPoints; i++) {
+					theta_inst_idxs[i][c] = column[i];
+				}
+			}
+			return RfData.fromUniqueData(Theta, X, theta_inst_idxs, y, l.catDomainSizes);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Read the categorical value dictionaries written with the data, in the format of CsvToDataConverter.getCatDomainValueMaps().
+	 */
+	public static HashMap<Integer, Map<String,Integer>> readCatDomainValueMaps(File f) throws IOException{
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			Layout l = new Layout(channel);
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, l.dictionaries, channel.size() - l.dictionaries).order(ByteOrder.LITTLE_ENDIAN);
+			HashMap<Integer, Map<String,Integer>> catDomainValueMaps = new HashMap<Integer, Map<String,Integer>>();
+			for (int d = 0; d < l.numDictionaries; d++) {
+				int dim = buf.getInt();
+				int size = buf.getInt();
+				Map<String,Integer> valueMap = new HashMap<String,Integer>();
+				for (int v = 1; v <= size; v++) {
+					byte[] bytes = new byte[buf.getInt()];
+					buf.get(bytes);
+					valueMap.put(new String(bytes, UTF8), v);
+				}
+				catDomainValueMaps.put(dim, valueMap);
+			}
+			return catDomainValueMaps;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * The header of a file and the positions of its sections.
+	 */
+	private static class Layout {
+		int numTheta, dimTheta, numX, dimX, numPoints, numDictionaries;
+		int[] catDomainSizes;
+		long theta, x, y, idxs, dictionaries;
+
+		Layout(FileChannel channel) throws IOException{
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("Not an RfData file.");
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Not an RfData file.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported RfData file version " + version + "; this reader supports version " + VERSION);
+			}
+			numTheta = header.getInt();
+			dimTheta = header.getInt();
+			numX = header.getInt();
+			dimX = header.getInt();
+			numPoints = header.getInt();
+			int numDims = header.getInt();
+			numDictionaries = header.getInt();
+
+			catDomainSizes = new int[numDims];
+			mapInts(channel, HEADER_BYTES, numDims).get(catDomainSizes);
+			theta = align8(HEADER_BYTES + 4L*numDims);
+			x = theta + 8L*numTheta*dimTheta;
+			y = x + 8L*numX*dimX;
+			idxs = y + 8L*numPoints;
+			dictionaries = align8(idxs + 8L*numPoints);
+			if (dictionaries > channel.size()) {
+				throw new IOException("Corrupt RfData file: expected at least " + dictionaries + " bytes, but the file has " + channel.size());
+			}
+		}
+	}
+
+	//=== Columns are mapped one at a time, so that files larger than 2GB can be read as long as each column is smaller.
+	private static void readColumns(FileChannel channel, long pos, double[][] rows) throws IOException{
+		if (rows.length == 0) return;
+		double[] column = new double[rows.length];
+		for (int j = 0; j < rows[0].length; j++) {
+			mapDoubles(channel, pos + 8L*j*rows.length, rows.length).get(column);
+			for (int i = 0; i < rows.length; i++) {
+				rows[i][j] = column[i];
+			}
+		}
+	}
+
+	private static DoubleBuffer mapDoubles(FileChannel channel, long pos, int count) throws IOException{
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L*count).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}
+
+	private static IntBuffer mapInts(FileChannel channel, long pos, int count) throws IOException{
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L*count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+
+	private static long align8(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	/*
+	 * Buffers little-endian values and writes them to a channel whenever the buffer is full.
+	 */
+	private static class ChannelWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private long written = 0;
+
+		ChannelWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void putInt(int value) throws IOException{
+			ensureRemaining(4);
+			buf.putInt(value);
+		}
+
+		void putDouble(double value) throws IOException{
+			ensureRemaining(8);
+			buf.putDouble(value);
+		}
+
+		void putBytes(byte[] bytes) throws IOException{
+			int off = 0;
+			while (off < bytes.length) {
+				ensureRemaining(1);
+				int len = Math.min(buf.remaining(), bytes.length - off);
+				buf.put(bytes, off, len);
+				off += len;
+			}
+		}
+
+		void align8() throws IOException{
+			long pos = written + buf.position();
+			for (long i = pos; i < RfDataFile.align8(pos); i++) {
+				ensureRemaining(1);
+				buf.put((byte) 0);
+			}
+		}
+
+		private void ensureRemaining(int bytes) throws IOException{
+			if (buf.remaining() < bytes) flush();
+		}
+
+		void flush() throws IOException{
+			((Buffer) buf).flip(); // Buffer, not ByteBuffer: its covariant flip and clear are missing on Java 8
+			while (buf.hasRemaining()) {
+				written += channel.write(buf);
+			}
+			((Buffer) buf).clear();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package ca.ubc.cs.beta.models.fastrf.utils;
+
+/*
+ * Finds the unique rows of a matrix with an open-addressing hash table over row indices,
+ * without wrapping or boxing the rows. Rows are equal if Arrays.equals considers them equal.
+ */
+public class RowDeduplicator {
+
+	/*
+	 * @returns for each row the index of the unique row equal to it; unique rows are numbered in the order they first appear.
+	 */
+	public static int[] uniqueIndices(double[][] rows){
+		int n = rows.length;
+		int capacity = Integer.highestOneBit(Math.max(2, 2*n - 1)) << 1;
+		int mask = capacity - 1;
+		int[] table = new int[capacity]; // 1 + index of the first row of each unique row, 0 for empty slots
+		int[] hashes = new int[n];
+		int[] mapping = new int[n];
+		int numUnique = 0;
+
+		for (int i = 0; i < n; i++) {
+			int hash = hash(rows[i]);
+			hashes[i] = hash;
+			int slot = hash & mask;
+			while (true) {
+				int entry = table[slot];
+				if (entry == 0) {
+					table[slot] = i + 1;
+					mapping[i] = numUnique++;
+					break;
+				}
+				int other = entry - 1;
+				if (hashes[other] == hash && rowsEqual(rows[other], rows[i])) {
+					mapping[i] = mapping[other];
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return mapping;
+	}
+
+	/*
+	 * @returns the unique rows (shared with the input, not copied), in the order given by uniqueIndices.
+	 */
+	public static double[][] uniqueRows(double[][] rows, int[] mapping){
+		int numUnique = 0;
+		for (int i = 0; i < mapping.length; i++) {
+			numUnique = Math.max(numUnique, mapping[i] + 1);
+		}
+		double[][] unique = new double[numUnique][];
+		for (int i = 0; i < mapping.length; i++) {
+			if (unique[mapping[i]] == null) {
+				unique[mapping[i]] = rows[i];
+			}
+		}
+		return unique;
+	}
+
+	//=== Same element hashing as Arrays.hashCode(double[]), followed by a finalizer that spreads the bits over the table.
+	private static int hash(double[] row){
+		int h = 1;
+		for (double value : row) {
+			long bits = Double.doubleToLongBits(value);
+			h = 31 * h + (int) (bits ^ (bits >>> 32));
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static boolean rowsEqual(double[] a, double[] b){
+		if (a.length != b.length) return false;
+		for (int j = 0; j < a.length; j++) {
+			if (Double.doubleToLongBits(a[j]) != Double.doubleToLongBits(b[j])) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,244 @@
+package ca.ubc.cs.beta.models.fastrf.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+
+/*
+ * Deterministic synthetic data shaped like algorithm configuration runs, for benchmarking at scale:
+ * numRuns runs of numConfigs configurations on numInstances instances, with categorical parameters and features
+ * (domain size > 0, values 1..size) and continuous ones (in [0,1)).
+ *
+ * The last numConditionalParams parameters are conditional: each is active only if one unconditional parent
+ * (a categorical one if there are any) is in the lower half of its domain (categorical) or above 0.5 (continuous);
+ * inactive parameters are set to their default (1 or 0). setConditions() describes these conditions in the format of RegtreeBuildParams.
+ *
+ * Runtimes are log-normal around an instance hardness and a configuration quality to which a few parameters contribute most,
+ * and a share tailProbability of runs gets an additional Pareto-distributed slowdown. Each run is derived from the seed
+ * and its index alone, so runs can be produced in any order, and writeBinary() streams them to a file without holding them in memory.
+ * Set the public fields before calling any other method.
+ */
+public class SyntheticDataGenerator implements RfDataFile.Runs {
+	public int numConditionalParams = 0;
+	public double noise = 0.3;
+	public double tailProbability = 0.05;
+	public double tailIndex = 1.5;
+	public boolean log10Responses = false;
+
+	private final int numRuns;
+	private final int numConfigs;
+	private final int numInstances;
+	private final int[] thetaCatDomainSizes;
+	private final int[] xCatDomainSizes;
+	private final long seed;
+
+	private volatile double[][] Theta;
+	private double[][] X;
+	private double[] weights;
+	private double[] centers;
+	private double[] hardness;
+	private int[] parents;
+
+	public SyntheticDataGenerator(int numRuns, int numConfigs, int numInstances, int[] thetaCatDomainSizes, int[] xCatDomainSizes, long seed) {
+		if (numRuns < 0 || numConfigs <= 0 || numInstances <= 0) {
+			throw new IllegalArgumentException("Need at least one configuration and one instance, and a non-negative number of runs.");
+		}
+		if (thetaCatDomainSizes.length == 0 || xCatDomainSizes.length == 0) {
+			throw new IllegalArgumentException("Need at least one parameter and one feature.");
+		}
+		this.numRuns = numRuns;
+		this.numConfigs = numConfigs;
+		this.numInstances = numInstances;
+		this.thetaCatDomainSizes = thetaCatDomainSizes;
+		this.xCatDomainSizes = xCatDomainSizes;
+		this.seed = seed;
+	}
+
+	public double[][] getTheta() {
+		generateConfigsAndInstances();
+		return Theta;
+	}
+
+	public double[][] getX() {
+		generateConfigsAndInstances();
+		return X;
+	}
+
+	/*
+	 * @returns the domain sizes of the parameters followed by those of the features, as needed by RegtreeBuildParams.
+	 */
+	public int[] getCatDomainSizes() {
+		int[] catDomainSizes = new int[thetaCatDomainSizes.length + xCatDomainSizes.length];
+		System.arraycopy(thetaCatDomainSizes, 0, catDomainSizes, 0, thetaCatDomainSizes.length);
+		System.arraycopy(xCatDomainSizes, 0, catDomainSizes, thetaCatDomainSizes.length, xCatDomainSizes.length);
+		return catDomainSizes;
+	}
+
+	/*
+	 * Sets nameConditionsMapParentsArray, nameConditionsMapParentsValues and nameConditionsMapOp of params to the conditions of the parameters.
+	 */
+	public void setConditions(RegtreeBuildParams params) {
+		generateConfigsAndInstances();
+		params.nameConditionsMapParentsArray = new HashMap<Integer, int[][]>();
+		params.nameConditionsMapParentsValues = new HashMap<Integer, double[][][]>();
+		params.nameConditionsMapOp = new HashMap<Integer, int[][]>();
+		for (int j = firstConditionalParam(); j < thetaCatDomainSizes.length; j++) {
+			int parent = parents[j];
+			int size = thetaCatDomainSizes[parent];
+			double[] values;
+			int op;
+			if (size > 0) {
+				values = new double[(size + 1) / 2];
+				for (int v = 0; v < values.length; v++) values[v] = v + 1;
+				op = 4; // IN
+			} else {
+				values = new double[]{0.5};
+				op = 3; // GR
+			}
+			params.nameConditionsMapParentsArray.put(j, new int[][]{{parent}});
+			params.nameConditionsMapParentsValues.put(j, new double[][][]{{values}});
+			params.nameConditionsMapOp.put(j, new int[][]{{op}});
+		}
+	}
+
+	public boolean isActive(double[] theta, int param) {
+		generateConfigsAndInstances();
+		return active(theta, param);
+	}
+
+	private boolean active(double[] theta, int param) {
+		if (param < firstConditionalParam()) return true;
+		int parent = parents[param];
+		int size = thetaCatDomainSizes[parent];
+		return (size > 0 ? theta[parent] <= (size + 1) / 2 : theta[parent] > 0.5);
+	}
+
+	/*
+	 * @returns all runs as RfData. Theta and X are used as generated, without deduplication.
+	 */
+	public RfData generate() {
+		int[][] theta_inst_idxs = new int[numRuns][2];
+		double[] y = new double[numRuns];
+		for (int i = 0; i < numRuns; i++) {
+			theta_inst_idxs[i][0] = thetaIdx(i);
+			theta_inst_idxs[i][1] = instIdx(i);
+			y[i] = y(i);
+		}
+		return RfData.fromUniqueData(getTheta(), getX(), theta_inst_idxs, y, getCatDomainSizes());
+	}
+
+	/*
+	 * Writes all runs to the given file in the format of RfDataFile, producing them while writing.
+	 */
+	public void writeBinary(File f) throws IOException {
+		RfDataFile.write(getTheta(), getX(), this, getCatDomainSizes(), null, f);
+	}
+
+	//=== Per-run values, each a function of the seed and the run index.
+	public int numPoints() {
+		return numRuns;
+	}
+
+	public int thetaIdx(int run) {
+		return (int) (unit(run, 0) * numConfigs);
+	}
+
+	public int instIdx(int run) {
+		return (int) (unit(run, 1) * numInstances);
+	}
+
+	public double y(int run) {
+		generateConfigsAndInstances();
+		double[] theta = Theta[thetaIdx(run)], x = X[instIdx(run)];
+		double logRuntime = hardness[instIdx(run)];
+		for (int j = 0; j < theta.length; j++) {
+			if (!active(theta, j)) continue;
+			int size = thetaCatDomainSizes[j];
+			if (size > 0) {
+				logRuntime += weights[j] * (theta[j] - 1 == (int) (centers[j] * size) ? 0 : 0.5);
+			} else {
+				logRuntime += weights[j] * 2 * (theta[j] - centers[j]) * (theta[j] - centers[j]);
+			}
+		}
+		if (thetaCatDomainSizes[0] == 0 && xCatDomainSizes[0] == 0) {
+			logRuntime += theta[0] * x[0]; // interaction between configuration and instance
+		}
+		double u1 = unit(run, 2), u2 = unit(run, 3);
+		logRuntime += noise * StrictMath.sqrt(-2 * StrictMath.log(1 - u1)) * StrictMath.cos(2 * StrictMath.PI * u2);
+		if (unit(run, 4) < tailProbability) {
+			logRuntime += -StrictMath.log10(1 - unit(run, 5)) / tailIndex;
+		}
+		return (log10Responses ? logRuntime : StrictMath.pow(10, logRuntime));
+	}
+
+	private int firstConditionalParam() {
+		return thetaCatDomainSizes.length - numConditionalParams;
+	}
+
+	private void generateConfigsAndInstances() {
+		if (Theta != null) return;
+		synchronized (this) {
+			if (Theta == null) generate(new Random(seed));
+		}
+	}
+
+	private void generate(Random r) {
+		int dimTheta = thetaCatDomainSizes.length, dimX = xCatDomainSizes.length;
+		int firstConditional = firstConditionalParam();
+		if (numConditionalParams < 0 || (numConditionalParams > 0 && firstConditional < 1)) {
+			throw new IllegalArgumentException("numConditionalParams must be between 0 and the number of parameters - 1, but is " + numConditionalParams);
+		}
+
+		//=== Parents of conditional parameters: the unconditional categorical parameters in turn, or the continuous ones if there are none.
+		parents = new int[dimTheta];
+		int numCatParents = 0;
+		for (int j = 0; j < firstConditional; j++) {
+			if (thetaCatDomainSizes[j] > 0) parents[numCatParents++] = j;
+		}
+		for (int j = firstConditional; j < dimTheta; j++) {
+			parents[j] = (numCatParents > 0 ? parents[(j - firstConditional) % numCatParents] : (j - firstConditional) % firstConditional);
+		}
+
+		weights = new double[dimTheta];
+		centers = new double[dimTheta];
+		for (int j = 0; j < dimTheta; j++) {
+			weights[j] = 1.0 / (1 + j);
+			centers[j] = r.nextDouble();
+		}
+		double[][] theta = new double[numConfigs][dimTheta];
+		for (int i = 0; i < numConfigs; i++) {
+			for (int j = 0; j < dimTheta; j++) {
+				theta[i][j] = sample(r, thetaCatDomainSizes[j]);
+			}
+			for (int j = firstConditional; j < dimTheta; j++) {
+				if (!active(theta[i], j)) theta[i][j] = (thetaCatDomainSizes[j] > 0 ? 1 : 0);
+			}
+		}
+		X = new double[numInstances][dimX];
+		hardness = new double[numInstances];
+		for (int i = 0; i < numInstances; i++) {
+			for (int j = 0; j < dimX; j++) {
+				X[i][j] = sample(r, xCatDomainSizes[j]);
+				if (xCatDomainSizes[j] == 0) hardness[i] += X[i][j];
+			}
+			hardness[i] += 0.5 * r.nextGaussian();
+		}
+		Theta = theta;
+	}
+
+	private static double sample(Random r, int domainSize) {
+		return (domainSize > 0 ? 1 + r.nextInt(domainSize) : r.nextDouble());
+	}
+
+	//=== A uniform number in [0,1) for the given run and draw, from the SplitMix64 finalizer.
+	private double unit(int run, int draw) {
+		long z = seed + 0x9E3779B97F4A7C15L * ((long) run * 8 + draw + 1);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (z >>> 11) * 0x1.0p-53;
+	}
+}
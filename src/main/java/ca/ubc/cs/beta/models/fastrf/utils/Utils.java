@@ -41,6 +41,33 @@ public class Utils {
         return (sumSq - sum*sum/l)/Math.max(l-1, 1);
     }
     
+    /**
+     * Mean of arr[from..to), computed in the same order as mean(double[]).
+     */
+    public static double mean(double[] arr, int from, int to) {
+        if (arr == null || to <= from) return 0;
+        double res = 0;
+        for (int i=from; i < to; i++) {
+            res += arr[i];
+        }
+        return res/(to-from);
+    }
+    
+    /**
+     * Variance of arr[from..to), computed in the same order as var(double[]).
+     */
+    public static double var(double[] arr, int from, int to) {
+        if (arr == null || to <= from) return 0;
+        int l = to-from;
+        
+        double sum = 0, sumSq = 0;
+        for (int i=from; i < to; i++) {
+            sum += arr[i];
+            sumSq += arr[i] * arr[i];
+        }
+        return (sumSq - sum*sum/l)/Math.max(l-1, 1);
+    }
+    
     public static double median(double[] arr) {
         if (arr == null || arr.length == 0) return Double.NaN;
         int l = arr.length;
@@ -0,0 +1,257 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+import ca.ubc.cs.beta.models.fastrf.RegtreeFit;
+import ca.ubc.cs.beta.models.fastrf.RegtreeFitListener;
+import ca.ubc.cs.beta.models.fastrf.RegtreeFwd;
+
+/*
+ * Allocation budgets of the hot paths, measured with ThreadMXBean.getThreadAllocatedBytes on the current thread:
+ * batch predictions may only allocate their results, single-point predictions and the split search of RegtreeFit
+ * nothing at all, and marginal predictions their results and one queue per call.
+ * Every path is warmed up before it is measured, so that class loading, initialization and JIT compilation are not counted,
+ * and the minimum over several measured runs is compared to the budget, since getThreadAllocatedBytes still shows
+ * occasional stray bytes while the JIT compiler is busy.
+ */
+public class AllocationTester {
+	//=== Recorded budgets on top of the results, in bytes.
+	private static final long APPLY_BUDGET = 256;
+	private static final long SINGLE_POINT_BUDGET_PER_CALL = 0;
+	private static final long MARGINAL_BUDGET = 256;
+	private static final long SPLIT_SEARCH_BUDGET_PER_NODE = 0;
+	private static final long UPDATE_BUDGET = 512;
+
+	//=== Runs of each path before and while it is measured.
+	private static final int WARMUP_RUNS = 10;
+	private static final int MEASURED_RUNS = 5;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private double[][] allTheta;
+	private double[][] allX;
+	private int[][] theta_inst_idxs;
+	private double[] y;
+	private Object sink;
+
+	/*
+	 * Two continuous and one categorical parameter, and 10 instances with a continuous and a categorical feature.
+	 */
+	@Before
+	public void setUp() {
+		Random r = new Random(5);
+		allTheta = new double[200][3];
+		for (int i = 0; i < allTheta.length; i++) {
+			allTheta[i][0] = r.nextDouble();
+			allTheta[i][1] = r.nextDouble();
+			allTheta[i][2] = 1 + r.nextInt(4);
+		}
+		allX = new double[10][2];
+		for (int i = 0; i < allX.length; i++) {
+			allX[i][0] = r.nextDouble();
+			allX[i][1] = 1 + r.nextInt(3);
+		}
+		theta_inst_idxs = new int[1000][2];
+		y = new double[theta_inst_idxs.length];
+		for (int i = 0; i < y.length; i++) {
+			int t = r.nextInt(allTheta.length), x = r.nextInt(allX.length);
+			theta_inst_idxs[i][0] = t;
+			theta_inst_idxs[i][1] = x;
+			y[i] = 3*allTheta[t][0] + (allTheta[t][2] == allX[x][1] ? 2 : 0) + allTheta[t][1]*allX[x][0] + 0.1*r.nextGaussian();
+		}
+	}
+
+	private RegtreeBuildParams params() {
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 2, new int[]{0, 0, 4, 0, 3});
+		params.random = new Random(1);
+		return params;
+	}
+
+	private double[][] designMatrix() {
+		double[][] X = new double[theta_inst_idxs.length][];
+		for (int i = 0; i < X.length; i++) {
+			double[] theta = allTheta[theta_inst_idxs[i][0]], x = allX[theta_inst_idxs[i][1]];
+			X[i] = new double[]{theta[0], theta[1], theta[2], x[0], x[1]};
+		}
+		return X;
+	}
+
+	private static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/*
+	 * @returns the fewest bytes allocated by one of the measured runs, after the warm-up runs.
+	 */
+	private static long measure(Runnable code) {
+		for (int run = 0; run < WARMUP_RUNS; run++) {
+			code.run();
+		}
+		long bytes = Long.MAX_VALUE;
+		for (int run = 0; run < MEASURED_RUNS; run++) {
+			long before = allocatedBytes();
+			code.run();
+			bytes = Math.min(bytes, allocatedBytes() - before);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testApplyAllocatesOnlyResults() {
+		final RandomForest forest = RandomForest.learnModel(10, allTheta, allX, theta_inst_idxs, y, params());
+		final double[][] X = designMatrix();
+		long bytes = measure(new Runnable() {
+			public void run() {
+				sink = RandomForest.apply(forest, X);
+			}
+		});
+		long results = measure(new Runnable() {
+			public void run() {
+				sink = new double[X.length][2];
+			}
+		});
+		assertTrue("apply allocated " + bytes + " bytes for " + results + " bytes of results", bytes <= results + APPLY_BUDGET);
+	}
+
+	@Test
+	public void testSinglePointApplyDoesNotAllocate() {
+		final RandomForest forest = RandomForest.learnModel(10, allTheta, allX, theta_inst_idxs, y, params());
+		final double[][] X = designMatrix();
+		final double[] meanvar = new double[2];
+		double[][] expected = RandomForest.apply(forest, X);
+		for (int i = 0; i < X.length; i++) {
+			RandomForest.apply(forest, X[i], meanvar);
+			assertArrayEquals(expected[i], meanvar, 0);
+		}
+		long bytes = measure(new Runnable() {
+			public void run() {
+				for (int i = 0; i < X.length; i++) {
+					RandomForest.apply(forest, X[i], meanvar);
+				}
+			}
+		});
+		assertTrue("Single-point apply allocated " + bytes + " bytes in " + X.length + " calls", bytes <= SINGLE_POINT_BUDGET_PER_CALL * X.length);
+	}
+
+	@Test
+	public void testMarginalFwdAllocatesOnlyResults() {
+		RandomForest forest = RandomForest.learnModel(1, allTheta, allX, theta_inst_idxs, y, params());
+		final Regtree tree = RandomForest.preprocessForest(forest, allX).Trees[0];
+		long bytes = measure(new Runnable() {
+			public void run() {
+				sink = RegtreeFwd.marginalFwd(tree, allTheta, null);
+			}
+		});
+		long results = measure(new Runnable() {
+			public void run() {
+				sink = new Object[]{new double[allTheta.length], new double[allTheta.length], new int[tree.numNodes]};
+			}
+		});
+		assertTrue("marginalFwd allocated " + bytes + " bytes for " + results + " bytes of results and queue", bytes <= results + MARGINAL_BUDGET);
+	}
+
+	/*
+	 * Adding one run to a tree may allocate about the size of the affected leaf (its responses and their overflow buffer),
+	 * one flag per node, and the budget, but must not copy the responses or statistics of the whole tree.
+	 */
+	@Test
+	public void testSingleRunUpdateAllocatesAboutLeaf() {
+		RegtreeBuildParams params = params();
+		params.storeResponses = true;
+		RandomForest forest = RandomForest.learnModel(1, allTheta, allX, theta_inst_idxs, y, params);
+		RandomForest.preprocessForest(forest, allX); // shares the tree's arrays once
+		final Regtree tree = forest.Trees[0];
+		final double[][] newx = {designMatrix()[0]};
+		int leaf = RegtreeFwd.fwd(tree, newx)[0];
+		long bytes = measure(new Runnable() {
+			public void run() {
+				Regtree.update(tree, newx, new double[]{1});
+			}
+		});
+		long leafBytes = 2 * (16 + 8L * tree.getNumResponses(leaf));
+		assertTrue(8L * tree.responses.length > leafBytes + tree.numNodes + UPDATE_BUDGET);
+		assertTrue("A single-run update allocated " + bytes + " bytes for a leaf of " + tree.getNumResponses(leaf) + " responses in a tree of " + tree.numNodes + " nodes",
+				bytes <= leafBytes + tree.numNodes + UPDATE_BUDGET);
+	}
+
+	/*
+	 * Measures the allocations between the events of a RegtreeFitListener: from the end of presorting or of the previous
+	 * node's partitioning to the end of a node's split search, and from there to the end of its partitioning.
+	 */
+	private static class AllocationListener implements RegtreeFitListener {
+		long last, splitSearchBytes, partitionBytes;
+		int numNodesSearched;
+
+		public void presorted(long nanos) {
+			last = allocatedBytes();
+		}
+
+		public void splitSearched(int node, int depth, int numDataPoints, int numVarsEvaluated, boolean split, long nanos) {
+			splitSearchBytes += allocatedBytes() - last;
+			numNodesSearched++;
+			last = allocatedBytes();
+		}
+
+		public void partitioned(int node, int depth, int numDataPoints, long nanos) {
+			partitionBytes += allocatedBytes() - last;
+			last = allocatedBytes();
+		}
+
+		public void fitted(int numNodes, int numLeaves, int depth, long totalNanos) {
+		}
+	}
+
+	/*
+	 * @returns the listener of the measured fit whose split search allocated the fewest bytes, after the warm-up fits.
+	 */
+	private static AllocationListener fitWithListener(double[][] allTheta, double[][] allX, int[][] theta_inst_idxs, double[] y, RegtreeBuildParams params) {
+		AllocationListener best = null;
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			AllocationListener listener = new AllocationListener();
+			params.random = new Random(1);
+			params.fitListener = listener;
+			RegtreeFit.fit(allTheta, allX, theta_inst_idxs, y, params);
+			if (run >= WARMUP_RUNS && (best == null || listener.splitSearchBytes < best.splitSearchBytes)) {
+				best = listener;
+			}
+		}
+		return best;
+	}
+
+	@Test
+	public void testSplitSearchDoesNotAllocate() {
+		AllocationListener listener = fitWithListener(allTheta, allX, theta_inst_idxs, y, params());
+		assertTrue(listener.numNodesSearched > 10 && listener.partitionBytes > 0);
+		assertTrue("The split search allocated " + listener.splitSearchBytes + " bytes in " + listener.numNodesSearched + " nodes",
+				listener.splitSearchBytes <= SPLIT_SEARCH_BUDGET_PER_NODE * listener.numNodesSearched);
+	}
+
+	/*
+	 * Parameter 1 is active if parameter 2 is in {1,2} or parameter 0 is above 0.5, so every node also evaluates the conditions.
+	 */
+	@Test
+	public void testConditionalSplitSearchDoesNotAllocate() {
+		RegtreeBuildParams params = params();
+		params.nameConditionsMapParentsArray = new HashMap<Integer, int[][]>();
+		params.nameConditionsMapParentsValues = new HashMap<Integer, double[][][]>();
+		params.nameConditionsMapOp = new HashMap<Integer, int[][]>();
+		params.nameConditionsMapParentsArray.put(1, new int[][]{{2}, {0}});
+		params.nameConditionsMapParentsValues.put(1, new double[][][]{{{1, 2}}, {{0.5}}});
+		params.nameConditionsMapOp.put(1, new int[][]{{4}, {3}});
+		AllocationListener listener = fitWithListener(allTheta, allX, theta_inst_idxs, y, params);
+		assertTrue(listener.numNodesSearched > 10);
+		assertTrue("The conditional split search allocated " + listener.splitSearchBytes + " bytes in " + listener.numNodesSearched + " nodes",
+				listener.splitSearchBytes <= SPLIT_SEARCH_BUDGET_PER_NODE * listener.numNodesSearched);
+	}
+}
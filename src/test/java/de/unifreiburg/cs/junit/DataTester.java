@@ -2,7 +2,12 @@ package de.unifreiburg.cs.junit;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
@@ -12,6 +17,11 @@ import ca.ubc.cs.beta.models.fastrf.RandomForest;
 import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
 import ca.ubc.cs.beta.models.fastrf.utils.CsvToDataConverter;
 import ca.ubc.cs.beta.models.fastrf.utils.RfData;
+import ca.ubc.cs.beta.models.fastrf.utils.RfDataFile;
+import ca.ubc.cs.beta.models.fastrf.utils.RowDeduplicator;
+import ca.ubc.cs.beta.models.fastrf.utils.SyntheticDataGenerator;
+
+import com.opencsv.CSVReader;
 
 public class DataTester {
 	public static String rfDeployment = null;
@@ -147,5 +157,209 @@ public class DataTester {
 		System.out.println("RMSE = " + rmse + "; rmse of mean pred: " + rmseOfMeanPred);
 		assertTrue(rmse < rmseOfMeanPred);
 	}
-	
-}
\ No newline at end of file
+
+	/*
+	 * Writes a csv file with a continuous and a categorical parameter, a categorical feature and the response.
+	 */
+	static File writeCategoricalCsv(int numLines, long seed) throws IOException{
+		Random r = new Random(seed);
+		String[] colors = {"red", "green", "blue", "yellow"};
+		String[] sizes = {"s", "m", "l"};
+		File f = File.createTempFile("categorical", ".csv");
+		FileWriter w = new FileWriter(f);
+		w.write("parameter1,parameter2 categorical,feature1 categorical,performance\n");
+		for (int i = 0; i < numLines; i++) {
+			w.write(r.nextDouble() + ", " + colors[r.nextInt(colors.length)] + "," + sizes[r.nextInt(sizes.length)] + "," + r.nextDouble()*10 + "\n");
+		}
+		w.close();
+		return f;
+	}
+
+	/* 
+	 * Assert that the categorical dictionaries built while streaming match those of a full read, and that values are mapped accordingly. 
+	 */
+	@Test
+	public void testStreamingCategoricalDictionaries() throws IOException{
+		File f = writeCategoricalCsv(500, 4);
+		try {
+			CsvToDataConverter converter = new CsvToDataConverter(f.getAbsolutePath(), new int[]{0, 1}, new int[]{2}, 3, new int[]{1, 2});
+			CSVReader csvReader = new CSVReader(new FileReader(f));
+			List<String[]> lines = csvReader.readAll();
+			csvReader.close();
+			lines.remove(0);
+			assertEquals(CsvToDataConverter.readOutCatDomainValueMap(lines, new int[]{1, 2}, CsvToDataConverter.readOutCsvToModelIdxMap(new int[]{0, 1}, new int[]{2})), converter.getCatDomainValueMaps());
+			assertEquals(4, converter.getCatDomainSizes()[1]);
+			assertEquals(3, converter.getCatDomainSizes()[2]);
+
+			RfData data = converter.readDataFromCsvFile(f.getAbsolutePath());
+			double[][] matrix = data.buildMatrixForApply();
+			assertEquals(lines.size(), matrix.length);
+			for (int i = 0; i < lines.size(); i++) {
+				assertEquals(Double.parseDouble(lines.get(i)[0].trim()), matrix[i][0], 0);
+				assertEquals(converter.getIntForCategoricalValueString(1, lines.get(i)[1].trim()), matrix[i][1], 0);
+				assertEquals(Double.parseDouble(lines.get(i)[3]), data.getY()[i], 0);
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/* 
+	 * Assert that parsing a file in parallel chunks gives the same dictionaries and data as parsing it sequentially. 
+	 */
+	@Test
+	public void testParallelParsingMatchesSequential() throws IOException{
+		File f = writeCategoricalCsv(20000, 5);
+		try {
+			String filename = f.getAbsolutePath();
+			CsvToDataConverter sequential = new CsvToDataConverter(filename, new int[]{0, 1}, new int[]{2}, 3, new int[]{1, 2});
+			CsvToDataConverter parallel = new CsvToDataConverter(filename, new int[]{0, 1}, new int[]{2}, 3, new int[]{1, 2}, 4);
+			assertEquals(sequential.getCatDomainValueMaps(), parallel.getCatDomainValueMaps());
+
+			RfData expected = sequential.readDataFromCsvFile(filename);
+			RfData actual = parallel.readDataFromCsvFile(filename, 4);
+			assertTrue(Arrays.deepEquals(expected.getTheta(), actual.getTheta()));
+			assertTrue(Arrays.deepEquals(expected.getX(), actual.getX()));
+			assertTrue(Arrays.deepEquals(expected.getTheta_inst_idxs(), actual.getTheta_inst_idxs()));
+			assertTrue(Arrays.equals(expected.getY(), actual.getY()));
+		} finally {
+			f.delete();
+		}
+	}
+
+	/* 
+	 * Assert that data and dictionaries written to a binary data file are read back unchanged. 
+	 */
+	@Test
+	public void testBinaryDataFileRoundTrip() throws IOException{
+		File f = writeCategoricalCsv(2000, 6);
+		File binary = File.createTempFile("data", ".rfd");
+		try {
+			CsvToDataConverter converter = new CsvToDataConverter(f.getAbsolutePath(), new int[]{0, 1}, new int[]{2}, 3, new int[]{1, 2});
+			RfData expected = converter.readDataFromCsvFile(f.getAbsolutePath());
+			RfDataFile.write(expected, converter.getCatDomainValueMaps(), binary);
+
+			RfData actual = RfDataFile.read(binary);
+			assertTrue(Arrays.deepEquals(expected.getTheta(), actual.getTheta()));
+			assertTrue(Arrays.deepEquals(expected.getX(), actual.getX()));
+			assertTrue(Arrays.deepEquals(expected.getTheta_inst_idxs(), actual.getTheta_inst_idxs()));
+			assertTrue(Arrays.equals(expected.getY(), actual.getY()));
+			assertTrue(Arrays.equals(expected.getCatDomainSizes(), actual.getCatDomainSizes()));
+			assertEquals(converter.getCatDomainValueMaps(), RfDataFile.readCatDomainValueMaps(binary));
+		} finally {
+			f.delete();
+			binary.delete();
+		}
+	}
+
+	/* 
+	 * Assert that rows are deduplicated with Arrays.equals semantics and numbered in order of first appearance, sequentially and concurrently. 
+	 */
+	@Test
+	public void testPrimitiveDeduplication(){
+		Random r = new Random(8);
+		double[] values = {0.0, -0.0, 1.5, Double.NaN, 3};
+		double[][] rows = new double[2000][3];
+		for (int i = 0; i < rows.length; i++) {
+			for (int j = 0; j < rows[i].length; j++) {
+				rows[i][j] = values[r.nextInt(values.length)];
+			}
+		}
+		int[] mapping = RowDeduplicator.uniqueIndices(rows);
+		int numUnique = 0;
+		for (int i = 0; i < rows.length; i++) {
+			int first = i;
+			for (int k = 0; k < i; k++) {
+				if (Arrays.equals(rows[k], rows[i])) { first = k; break; }
+			}
+			if (first == i) {
+				assertEquals(numUnique++, mapping[i]);
+			} else {
+				assertEquals(mapping[first], mapping[i]);
+			}
+		}
+		assertEquals(numUnique, RowDeduplicator.uniqueRows(rows, mapping).length);
+
+		double[][] X = new double[rows.length][];
+		for (int i = 0; i < rows.length; i++) {
+			X[i] = new double[]{rows[rows.length-1-i][0]};
+		}
+		double[] y = new double[rows.length];
+		RfData sequential = new RfData(rows, X, y, new int[4]);
+		RfData concurrent = RfData.fromUniqueData(rows, X, identityIdxs(rows.length), y, new int[4]);
+		concurrent.makeUnique(true, true, true);
+		assertTrue(Arrays.deepEquals(sequential.getTheta(), concurrent.getTheta()));
+		assertTrue(Arrays.deepEquals(sequential.getX(), concurrent.getX()));
+		assertTrue(Arrays.deepEquals(sequential.getTheta_inst_idxs(), concurrent.getTheta_inst_idxs()));
+
+		//=== Deduplicating again must not change anything.
+		double[][] matrix = concurrent.buildMatrixForApply();
+		concurrent.makeUnique(true);
+		concurrent.makeUnique(false);
+		assertTrue(Arrays.deepEquals(matrix, concurrent.buildMatrixForApply()));
+	}
+
+	private static int[][] identityIdxs(int n){
+		int[][] idxs = new int[n][2];
+		for (int i = 0; i < n; i++) {
+			idxs[i][0] = i;
+			idxs[i][1] = i;
+		}
+		return idxs;
+	}
+
+	private static SyntheticDataGenerator generator(long seed){
+		SyntheticDataGenerator generator = new SyntheticDataGenerator(3000, 150, 12, new int[]{0, 0, 3, 0, 4}, new int[]{0, 2}, seed);
+		generator.numConditionalParams = 2;
+		return generator;
+	}
+
+	/* 
+	 * Assert that synthetic data is deterministic, streams to the binary format unchanged, respects its conditions, and can be learned from.
+	 */
+	@Test
+	public void testSyntheticDataGenerator() throws IOException{
+		RfData data = generator(17).generate();
+		RfData again = generator(17).generate();
+		assertTrue(Arrays.deepEquals(data.getTheta(), again.getTheta()));
+		assertTrue(Arrays.deepEquals(data.getTheta_inst_idxs(), again.getTheta_inst_idxs()));
+		assertTrue(Arrays.equals(data.getY(), again.getY()));
+		assertTrue(!Arrays.equals(data.getY(), generator(18).generate().getY()));
+
+		File binary = File.createTempFile("synthetic", ".rfd");
+		try {
+			generator(17).writeBinary(binary);
+			RfData read = RfDataFile.read(binary);
+			assertTrue(Arrays.deepEquals(data.getTheta(), read.getTheta()));
+			assertTrue(Arrays.deepEquals(data.getX(), read.getX()));
+			assertTrue(Arrays.deepEquals(data.getTheta_inst_idxs(), read.getTheta_inst_idxs()));
+			assertTrue(Arrays.equals(data.getY(), read.getY()));
+			assertTrue(Arrays.equals(new int[]{0, 0, 3, 0, 4, 0, 2}, read.getCatDomainSizes()));
+		} finally {
+			binary.delete();
+		}
+
+		//=== Parameters 3 and 4 are active only if parameter 2 is 1 or 2.
+		SyntheticDataGenerator generator = generator(17);
+		int numActive = 0;
+		for (double[] theta : data.getTheta()) {
+			boolean active = theta[2] <= 2;
+			assertEquals(active, generator.isActive(theta, 3));
+			if (active) numActive++;
+			else assertTrue(theta[3] == 0 && theta[4] == 1);
+		}
+		assertTrue(numActive > 0 && numActive < data.getTheta().length);
+		for (double y : data.getY()) {
+			assertTrue(y > 0);
+		}
+
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 10, generator.getCatDomainSizes());
+		generator.setConditions(params);
+		assertEquals(2, params.nameConditionsMapParentsArray.get(3)[0][0]);
+		params.logModel = 1;
+		generator.log10Responses = true;
+		RfData logData = generator.generate();
+		RandomForest forest = RandomForest.learnModel(4, logData.getTheta(), logData.getX(), logData.getTheta_inst_idxs(), logData.getY(), params);
+		assertEquals(4, forest.numTrees);
+	}
+}
@@ -0,0 +1,269 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+import ca.ubc.cs.beta.models.fastrf.utils.SyntheticDataGenerator;
+
+/*
+ * Checks alternative trainers and predictors against the reference code paths (RandomForest.learnModel with RegtreeFit,
+ * RandomForest.apply and RandomForest.applyMarginal with RegtreeFwd) on a range of generated data sets:
+ * continuous, categorical, conditional, log-space and heavily duplicated data, with and without bootstrapping,
+ * over as many seeds as requested.
+ *
+ * Tree structures (split variables, cut points, categorical splits, children and node sizes) must always match exactly.
+ * Node statistics and predictions must match within statisticsTolerance and predictionTolerance, relative to
+ * max(1, |reference value|); both are 0 by default, i.e. bit-for-bit equality.
+ * referenceFingerprint() summarizes what the reference computes, so that changes to the reference paths themselves
+ * can be checked against a fingerprint recorded before the change.
+ */
+public class EquivalenceHarness {
+	public double statisticsTolerance = 0;
+	public double predictionTolerance = 0;
+
+	public interface Trainer {
+		RandomForest learnModel(int numTrees, double[][] allTheta, double[][] allX, int[][] theta_inst_idxs, double[] y, RegtreeBuildParams params);
+	}
+
+	/*
+	 * Predicts the (configuration, instance) pairs theta_inst_idxs, e.g. with apply(forest, join(Theta, X, theta_inst_idxs)).
+	 */
+	public interface Predictor {
+		double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs);
+	}
+
+	/*
+	 * Predicts Theta marginally across X with the given trees of the (not preprocessed) forest.
+	 */
+	public interface MarginalPredictor {
+		double[][] applyMarginal(RandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X);
+	}
+
+	public static final Trainer REFERENCE_TRAINER = new Trainer() {
+		public RandomForest learnModel(int numTrees, double[][] allTheta, double[][] allX, int[][] theta_inst_idxs, double[] y, RegtreeBuildParams params) {
+			return RandomForest.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, params);
+		}
+	};
+
+	public static final Predictor REFERENCE_PREDICTOR = new Predictor() {
+		public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+			return RandomForest.apply(forest, join(Theta, X, theta_inst_idxs));
+		}
+	};
+
+	public static final MarginalPredictor REFERENCE_MARGINAL_PREDICTOR = new MarginalPredictor() {
+		public double[][] applyMarginal(RandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+			return RandomForest.applyMarginal(RandomForest.preprocessForest(forest, X), tree_idxs_used, Theta);
+		}
+	};
+
+	/*
+	 * A data set and the build params to learn a forest on it.
+	 */
+	public static class Case {
+		public final String name;
+		public final double[][] allTheta, allX;
+		public final int[][] theta_inst_idxs;
+		public final double[] y;
+		public final int numTrees;
+		private final SyntheticDataGenerator generator;
+		private final boolean conditional, doBootstrapping, storeResponses;
+		private final int logModel, splitMin;
+		private final double ratioFeatures;
+		private final long seed;
+
+		Case(String name, SyntheticDataGenerator generator, boolean conditional, int logModel, boolean doBootstrapping, boolean storeResponses, int splitMin, double ratioFeatures, int numTrees, long seed) {
+			this.name = name + " (seed " + seed + ")";
+			this.generator = generator;
+			this.conditional = conditional;
+			this.logModel = logModel;
+			this.doBootstrapping = doBootstrapping;
+			this.storeResponses = storeResponses;
+			this.splitMin = splitMin;
+			this.ratioFeatures = ratioFeatures;
+			this.numTrees = numTrees;
+			this.seed = seed;
+			generator.log10Responses = (logModel > 0);
+			allTheta = generator.getTheta();
+			allX = generator.getX();
+			theta_inst_idxs = new int[generator.numPoints()][];
+			y = new double[generator.numPoints()];
+			for (int i = 0; i < y.length; i++) {
+				theta_inst_idxs[i] = new int[]{generator.thetaIdx(i), generator.instIdx(i)};
+				y[i] = generator.y(i);
+			}
+		}
+
+		/*
+		 * @returns new build params with a fresh Random, so that every call learns the same forest.
+		 */
+		public RegtreeBuildParams params() {
+			RegtreeBuildParams params = new RegtreeBuildParams(doBootstrapping, splitMin, ratioFeatures, generator.getCatDomainSizes());
+			params.random = new Random(seed);
+			params.logModel = logModel;
+			params.storeResponses = storeResponses;
+			if (conditional) generator.setConditions(params);
+			return params;
+		}
+
+		public RandomForest learnModel(Trainer trainer) {
+			return trainer.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, params());
+		}
+
+		/*
+		 * @returns the training pairs followed by as many random (configuration, instance) pairs.
+		 */
+		public int[][] queryIdxs() {
+			Random r = new Random(seed + 1);
+			int[][] idxs = Arrays.copyOf(theta_inst_idxs, 2*theta_inst_idxs.length);
+			for (int i = theta_inst_idxs.length; i < idxs.length; i++) {
+				idxs[i] = new int[]{r.nextInt(allTheta.length), r.nextInt(allX.length)};
+			}
+			return idxs;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/*
+	 * @returns six cases per seed: continuous, categorical, conditional, log-space, duplicated and subsampled-feature data.
+	 */
+	public static List<Case> cases(int numSeeds) {
+		List<Case> cases = new ArrayList<Case>();
+		for (long seed = 1; seed <= numSeeds; seed++) {
+			cases.add(new Case("continuous", new SyntheticDataGenerator(300, 60, 10, new int[]{0, 0, 0}, new int[]{0, 0}, seed), false, 0, false, false, 2, 1.0, 3, seed));
+			cases.add(new Case("categorical", new SyntheticDataGenerator(400, 80, 12, new int[]{3, 0, 5, 2}, new int[]{0, 4}, seed), false, 0, true, true, 5, 5.0/6, 4, seed));
+			SyntheticDataGenerator conditional = new SyntheticDataGenerator(400, 100, 8, new int[]{3, 0, 4, 0, 2, 0, 3}, new int[]{0, 0}, seed);
+			conditional.numConditionalParams = 4;
+			cases.add(new Case("conditional", conditional, true, 0, true, false, 3, 2.0/3, 4, seed));
+			cases.add(new Case("log-space", new SyntheticDataGenerator(300, 50, 10, new int[]{0, 4, 0}, new int[]{0, 0, 3}, seed), false, 1, true, true, 4, 2.0/3, 4, seed));
+			cases.add(new Case("duplicated", new SyntheticDataGenerator(500, 8, 3, new int[]{2, 0}, new int[]{0}, seed), false, 0, true, false, 1, 1.0, 3, seed));
+			SyntheticDataGenerator subsampled = new SyntheticDataGenerator(300, 60, 15, new int[]{0, 3, 0, 0, 2, 0}, new int[]{0, 0, 2}, seed);
+			subsampled.numConditionalParams = 2;
+			cases.add(new Case("conditional, few features per split", subsampled, true, 1, false, true, 2, 0.3, 3, seed));
+		}
+		return cases;
+	}
+
+	public static double[][] join(double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+		double[][] Z = new double[theta_inst_idxs.length][];
+		for (int i = 0; i < Z.length; i++) {
+			double[] theta = Theta[theta_inst_idxs[i][0]], x = X[theta_inst_idxs[i][1]];
+			Z[i] = new double[theta.length + x.length];
+			System.arraycopy(theta, 0, Z[i], 0, theta.length);
+			System.arraycopy(x, 0, Z[i], theta.length, x.length);
+		}
+		return Z;
+	}
+
+	public static int[] allTrees(RandomForest forest) {
+		int[] tree_idxs_used = new int[forest.numTrees];
+		for (int i = 0; i < tree_idxs_used.length; i++) {
+			tree_idxs_used[i] = i;
+		}
+		return tree_idxs_used;
+	}
+
+	//=== Checks; each fails with the case, tree and node or data point where the candidate differs.
+	public void checkTrainer(Trainer candidate, List<Case> cases) {
+		for (Case c : cases) {
+			RandomForest expected = c.learnModel(REFERENCE_TRAINER), actual = c.learnModel(candidate);
+			checkForest(c.name, expected, actual);
+			int[][] idxs = c.queryIdxs();
+			checkPredictions(c.name + ", apply", REFERENCE_PREDICTOR.apply(expected, c.allTheta, c.allX, idxs), REFERENCE_PREDICTOR.apply(actual, c.allTheta, c.allX, idxs));
+		}
+	}
+
+	public void checkPredictor(Predictor candidate, List<Case> cases) {
+		for (Case c : cases) {
+			RandomForest forest = c.learnModel(REFERENCE_TRAINER);
+			int[][] idxs = c.queryIdxs();
+			checkPredictions(c.name + ", apply", REFERENCE_PREDICTOR.apply(forest, c.allTheta, c.allX, idxs), candidate.apply(forest, c.allTheta, c.allX, idxs));
+		}
+	}
+
+	public void checkMarginalPredictor(MarginalPredictor candidate, List<Case> cases) {
+		for (Case c : cases) {
+			RandomForest forest = c.learnModel(REFERENCE_TRAINER);
+			int[] tree_idxs_used = allTrees(forest);
+			checkPredictions(c.name + ", applyMarginal", REFERENCE_MARGINAL_PREDICTOR.applyMarginal(forest, tree_idxs_used, c.allTheta, c.allX), candidate.applyMarginal(forest, tree_idxs_used, c.allTheta, c.allX));
+		}
+	}
+
+	public void checkForest(String where, RandomForest expected, RandomForest actual) {
+		if (expected.numTrees != actual.numTrees || expected.logModel != actual.logModel) {
+			fail(where + ": expected " + expected.numTrees + " trees with logModel " + expected.logModel + ", but got " + actual.numTrees + " with logModel " + actual.logModel);
+		}
+		for (int t = 0; t < expected.numTrees; t++) {
+			checkTree(where + ", tree " + t, expected.Trees[t], actual.Trees[t]);
+		}
+	}
+
+	public void checkTree(String where, Regtree expected, Regtree actual) {
+		if (expected.numNodes != actual.numNodes || expected.npred != actual.npred) {
+			fail(where + ": expected " + expected.numNodes + " nodes over " + expected.npred + " variables, but got " + actual.numNodes + " over " + actual.npred);
+		}
+		for (int i = 0; i < expected.numNodes; i++) {
+			String node = where + ", node " + i;
+			if (expected.var[i] != actual.var[i]) fail(node + ": expected split variable " + expected.var[i] + " but got " + actual.var[i]);
+			if (expected.children[i][0] != actual.children[i][0] || expected.children[i][1] != actual.children[i][1]) {
+				fail(node + ": expected children " + Arrays.toString(expected.children[i]) + " but got " + Arrays.toString(actual.children[i]));
+			}
+			if (expected.nodesize[i] != actual.nodesize[i]) fail(node + ": expected " + expected.nodesize[i] + " data points but got " + actual.nodesize[i]);
+			if (expected.var[i] > 0 && Double.doubleToLongBits(expected.cut[i]) != Double.doubleToLongBits(actual.cut[i])) {
+				fail(node + ": expected cut point " + expected.cut[i] + " but got " + actual.cut[i]);
+			}
+			if (expected.var[i] < 0 && !Arrays.equals(expected.catsplit[(int) expected.cut[i]], actual.catsplit[(int) actual.cut[i]])) {
+				fail(node + ": expected categorical split " + Arrays.toString(expected.catsplit[(int) expected.cut[i]]) + " but got " + Arrays.toString(actual.catsplit[(int) actual.cut[i]]));
+			}
+			checkValue(node + ", prediction", expected.nodepred[i], actual.nodepred[i], statisticsTolerance);
+			checkValue(node + ", variance", expected.nodevar[i], actual.nodevar[i], statisticsTolerance);
+		}
+	}
+
+	public void checkPredictions(String where, double[][] expected, double[][] actual) {
+		if (expected.length != actual.length) fail(where + ": expected " + expected.length + " predictions but got " + actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			for (int j = 0; j < expected[i].length; j++) {
+				checkValue(where + ", data point " + i + (j == 0 ? ", mean" : ", variance"), expected[i][j], actual[i][j], predictionTolerance);
+			}
+		}
+	}
+
+	private static void checkValue(String where, double expected, double actual, double tolerance) {
+		if (Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual)) return;
+		if (tolerance > 0 && Math.abs(expected - actual) <= tolerance * Math.max(1, Math.abs(expected))) return;
+		fail(where + ": expected " + expected + " but got " + actual + (tolerance > 0 ? " (relative tolerance " + tolerance + ")" : ""));
+	}
+
+	/*
+	 * @returns a hash of the trees the reference trainer learns on the cases, and of the predictions and marginal predictions
+	 * of the cases in linear space. Log-space predictions go through Math.log10, which may differ in the last bit between platforms.
+	 */
+	public static int referenceFingerprint(List<Case> cases) {
+		int hash = 1;
+		for (Case c : cases) {
+			RandomForest forest = c.learnModel(REFERENCE_TRAINER);
+			for (Regtree tree : forest.Trees) {
+				hash = 31 * hash + Arrays.hashCode(Arrays.copyOf(tree.var, tree.numNodes));
+				hash = 31 * hash + Arrays.hashCode(Arrays.copyOf(tree.cut, tree.numNodes));
+				hash = 31 * hash + Arrays.hashCode(Arrays.copyOf(tree.nodesize, tree.numNodes));
+				hash = 31 * hash + Arrays.deepHashCode(tree.catsplit);
+			}
+			if (c.logModel == 0) {
+				hash = 31 * hash + Arrays.deepHashCode(REFERENCE_PREDICTOR.apply(forest, c.allTheta, c.allX, c.queryIdxs()));
+				hash = 31 * hash + Arrays.deepHashCode(REFERENCE_MARGINAL_PREDICTOR.applyMarginal(forest, allTrees(forest), c.allTheta, c.allX));
+			}
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,125 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.cs.beta.models.fastrf.OffHeapRandomForest;
+import ca.ubc.cs.beta.models.fastrf.PredictionForest;
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+
+/*
+ * Runs the alternative code paths through the EquivalenceHarness.
+ */
+public class EquivalenceTester {
+	/*
+	 * Recorded with the reference paths; if a change to RegtreeFit or RegtreeFwd alters this,
+	 * it changes what the model computes, and the change has to be deliberate.
+	 */
+	private static final int REFERENCE_FINGERPRINT = -2069753189;
+
+	private List<EquivalenceHarness.Case> cases;
+	private EquivalenceHarness harness;
+
+	@Before
+	public void setUp() {
+		cases = EquivalenceHarness.cases(3);
+		harness = new EquivalenceHarness();
+	}
+
+	@Test
+	public void testReferenceFingerprint() {
+		assertEquals(REFERENCE_FINGERPRINT, EquivalenceHarness.referenceFingerprint(cases));
+	}
+
+	@Test
+	public void testBinaryForestFileRoundTrip() {
+		harness.checkTrainer(new EquivalenceHarness.Trainer() {
+			public RandomForest learnModel(int numTrees, double[][] allTheta, double[][] allX, int[][] theta_inst_idxs, double[] y, RegtreeBuildParams params) {
+				RandomForest forest = RandomForest.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, params);
+				try {
+					File f = File.createTempFile("forest", ".bin");
+					try {
+						RandomForest.saveBinary(forest, f);
+						return RandomForest.fromBinaryForestFile(f.getAbsolutePath());
+					} finally {
+						f.delete();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, cases);
+	}
+
+	@Test
+	public void testPredictors() {
+		harness.checkPredictor(new EquivalenceHarness.Predictor() {
+			public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+				return RandomForest.apply(forest, Theta, X, theta_inst_idxs);
+			}
+		}, cases);
+		harness.checkPredictor(new EquivalenceHarness.Predictor() {
+			public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+				double[][][] crossProduct = RandomForest.applyCrossProduct(forest, Theta, X);
+				double[][] retn = new double[theta_inst_idxs.length][];
+				for (int i = 0; i < retn.length; i++) {
+					retn[i] = new double[]{crossProduct[0][theta_inst_idxs[i][0]][theta_inst_idxs[i][1]], crossProduct[1][theta_inst_idxs[i][0]][theta_inst_idxs[i][1]]};
+				}
+				return retn;
+			}
+		}, cases);
+		harness.checkPredictor(new EquivalenceHarness.Predictor() {
+			public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+				return PredictionForest.apply(PredictionForest.fromForest(forest), EquivalenceHarness.join(Theta, X, theta_inst_idxs));
+			}
+		}, cases);
+		harness.checkPredictor(new EquivalenceHarness.Predictor() {
+			public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+				return OffHeapRandomForest.apply(OffHeapRandomForest.allocate(forest), EquivalenceHarness.join(Theta, X, theta_inst_idxs));
+			}
+		}, cases);
+	}
+
+	@Test
+	public void testMarginalPredictors() {
+		harness.checkMarginalPredictor(new EquivalenceHarness.MarginalPredictor() {
+			public double[][] applyMarginal(RandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+				return PredictionForest.applyMarginal(PredictionForest.fromForest(RandomForest.preprocessForest(forest, X)), tree_idxs_used, Theta);
+			}
+		}, cases);
+		harness.checkMarginalPredictor(new EquivalenceHarness.MarginalPredictor() {
+			public double[][] applyMarginal(RandomForest forest, int[] tree_idxs_used, double[][] Theta, double[][] X) {
+				return OffHeapRandomForest.applyMarginal(OffHeapRandomForest.allocate(RandomForest.preprocessForest(forest, X)), tree_idxs_used, Theta);
+			}
+		}, cases);
+	}
+
+	@Test
+	public void testHarnessDetectsDifferences() {
+		EquivalenceHarness.Predictor perturbed = new EquivalenceHarness.Predictor() {
+			public double[][] apply(RandomForest forest, double[][] Theta, double[][] X, int[][] theta_inst_idxs) {
+				double[][] retn = RandomForest.apply(forest, EquivalenceHarness.join(Theta, X, theta_inst_idxs));
+				retn[retn.length-1][0] *= 1 + 1e-12;
+				return retn;
+			}
+		};
+		List<EquivalenceHarness.Case> oneCase = cases.subList(0, 1);
+		boolean detected = false;
+		try {
+			harness.checkPredictor(perturbed, oneCase);
+		} catch (AssertionError e) {
+			detected = true;
+		}
+		assertTrue("A perturbed prediction was not detected.", detected);
+		harness.predictionTolerance = 1e-10;
+		harness.checkPredictor(perturbed, oneCase);
+	}
+}
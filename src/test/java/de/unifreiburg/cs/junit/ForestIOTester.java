@@ -0,0 +1,249 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.cs.beta.models.fastrf.LazyRandomForest;
+import ca.ubc.cs.beta.models.fastrf.MemoryFootprint;
+import ca.ubc.cs.beta.models.fastrf.OffHeapRandomForest;
+import ca.ubc.cs.beta.models.fastrf.PredictionForest;
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+
+public class ForestIOTester {
+	private double[][] allTheta;
+	private double[][] allX;
+	private int[][] theta_inst_idxs;
+	private double[] y;
+	private File file;
+
+	/*
+	 * Data over two continuous and one categorical parameter and two instances with one feature each.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		Random r = new Random(7);
+		int numTheta = 100;
+		allTheta = new double[numTheta][3];
+		for (int i = 0; i < numTheta; i++) {
+			allTheta[i][0] = r.nextDouble();
+			allTheta[i][1] = r.nextDouble();
+			allTheta[i][2] = 1 + r.nextInt(4);
+		}
+		allX = new double[][]{{0.2}, {0.8}};
+		theta_inst_idxs = new int[2*numTheta][2];
+		y = new double[2*numTheta];
+		for (int i = 0; i < 2*numTheta; i++) {
+			int t = i / 2, x = i % 2;
+			theta_inst_idxs[i][0] = t;
+			theta_inst_idxs[i][1] = x;
+			y[i] = 5*allTheta[t][0] + (allTheta[t][2] == 2 ? 3 : 0) + allX[x][0]*allTheta[t][1] + r.nextDouble();
+		}
+		file = File.createTempFile("forest", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private RandomForest learn(boolean storeResponses, int logModel) {
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 5, new int[]{0, 0, 4, 0});
+		params.random = new Random(3);
+		params.storeResponses = storeResponses;
+		params.logModel = logModel;
+		return RandomForest.learnModel(4, allTheta, allX, theta_inst_idxs, y, params);
+	}
+
+	private double[][] designMatrix() {
+		double[][] X = new double[theta_inst_idxs.length][];
+		for (int i = 0; i < X.length; i++) {
+			double[] theta = allTheta[theta_inst_idxs[i][0]], x = allX[theta_inst_idxs[i][1]];
+			X[i] = new double[]{theta[0], theta[1], theta[2], x[0]};
+		}
+		return X;
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		for (boolean storeResponses : new boolean[]{true, false}) {
+			RandomForest forest = learn(storeResponses, 0);
+			RandomForest.saveBinary(forest, file);
+			RandomForest loaded = RandomForest.fromBinaryForestFile(file.getAbsolutePath());
+			assertEquals(forest, loaded);
+			assertEquals(forest.getBuildParams().storeResponses, loaded.getBuildParams().storeResponses);
+
+			double[][] X = designMatrix();
+			double[][] expected = RandomForest.apply(forest, X), actual = RandomForest.apply(loaded, X);
+			for (int i = 0; i < X.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTripPreprocessed() throws IOException {
+		RandomForest forest = RandomForest.preprocessForest(learn(true, 1), allX);
+		RandomForest.saveBinary(forest, file);
+		RandomForest loaded = RandomForest.fromBinaryForestFile(file.getAbsolutePath());
+		assertEquals(forest, loaded);
+		assertTrue(loaded.getBuildParams().brokenVarianceCalculation == forest.getBuildParams().brokenVarianceCalculation);
+
+		int[] treeIdxs = {0, 1, 2, 3};
+		double[][] expected = RandomForest.applyMarginal(forest, treeIdxs, allTheta);
+		double[][] actual = RandomForest.applyMarginal(loaded, treeIdxs, allTheta);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+		}
+	}
+
+	@Test
+	public void testMappedPredictionsMatch() throws IOException {
+		double[][] X = designMatrix();
+		for (int logModel = 0; logModel <= 1; logModel++) {
+			RandomForest forest = learn(true, logModel);
+			RandomForest.saveBinary(forest, file);
+			OffHeapRandomForest mapped = OffHeapRandomForest.map(file);
+			double[][] expected = RandomForest.apply(forest, X), actual = OffHeapRandomForest.apply(mapped, X);
+			for (int i = 0; i < X.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+		}
+
+		RandomForest preprocessed = RandomForest.preprocessForest(learn(false, 1), allX);
+		RandomForest.saveBinary(preprocessed, file);
+		OffHeapRandomForest mapped = OffHeapRandomForest.map(file);
+		int[] treeIdxs = {0, 2, 3};
+		double[][] expected = RandomForest.applyMarginal(preprocessed, treeIdxs, allTheta);
+		double[][] actual = OffHeapRandomForest.applyMarginal(mapped, treeIdxs, allTheta);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+		}
+	}
+
+	@Test
+	public void testDirectBufferPredictionsMatch() {
+		double[][] X = designMatrix();
+		RandomForest forest = learn(false, 1);
+		OffHeapRandomForest offHeap = OffHeapRandomForest.allocate(forest);
+		assertTrue(offHeap.sizeInBytes() > 0);
+		double[][] expected = RandomForest.apply(forest, X), actual = OffHeapRandomForest.apply(offHeap, X);
+		for (int i = 0; i < X.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+		}
+
+		RandomForest preprocessed = RandomForest.preprocessForest(forest, allX);
+		offHeap = OffHeapRandomForest.allocate(preprocessed);
+		int[] treeIdxs = {1, 2};
+		expected = RandomForest.applyMarginal(preprocessed, treeIdxs, allTheta);
+		actual = OffHeapRandomForest.applyMarginal(offHeap, treeIdxs, allTheta);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+		}
+	}
+
+	@Test
+	public void testLazyLoadingEvictsTrees() throws IOException {
+		RandomForest forest = RandomForest.preprocessForest(learn(true, 0), allX);
+		RandomForest.saveBinary(forest, file);
+		LazyRandomForest lazy = LazyRandomForest.open(file, 2);
+		try {
+			assertEquals(0, lazy.getNumResidentTrees());
+			int[] treeIdxs = {1, 3};
+			double[][] expected = RandomForest.marginalTreePredictions(forest, treeIdxs, allTheta);
+			double[][] actual = LazyRandomForest.marginalTreePredictions(lazy, treeIdxs, allTheta, null);
+			for (int i = 0; i < allTheta.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+			assertEquals(2, lazy.getNumTreeLoads());
+
+			double[][] X = designMatrix();
+			double[][] expectedApply = RandomForest.apply(forest, X), actualApply = LazyRandomForest.apply(lazy, X);
+			for (int i = 0; i < X.length; i++) {
+				assertArrayEquals(expectedApply[i], actualApply[i], 0);
+			}
+			assertEquals(2, lazy.getNumResidentTrees());
+			assertEquals(forest.Trees[3], lazy.getTree(3));
+			assertEquals(forest, lazy.materialize());
+		} finally {
+			lazy.close();
+		}
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testStrippedForestPredictionsMatch() throws IOException, ClassNotFoundException {
+		double[][] X = designMatrix();
+		for (int logModel = 0; logModel <= 1; logModel++) {
+			RandomForest forest = learn(true, logModel);
+			byte[] bytes = serialize(PredictionForest.fromForest(forest));
+			assertTrue(bytes.length < serialize(forest).length);
+			PredictionForest stripped = (PredictionForest) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+			double[][] expected = RandomForest.apply(forest, X), actual = PredictionForest.apply(stripped, X);
+			for (int i = 0; i < X.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+		}
+
+		RandomForest preprocessed = RandomForest.preprocessForest(learn(false, 1), allX);
+		PredictionForest stripped = PredictionForest.fromForest(preprocessed);
+		assertTrue(stripped.isPreprocessed(0));
+		int[] treeIdxs = {0, 2, 3};
+		double[][] expected = RandomForest.applyMarginal(preprocessed, treeIdxs, allTheta);
+		double[][] actual = PredictionForest.applyMarginal(stripped, treeIdxs, allTheta);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+		}
+	}
+
+	@Test
+	public void testMemoryFootprint() {
+		RandomForest forest = learn(true, 0);
+		Regtree tree = forest.Trees[0];
+		MemoryFootprint treeFootprint = MemoryFootprint.of(tree);
+		assertTrue(treeFootprint.getBytes("structure") >= 4*MemoryFootprint.arrayBytes(4, tree.numNodes) + MemoryFootprint.arrayBytes(8, tree.numNodes));
+		assertEquals(MemoryFootprint.arrayBytes(8, tree.responses.length) + MemoryFootprint.arrayBytes(4, tree.numNodes+1), treeFootprint.getBytes("responses"));
+		assertEquals(0, treeFootprint.getBytes("preprocessing"));
+
+		MemoryFootprint forestFootprint = MemoryFootprint.of(forest);
+		long sumOfTrees = 0;
+		for (Regtree t : forest.Trees) {
+			sumOfTrees += MemoryFootprint.of(t).getTotalBytes();
+		}
+		assertEquals(sumOfTrees, forestFootprint.getTotalBytes() - forestFootprint.getBytes("forest") - forestFootprint.getBytes("buildParams"));
+
+		//=== Preprocessed trees share all but a few arrays with the originals; shared arrays count once.
+		RandomForest preprocessed = RandomForest.preprocessForest(forest, allX);
+		RandomForest both = new RandomForest(2, forest.getBuildParams());
+		both.Trees[0] = tree;
+		both.Trees[1] = preprocessed.Trees[0];
+		MemoryFootprint bothFootprint = MemoryFootprint.of(both);
+		assertEquals(treeFootprint.getBytes("responses"), bothFootprint.getBytes("responses"));
+		assertTrue(bothFootprint.getBytes("preprocessing") > 0);
+
+		MemoryFootprint estimate = MemoryFootprint.estimateTraining(y.length, allTheta.length, 3, allX.length, 1, forest.numTrees, forest.getBuildParams());
+		assertTrue(estimate.getBytes("trees") >= forestFootprint.getTotalBytes() - forestFootprint.getBytes("forest") - forestFootprint.getBytes("buildParams"));
+		assertTrue(estimate.getBytes("fit") > 0);
+	}
+}
@@ -0,0 +1,115 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.cs.beta.models.fastrf.MarginalCurve;
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+import ca.ubc.cs.beta.models.fastrf.SobolIndexEstimator;
+
+public class MarginalTester {
+	private RandomForest forest;
+	private int[] treeIdxs;
+
+	/*
+	 * Builds a preprocessed forest over two continuous parameters in [0,1] and one categorical parameter with 3 values,
+	 * and precomputes the leaf info of each tree.
+	 */
+	@Before
+	public void setUp() {
+		Random r = new Random(12);
+		int numTheta = 200;
+		double[][] allTheta = new double[numTheta][3];
+		double[] y = new double[numTheta];
+		int[][] theta_inst_idxs = new int[numTheta][2];
+		for (int i = 0; i < numTheta; i++) {
+			allTheta[i][0] = r.nextDouble();
+			allTheta[i][1] = r.nextDouble();
+			allTheta[i][2] = 1 + r.nextInt(3);
+			y[i] = 10*allTheta[i][0] + 3*allTheta[i][1]*allTheta[i][2] + r.nextDouble();
+			theta_inst_idxs[i][0] = i;
+		}
+		double[][] allX = new double[1][0];
+
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 5, new int[]{0, 0, 3});
+		params.random = new Random(3);
+		RandomForest rf = RandomForest.learnModel(5, allTheta, allX, theta_inst_idxs, y, params);
+		forest = RandomForest.preprocessForest(rf, allX);
+
+		boolean[] isCat = {false, false, true};
+		@SuppressWarnings({"unchecked", "rawtypes"}) // precomputeLeafInfo takes an array of sets
+		HashSet<Integer>[] allCatValues = new HashSet[3];
+		allCatValues[2] = new HashSet<Integer>();
+		for (int v = 0; v < 3; v++) allCatValues[2].add(v);
+		treeIdxs = new int[forest.numTrees];
+		for (int i = 0; i < forest.numTrees; i++) {
+			forest.Trees[i].precomputeLeafInfo(isCat, allCatValues, new double[]{0, 0, 0}, new double[]{1, 1, 0});
+			treeIdxs[i] = i;
+		}
+	}
+
+	@Test
+	public void testCurveMatchesPointwiseMarginal() {
+		for (Regtree tree : forest.Trees) {
+			for (int dim = 0; dim < 3; dim++) {
+				MarginalCurve curve = tree.marginalPerformanceCurve(dim);
+				for (int c = 0; c < curve.numCells(0); c++) {
+					double x = curve.representativeValue(0, c);
+					assertEquals(tree.marginalPerformance(new int[]{dim}, new double[]{x}), curve.value(c), 1e-10);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSurfaceMatchesPointwiseMarginal() {
+		int[][] pairs = {{0, 1}, {0, 2}, {2, 1}};
+		for (Regtree tree : forest.Trees) {
+			for (int[] pair : pairs) {
+				MarginalCurve surface = tree.marginalPerformanceSurface(pair[0], pair[1]);
+				for (int c1 = 0; c1 < surface.numCells(0); c1++) {
+					for (int c2 = 0; c2 < surface.numCells(1); c2++) {
+						double[] obs = {surface.representativeValue(0, c1), surface.representativeValue(1, c2)};
+						assertEquals(tree.marginalPerformance(pair, obs), surface.value(c1, c2), 1e-10);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testForestCurveAveragesTrees() {
+		MarginalCurve curve = RandomForest.marginalPerformanceCurve(forest, treeIdxs, 0);
+		for (int c = 0; c < curve.numCells(0); c++) {
+			double x = curve.representativeValue(0, c);
+			double mean = 0;
+			for (Regtree tree : forest.Trees) {
+				mean += tree.marginalPerformance(new int[]{0}, new double[]{x});
+			}
+			mean /= forest.numTrees;
+			assertEquals(mean, curve.value(c), 1e-10);
+		}
+	}
+
+	/*
+	 * The response is dominated by parameter 0, and parameters 1 and 2 only interact; the sampled indices must reflect that.
+	 */
+	@Test
+	public void testSampledIndicesRankParameters() {
+		SobolIndexEstimator.Result result = SobolIndexEstimator.estimate(forest, treeIdxs, new int[]{0, 0, 3}, 0.05, new Random(1));
+		assertTrue(result.converged);
+		assertTrue(result.firstOrder[0] > result.firstOrder[1]);
+		assertTrue(result.firstOrder[0] > result.firstOrder[2]);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(result.totalEffect[i] + result.totalEffectHalfWidth[i] >= result.firstOrder[i] - result.firstOrderHalfWidth[i]);
+		}
+	}
+}
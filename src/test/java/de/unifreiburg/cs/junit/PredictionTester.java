@@ -0,0 +1,329 @@
+package de.unifreiburg.cs.junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.cs.beta.models.fastrf.InstrumentedRandomForest;
+import ca.ubc.cs.beta.models.fastrf.PredictionMetrics;
+import ca.ubc.cs.beta.models.fastrf.RandomForest;
+import ca.ubc.cs.beta.models.fastrf.Regtree;
+import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+
+public class PredictionTester {
+	private double[][] allTheta;
+	private double[][] allX;
+	private int[][] theta_inst_idxs;
+	private double[] y;
+
+	/*
+	 * Data over a continuous and a categorical parameter and 20 instances with two features, one of them categorical;
+	 * the response depends on both, so trees interleave configuration and instance splits.
+	 */
+	@Before
+	public void setUp() {
+		Random r = new Random(11);
+		allTheta = new double[60][2];
+		for (int i = 0; i < allTheta.length; i++) {
+			allTheta[i][0] = r.nextDouble();
+			allTheta[i][1] = 1 + r.nextInt(3);
+		}
+		allX = new double[20][2];
+		for (int i = 0; i < allX.length; i++) {
+			allX[i][0] = r.nextDouble();
+			allX[i][1] = 1 + r.nextInt(2);
+		}
+		int n = 600;
+		theta_inst_idxs = new int[n][2];
+		y = new double[n];
+		for (int i = 0; i < n; i++) {
+			int t = r.nextInt(allTheta.length), x = r.nextInt(allX.length);
+			theta_inst_idxs[i][0] = t;
+			theta_inst_idxs[i][1] = x;
+			y[i] = 1 + 4*allTheta[t][0]*allX[x][0] + (allTheta[t][1] == allX[x][1] ? 2 : 0) + 0.1*r.nextDouble();
+		}
+	}
+
+	private RandomForest learn(int logModel) {
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 3, new int[]{0, 3, 0, 2});
+		params.random = new Random(5);
+		params.logModel = logModel;
+		return RandomForest.learnModel(6, allTheta, allX, theta_inst_idxs, y, params);
+	}
+
+	private double[][] join(int[][] idxs) {
+		double[][] Z = new double[idxs.length][];
+		for (int i = 0; i < idxs.length; i++) {
+			double[] theta = allTheta[idxs[i][0]], x = allX[idxs[i][1]];
+			Z[i] = new double[]{theta[0], theta[1], x[0], x[1]};
+		}
+		return Z;
+	}
+
+	@Test
+	public void testFactorizedApplyMatchesJoinedApply() {
+		for (int logModel = 0; logModel <= 1; logModel++) {
+			RandomForest forest = learn(logModel);
+			double[][] expected = RandomForest.apply(forest, join(theta_inst_idxs));
+			double[][] actual = RandomForest.apply(forest, allTheta, allX, theta_inst_idxs);
+			for (int i = 0; i < expected.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCrossProductMatchesApply() {
+		int[][] allPairs = new int[allTheta.length*allX.length][];
+		for (int m = 0; m < allTheta.length; m++) {
+			for (int k = 0; k < allX.length; k++) {
+				allPairs[m*allX.length + k] = new int[]{m, k};
+			}
+		}
+		for (int logModel = 0; logModel <= 1; logModel++) {
+			RandomForest forest = learn(logModel);
+			double[][] expected = RandomForest.apply(forest, join(allPairs));
+			double[][][] actual = RandomForest.applyCrossProduct(forest, allTheta, allX);
+			for (int m = 0; m < allTheta.length; m++) {
+				for (int k = 0; k < allX.length; k++) {
+					assertArrayEquals(expected[m*allX.length + k], new double[]{actual[0][m][k], actual[1][m][k]}, 0);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Converts a tree to the per-node ysub layout of older versions.
+	 */
+	private static Regtree toLegacyLayout(Regtree tree) {
+		Regtree legacy = new Regtree(tree);
+		legacy.ysub = new double[tree.numNodes][];
+		for (int i = 0; i < tree.numNodes; i++) {
+			if (tree.resultsStoredInLeaves) {
+				legacy.ysub[i] = (tree.var[i] == 0 ? tree.getResponses(i) : null);
+			} else {
+				legacy.ysub[i] = new double[]{tree.getResponseSum(i), tree.getResponseSumOfSq(i)};
+			}
+		}
+		legacy.responses = null;
+		legacy.responseOffsets = null;
+		legacy.ysum = null;
+		legacy.ysumOfSq = null;
+		return legacy;
+	}
+
+	@Test
+	public void testResponseArenaMatchesLegacyLayout() {
+		double[][] newx = join(new int[][]{{0, 0}, {1, 1}, {0, 0}});
+		double[] newy = {2.5, 3.5, 1};
+		for (boolean storeResponses : new boolean[]{true, false}) {
+			RegtreeBuildParams params = new RegtreeBuildParams(true, 3, new int[]{0, 3, 0, 2});
+			params.random = new Random(5);
+			params.storeResponses = storeResponses;
+			Regtree tree = RandomForest.learnModel(1, allTheta, allX, theta_inst_idxs, y, params).Trees[0];
+			assertNull(tree.ysub);
+
+			Regtree legacy = toLegacyLayout(tree);
+			assertEquals(tree, legacy);
+			Regtree converted = new Regtree(legacy);
+			assertNull(converted.ysub);
+			assertEquals(tree, converted);
+
+			Regtree.update(tree, newx, newy.clone());
+			Regtree.update(legacy, newx, newy.clone());
+			assertArrayEquals(legacy.nodepred, tree.nodepred, 0);
+			assertArrayEquals(legacy.nodevar, tree.nodevar, 0);
+			assertEquals(tree, legacy);
+		}
+	}
+
+	/*
+	 * Adds one run at a time, so that the overflow responses of some leaves have to grow, and checks that copies fold them back in.
+	 */
+	@Test
+	public void testSingleRunUpdatesMatchLegacyLayout() {
+		RegtreeBuildParams params = new RegtreeBuildParams(true, 3, new int[]{0, 3, 0, 2});
+		params.random = new Random(5);
+		Regtree tree = RandomForest.learnModel(1, allTheta, allX, theta_inst_idxs, y, params).Trees[0];
+		Regtree legacy = toLegacyLayout(tree);
+		Random r = new Random(7);
+		for (int i = 0; i < 30; i++) {
+			double[][] newx = join(new int[][]{{r.nextInt(allTheta.length), r.nextInt(allX.length)}});
+			double[] newy = {r.nextDouble()};
+			Regtree.update(tree, newx, newy.clone());
+			Regtree.update(legacy, newx, newy.clone());
+		}
+		assertArrayEquals(legacy.nodepred, tree.nodepred, 0);
+		assertArrayEquals(legacy.nodevar, tree.nodevar, 0);
+		assertEquals(tree, legacy);
+
+		Regtree copy = new Regtree(tree);
+		assertNull(copy.responseOverflow);
+		assertEquals(tree, copy);
+		assertArrayEquals(tree.nodepred, copy.nodepred, 0);
+	}
+
+	@Test
+	public void testPreprocessingSharesTreeArrays() {
+		RandomForest forest = learn(0);
+		Regtree[] before = new Regtree[forest.numTrees];
+		for (int i = 0; i < forest.numTrees; i++) {
+			before[i] = new Regtree(forest.Trees[i]);
+		}
+		RandomForest prepared = RandomForest.preprocessForest(forest, allX);
+		int[] treeIdxs = {0, 1, 2, 3, 4, 5};
+		double[][] marginal = RandomForest.applyMarginal(prepared, treeIdxs, allTheta);
+		double[][] Z = join(theta_inst_idxs);
+		double[][] preds = RandomForest.apply(prepared, Z);
+
+		for (int i = 0; i < forest.numTrees; i++) {
+			assertEquals(before[i], forest.Trees[i]);
+			assertSame(forest.Trees[i].cut, prepared.Trees[i].cut);
+			assertSame(forest.Trees[i].responses, prepared.Trees[i].responses);
+			assertNotSame(forest.Trees[i].var, prepared.Trees[i].var);
+		}
+
+		//=== Updating the original trees must not change the preprocessed ones.
+		for (int i = 0; i < forest.numTrees; i++) {
+			Regtree.update(forest.Trees[i], join(new int[][]{{0, 0}, {1, 1}}), new double[]{10, 20});
+		}
+		double[][] marginalAfter = RandomForest.applyMarginal(prepared, treeIdxs, allTheta);
+		double[][] predsAfter = RandomForest.apply(prepared, Z);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(marginal[i], marginalAfter[i], 0);
+		}
+		for (int i = 0; i < Z.length; i++) {
+			assertArrayEquals(preds[i], predsAfter[i], 0);
+		}
+	}
+
+	@Test
+	public void testInstrumentedPredictions() throws Exception {
+		RandomForest forest = RandomForest.preprocessForest(learn(0), allX);
+		InstrumentedRandomForest instrumented = new InstrumentedRandomForest(forest);
+		instrumented.depthSampleInterval = 1;
+		double[][] Z = join(theta_inst_idxs);
+		int[] treeIdxs = {0, 1, 2, 3, 4, 5};
+
+		double[][] expected = RandomForest.apply(forest, Z);
+		double[][] actual = instrumented.apply(Z);
+		double[][] factorized = instrumented.apply(allTheta, allX, theta_inst_idxs);
+		for (int i = 0; i < Z.length; i++) {
+			assertArrayEquals(expected[i], actual[i], 0);
+			assertArrayEquals(expected[i], factorized[i], 0);
+		}
+		double[][] marginal = RandomForest.applyMarginal(forest, treeIdxs, allTheta);
+		double[][] actualMarginal = instrumented.applyMarginal(treeIdxs, allTheta);
+		for (int i = 0; i < allTheta.length; i++) {
+			assertArrayEquals(marginal[i], actualMarginal[i], 0);
+		}
+
+		PredictionMetrics metrics = instrumented.metrics;
+		assertEquals(2, metrics.getApplyCalls());
+		assertEquals(2*Z.length, metrics.getApplyPoints());
+		assertEquals(1, metrics.getMarginalCalls());
+		assertEquals(allTheta.length, metrics.getMarginalPoints());
+		assertEquals(0, metrics.getClassifyCalls());
+		assertEquals(Z.length, metrics.getBatchSizes(PredictionMetrics.APPLY).percentile(100), Z.length/16);
+		assertTrue(metrics.getApplyLatencyMaxMicros() >= metrics.getApplyLatencyP50Micros());
+		assertEquals(2*Z.length*forest.numTrees, metrics.getTreeDepthSamples());
+		assertTrue(metrics.getTreeDepthMean() >= 1 && metrics.getTreeDepthMax() < forest.Trees[0].numNodes);
+
+		//=== Disabled metrics record nothing.
+		metrics.setEnabled(false);
+		instrumented.apply(Z);
+		assertEquals(2, metrics.getApplyCalls());
+
+		ObjectName name = metrics.registerMBean("PredictionTester");
+		try {
+			assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ApplyCalls"));
+		} finally {
+			PredictionMetrics.unregisterMBean(name);
+		}
+		metrics.reset();
+		assertEquals(0, metrics.getApplyCalls());
+		assertEquals(0, metrics.getTreeDepthMax());
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		PredictionMetrics.Histogram histogram = new PredictionMetrics.Histogram();
+		for (long v = 1; v <= 1000000; v++) {
+			histogram.record(v);
+		}
+		assertEquals(1000000, histogram.count());
+		assertEquals(500000.5, histogram.mean(), 1e-6);
+		assertEquals(500000, histogram.percentile(50), 500000/16);
+		assertEquals(990000, histogram.percentile(99), 990000/16);
+		assertTrue(histogram.max() >= 1000000 && histogram.max() <= 1000000 + 1000000/16);
+		histogram.reset();
+		histogram.record(7);
+		assertEquals(7, histogram.percentile(50));
+		assertEquals(7, histogram.max());
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		File f = File.createTempFile("fastrf", ".jfr");
+		f.deleteOnExit();
+		RandomForest forest;
+		Recording recording = new Recording();
+		try {
+			for (String event : new String[]{"LearnModel", "TreeFit", "Apply", "Preprocess"}) {
+				recording.enable("ca.ubc.cs.beta.models.fastrf." + event);
+			}
+			recording.start();
+			forest = learn(0);
+			RandomForest.apply(forest, join(theta_inst_idxs));
+			RandomForest.applyCrossProduct(forest, allTheta, allX);
+			RandomForest.applyMarginal(RandomForest.preprocessForest(forest, allX), new int[]{0, 1}, allTheta);
+			recording.stop();
+			recording.dump(f.toPath());
+		} finally {
+			recording.close();
+		}
+
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		long numNodes = 0;
+		for (RecordedEvent event : RecordingFile.readAllEvents(f.toPath())) {
+			String name = event.getEventType().getName();
+			counts.put(name, (counts.containsKey(name) ? counts.get(name) : 0) + 1);
+			if (name.endsWith(".TreeFit")) {
+				assertEquals(y.length, event.getInt("numDataPoints"));
+				assertEquals(4, event.getInt("numVars"));
+				numNodes += event.getInt("numNodes");
+			} else if (name.endsWith(".LearnModel")) {
+				assertEquals(forest.numTrees, event.getInt("numTrees"));
+			} else if (name.endsWith(".Apply") && event.getString("operation").equals("applyCrossProduct")) {
+				assertEquals(allTheta.length * allX.length, event.getInt("numPoints"));
+			}
+		}
+		assertEquals(Integer.valueOf(1), counts.get("ca.ubc.cs.beta.models.fastrf.LearnModel"));
+		assertEquals(Integer.valueOf(forest.numTrees), counts.get("ca.ubc.cs.beta.models.fastrf.TreeFit"));
+		assertEquals(Integer.valueOf(3), counts.get("ca.ubc.cs.beta.models.fastrf.Apply"));
+		assertEquals(Integer.valueOf(1), counts.get("ca.ubc.cs.beta.models.fastrf.Preprocess"));
+		long expectedNodes = 0;
+		for (int i = 0; i < forest.numTrees; i++) {
+			expectedNodes += forest.Trees[i].numNodes;
+		}
+		assertEquals(expectedNodes, numNodes);
+	}
+}
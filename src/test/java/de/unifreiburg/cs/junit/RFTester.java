@@ -16,13 +16,12 @@ import java.util.regex.Pattern;
 
 import ca.ubc.cs.beta.models.fastrf.RandomForest;
 import ca.ubc.cs.beta.models.fastrf.RegtreeBuildParams;
+import ca.ubc.cs.beta.models.fastrf.RegtreeFitStatistics;
 
 import com.opencsv.CSVReader;
 
 import org.junit.*;
 
-import com.sun.xml.internal.ws.client.ClientSchemaValidationTube;
-
 import static org.junit.Assert.*;
 
 public class RFTester {
@@ -155,5 +154,63 @@ public class RFTester {
 	}
 	
 	
+	/* A fit listener sees every tree and node, and does not change the trees. */
+	@Test
+	public void testFitListener(){
+		Random r = new Random(11);
+		double[][] allTheta = new double[50][3];
+		for (int i = 0; i < allTheta.length; i++) {
+			allTheta[i][0] = r.nextDouble();
+			allTheta[i][1] = r.nextDouble();
+			allTheta[i][2] = 1 + r.nextInt(4);
+		}
+		double[][] allX = new double[20][1];
+		for (int i = 0; i < allX.length; i++) {
+			allX[i][0] = r.nextDouble();
+		}
+		int[][] theta_inst_idxs = new int[500][2];
+		double[] y = new double[theta_inst_idxs.length];
+		for (int i = 0; i < y.length; i++) {
+			theta_inst_idxs[i][0] = r.nextInt(allTheta.length);
+			theta_inst_idxs[i][1] = r.nextInt(allX.length);
+			y[i] = allTheta[theta_inst_idxs[i][0]][0] + allTheta[theta_inst_idxs[i][0]][2] * allX[theta_inst_idxs[i][1]][0] + 0.1*r.nextGaussian();
+		}
+		int[] catDomainSizes = {0, 0, 4, 0};
+		int numTrees = 5;
+		
+		RandomForest rf = RandomForest.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, new RegtreeBuildParams(false, 2, 1.0, catDomainSizes));
+		RegtreeBuildParams buildParams = new RegtreeBuildParams(false, 2, 1.0, catDomainSizes);
+		RegtreeFitStatistics stats = new RegtreeFitStatistics();
+		buildParams.fitListener = stats;
+		RandomForest rfWithListener = RandomForest.learnModel(numTrees, allTheta, allX, theta_inst_idxs, y, buildParams);
+		
+		double[][] X = new double[y.length][];
+		for (int i = 0; i < X.length; i++) {
+			X[i] = new double[]{allTheta[theta_inst_idxs[i][0]][0], allTheta[theta_inst_idxs[i][0]][1], allTheta[theta_inst_idxs[i][0]][2], allX[theta_inst_idxs[i][1]][0]};
+		}
+		double[][] expected = RandomForest.apply(rf, X), actual = RandomForest.apply(rfWithListener, X);
+		for (int i = 0; i < X.length; i++) {
+			assertEquals(expected[i][0], actual[i][0], 0);
+			assertEquals(expected[i][1], actual[i][1], 0);
+		}
+		
+		long numNodes = 0, numLeaves = 0;
+		for (int t = 0; t < numTrees; t++) {
+			numNodes += rfWithListener.Trees[t].numNodes;
+			for (int i = 0; i < rfWithListener.Trees[t].numNodes; i++) {
+				if (rfWithListener.Trees[t].var[i] == 0) numLeaves++;
+			}
+		}
+		assertEquals(numTrees, stats.getNumTrees());
+		assertEquals(numNodes, stats.getNumNodes());
+		assertEquals(numLeaves, stats.getNumLeaves());
+		assertEquals(numNodes - numLeaves, stats.getNumNodesSplit());
+		assertTrue(stats.getNumNodesSearched() >= stats.getNumNodesSplit());
+		assertTrue(stats.getNumVarsEvaluated() >= stats.getNumNodesSearched());
+		assertTrue(stats.getMaxDepth() >= 1 && stats.getMaxDepth() < numNodes);
+		assertTrue(stats.getTotalNanos() >= stats.getPresortNanos() + stats.getSplitSearchNanos() + stats.getPartitionNanos());
+		
+		stats.reset();
+		assertEquals(0, stats.getNumTrees());
+	}
 }
-